@@ -0,0 +1,446 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the hot paths of the project: line counting, tokenization, filtering, indexing (sequential and
+ * pipelined), identifier lookups, graph generation, degree distribution and connected components, on a generated
+ * input of configurable size (see M4Generator). Besides the operations per second, every benchmark counts the lines,
+ * edges or lookups it processed, which JMH reports as lines/s, edges/s and lookups/s. The allocation rate is reported
+ * by JMH's GC profiler ('-prof gc').
+ *
+ * JMH does not accept benchmark classes in the unnamed package, and a named package cannot import the classes of the
+ * unnamed package, so the project classes are called through method handles. They are looked up once and kept in
+ * static final fields, which the JIT compiles to direct calls. The M4Reader.LineVisitor callbacks are made with
+ * LambdaMetafactory from static methods of this class, so they are as cheap as a lambda in the project.
+ *
+ * Usage: java -jar target/benchmarks.jar [-p lines=N] [-p contigs=N] [-p chunkLines=N] [-prof gc]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class HotPathBenchmarks {
+
+    private static final Class<?> GRAPH = projectClass("Graph");
+    private static final Class<?> COMPACT_GRAPH = projectClass("CompactGraph");
+    private static final Class<?> COMPRESSED_GRAPH = projectClass("CompressedGraph");
+    private static final Class<?> GENERATOR = projectClass("M4Generator");
+    private static final Class<?> M4_LINE = projectClass("M4Reader$M4Line");
+    private static final Class<?> LINE_VISITOR = projectClass("M4Reader$LineVisitor");
+    private static final Class<?> FILTER = projectClass("OverlapFilter");
+    private static final Class<?> PIPELINE = projectClass("PipelinedParser");
+    private static final Class<?> DICTIONARY = projectClass("FrozenDictionary");
+
+    private static final MethodHandle NEW_GENERATOR = constructor(GENERATOR,
+            MethodType.methodType(void.class, int.class, double.class, double.class, long.class));
+    private static final MethodHandle WRITE_FILE = method(GENERATOR, "writeFile",
+            MethodType.methodType(void.class, String.class, long.class, int.class));
+    private static final MethodHandle WRITE_CHUNKS = method(GENERATOR, "writeChunks",
+            MethodType.methodType(int.class, String.class, long.class, int.class, int.class));
+    private static final MethodHandle LINE_COUNT = staticMethod("LineParser", "lineCount",
+            MethodType.methodType(int.class, String.class));
+    private static final MethodHandle INDEX_ALL_IDENTIFIERS = staticMethod("LineParser", "indexAllIdentifiers",
+            MethodType.methodType(Map.class, String.class, int.class));
+    private static final MethodHandle GENERATE_FULL_GRAPH = staticMethod("LineParser", "generateFullGraph",
+            MethodType.methodType(GRAPH, Map.class, String.class, int.class));
+    private static final MethodHandle GENERATE_FULL_COMPACT_GRAPH = staticMethod("LineParser",
+            "generateFullCompactGraph", MethodType.methodType(COMPACT_GRAPH, Map.class, projectClass("DegreePruner"),
+                    boolean.class, String.class, int.class));
+    private static final MethodHandle GRAPH_DEGREES = method(GRAPH, "getDegreeDistribution",
+            MethodType.methodType(Map.class));
+    private static final MethodHandle GRAPH_COMPONENTS = method(GRAPH, "findConnectedComponents",
+            MethodType.methodType(List.class));
+    private static final MethodHandle COMPACT_GRAPH_DEGREES = method(COMPACT_GRAPH, "getDegreeDistribution",
+            MethodType.methodType(Map.class));
+    private static final MethodHandle COMPACT_GRAPH_COMPONENTS = method(COMPACT_GRAPH, "findConnectedComponents",
+            MethodType.methodType(List.class));
+    private static final MethodHandle COMPRESS = staticMethod("CompressedGraph", "fromCompactGraph",
+            MethodType.methodType(COMPRESSED_GRAPH, COMPACT_GRAPH));
+    private static final MethodHandle COMPRESSED_GRAPH_DEGREES = method(COMPRESSED_GRAPH, "getDegreeDistribution",
+            MethodType.methodType(Map.class));
+    private static final MethodHandle COMPRESSED_GRAPH_COMPONENTS = method(COMPRESSED_GRAPH,
+            "findConnectedComponents", MethodType.methodType(List.class));
+    private static final MethodHandle READ = staticMethod("M4Reader", "read",
+            MethodType.methodType(void.class, String.class, LINE_VISITOR));
+    private static final MethodHandle INT_FIELD = method(M4_LINE, "intField",
+            MethodType.methodType(int.class, int.class)).asType(
+            MethodType.methodType(int.class, Object.class, int.class));
+    // Package private in LineParserParallel, so it is looked up with private access (see 'privateStaticMethod').
+    private static final MethodHandle IS_CONTAINMENT = privateStaticMethod("LineParserParallel", "isContainment",
+            MethodType.methodType(boolean.class, String[].class));
+    private static final MethodHandle PARSE_FILTER = staticMethod("OverlapFilter", "parse",
+            MethodType.methodType(FILTER, String.class));
+    private static final MethodHandle ACCEPT = method(FILTER, "accept", MethodType.methodType(boolean.class, M4_LINE))
+            .asType(MethodType.methodType(boolean.class, Object.class, Object.class));
+    private static final MethodHandle TOKENIZE_VISITOR = lineVisitor("tokenize", long[].class);
+    private static final MethodHandle FILTER_VISITOR = lineVisitor("filter", long[].class, Object.class);
+    private static final MethodHandle NEW_PIPELINE = constructor(PIPELINE,
+            MethodType.methodType(void.class, String.class, int.class, int.class));
+    private static final MethodHandle PIPELINED_INDEX_ALL_IDENTIFIERS = method(PIPELINE, "indexAllIdentifiers",
+            MethodType.methodType(Map.class));
+    private static final MethodHandle PIPELINED_GENERATE_FULL_GRAPH = method(PIPELINE, "generateFullGraph",
+            MethodType.methodType(GRAPH, Map.class));
+    private static final MethodHandle FREEZE = staticMethod("FrozenDictionary", "freeze",
+            MethodType.methodType(DICTIONARY, Map.class));
+    private static final MethodHandle DICTIONARY_SIZE = method(DICTIONARY, "size", MethodType.methodType(int.class));
+    private static final MethodHandle INDEX_OF = method(DICTIONARY, "indexOf",
+            MethodType.methodType(int.class, String.class)).asType(
+            MethodType.methodType(int.class, Object.class, String.class));
+    private static final MethodHandle NAME_OF = method(DICTIONARY, "nameOf",
+            MethodType.methodType(String.class, int.class)).asType(
+            MethodType.methodType(String.class, Object.class, int.class));
+
+    // The filter of the OverlapFilter benchmark: the containment rule and three comparisons.
+    private static final String FILTER_RULES = "containment; overlap >= 1000; identity >= 80; overhang <= 1000";
+
+    @Param({"1000000"})
+    public int lines;
+
+    @Param({"200000"})
+    public int contigs;
+
+    @Param({"100000"})
+    public int chunkLines;
+
+    private File dir;
+    private String dataFile;
+    private String chunkPrefix;
+    private int numChunks;
+    private List<String> lineList;
+    private Map<?, ?> indices;
+    private Object graph;
+    private Object compactGraph;
+    private Object compressedGraph;
+    private Object filter;
+    private Object pipeline;
+    private List<String> identifiers;
+    private Object dictionary;
+
+    /**
+     * The number of lines processed during an iteration, reported by JMH as lines/s.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Lines {
+        public long lines;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            lines = 0;
+        }
+    }
+
+    /**
+     * The number of edges processed during an iteration, reported by JMH as edges/s.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Edges {
+        public long edges;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            edges = 0;
+        }
+    }
+
+    /**
+     * The number of identifier lookups during an iteration, reported by JMH as lookups/s.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Lookups {
+        public long lookups;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            lookups = 0;
+        }
+    }
+
+    /**
+     * Generate the input, as one file and as chunks, and build the index and graphs that the later benchmarks start
+     * from. No containments are generated, since the chunk based methods expect already filtered chunks.
+     */
+    @Setup(Level.Trial)
+    public void generate() throws Throwable {
+        dir = Files.createTempDirectory("benchmarks").toFile();
+        dataFile = new File(dir, "data.m4").getPath();
+        chunkPrefix = new File(dir, "chunkF").getPath();
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        Object generator = NEW_GENERATOR.invoke(contigs, 1.2, 0.0, 42L);
+        WRITE_FILE.invoke(generator, dataFile, (long) lines, numThreads);
+        numChunks = (int) WRITE_CHUNKS.invoke(generator, chunkPrefix, (long) lines, chunkLines, numThreads);
+        lineList = Files.readAllLines(new File(dataFile).toPath());
+        indices = (Map<?, ?>) INDEX_ALL_IDENTIFIERS.invoke(chunkPrefix, numChunks);
+        graph = GENERATE_FULL_GRAPH.invoke(indices, chunkPrefix, numChunks);
+        compactGraph = GENERATE_FULL_COMPACT_GRAPH.invoke(indices, null, false, chunkPrefix, numChunks);
+        compressedGraph = COMPRESS.invoke(compactGraph);
+        filter = PARSE_FILTER.invoke(FILTER_RULES);
+        pipeline = NEW_PIPELINE.invoke(chunkPrefix, numChunks, numThreads);
+        identifiers = new ArrayList<>();
+        for (Object identifier : indices.keySet()) {
+            identifiers.add((String) identifier);
+        }
+        dictionary = FREEZE.invoke(indices);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public int lineCount(Lines processed) throws Throwable {
+        int count = (int) LINE_COUNT.invokeExact(dataFile);
+        processed.lines += count;
+        return count;
+    }
+
+    @Benchmark
+    public int splitDelimiter(Lines processed) {
+        int fields = 0;
+        for (String line : lineList) {
+            fields += line.split("\t").length; // LineParser.DELIMITER, which is package private.
+        }
+        processed.lines += lineList.size();
+        return fields;
+    }
+
+    @Benchmark
+    public long m4ReaderTokenization(Lines processed) throws Throwable {
+        long[] sum = new long[1];
+        READ.invoke(dataFile, TOKENIZE_VISITOR.invoke(sum));
+        processed.lines += lineList.size();
+        return sum[0];
+    }
+
+    private static void tokenize(long[] sum, Object line) throws Throwable {
+        sum[0] += (int) INT_FIELD.invokeExact(line, 7);
+    }
+
+    @Benchmark
+    public int isContainmentSplit(Lines processed) throws Throwable {
+        int kept = 0;
+        for (String line : lineList) {
+            kept += (boolean) IS_CONTAINMENT.invokeExact(line.split("\t")) ? 0 : 1;
+        }
+        processed.lines += lineList.size();
+        return kept;
+    }
+
+    @Benchmark
+    public long overlapFilter(Lines processed) throws Throwable {
+        long[] kept = new long[1];
+        READ.invoke(dataFile, FILTER_VISITOR.invoke(kept, filter));
+        processed.lines += lineList.size();
+        return kept[0];
+    }
+
+    private static void filter(long[] kept, Object filter, Object line) throws Throwable {
+        kept[0] += (boolean) ACCEPT.invokeExact(filter, line) ? 1 : 0;
+    }
+
+    @Benchmark
+    public Object indexAllIdentifiers(Lines processed) throws Throwable {
+        Object result = INDEX_ALL_IDENTIFIERS.invoke(chunkPrefix, numChunks);
+        processed.lines += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public Object pipelinedIndexAllIdentifiers(Lines processed) throws Throwable {
+        Object result = PIPELINED_INDEX_ALL_IDENTIFIERS.invoke(pipeline);
+        processed.lines += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public long hashMapGet(Lookups processed) {
+        long sum = 0;
+        for (String identifier : identifiers) {
+            sum += (Integer) indices.get(identifier);
+        }
+        processed.lookups += identifiers.size();
+        return sum;
+    }
+
+    @Benchmark
+    public long frozenDictionaryIndexOf(Lookups processed) throws Throwable {
+        long sum = 0;
+        for (String identifier : identifiers) {
+            sum += (int) INDEX_OF.invokeExact(dictionary, identifier);
+        }
+        processed.lookups += identifiers.size();
+        return sum;
+    }
+
+    @Benchmark
+    public long frozenDictionaryNameOf(Lookups processed) throws Throwable {
+        long sum = 0;
+        int size = (int) DICTIONARY_SIZE.invoke(dictionary);
+        for (int i = 0; i < size; i++) {
+            sum += ((String) NAME_OF.invokeExact(dictionary, i)).length();
+        }
+        processed.lookups += size;
+        return sum;
+    }
+
+    @Benchmark
+    public Object generateFullGraph(Edges processed) throws Throwable {
+        Object result = GENERATE_FULL_GRAPH.invoke(indices, chunkPrefix, numChunks);
+        processed.edges += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public Object pipelinedGenerateFullGraph(Edges processed) throws Throwable {
+        Object result = PIPELINED_GENERATE_FULL_GRAPH.invoke(pipeline, indices);
+        processed.edges += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public Object generateFullCompactGraph(Edges processed) throws Throwable {
+        Object result = GENERATE_FULL_COMPACT_GRAPH.invoke(indices, null, false, chunkPrefix, numChunks);
+        processed.edges += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public Object graphDegreeDistribution(Edges processed) throws Throwable {
+        Object result = GRAPH_DEGREES.invoke(graph);
+        processed.edges += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public Object graphConnectedComponents(Edges processed) throws Throwable {
+        Object result = GRAPH_COMPONENTS.invoke(graph);
+        processed.edges += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public Object compactGraphDegreeDistribution(Edges processed) throws Throwable {
+        Object result = COMPACT_GRAPH_DEGREES.invoke(compactGraph);
+        processed.edges += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public Object compactGraphConnectedComponents(Edges processed) throws Throwable {
+        Object result = COMPACT_GRAPH_COMPONENTS.invoke(compactGraph);
+        processed.edges += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public Object compressedGraphDegreeDistribution(Edges processed) throws Throwable {
+        Object result = COMPRESSED_GRAPH_DEGREES.invoke(compressedGraph);
+        processed.edges += lineList.size();
+        return result;
+    }
+
+    @Benchmark
+    public Object compressedGraphConnectedComponents(Edges processed) throws Throwable {
+        Object result = COMPRESSED_GRAPH_COMPONENTS.invoke(compressedGraph);
+        processed.edges += lineList.size();
+        return result;
+    }
+
+    private static Class<?> projectClass(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Project class " + name + " not found, build with 'mvn -P jmh'.", e);
+        }
+    }
+
+    private static MethodHandle staticMethod(String className, String name, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findStatic(projectClass(className), name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find " + className + "." + name + type + ".", e);
+        }
+    }
+
+    private static MethodHandle privateStaticMethod(String className, String name, MethodType type) {
+        try {
+            Class<?> owner = projectClass(className);
+            return MethodHandles.privateLookupIn(owner, MethodHandles.lookup()).findStatic(owner, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find " + className + "." + name + type + ".", e);
+        }
+    }
+
+    /**
+     * Make a factory for M4Reader.LineVisitor callbacks that call a static method of this class. The method takes
+     * the captured values followed by the line (as an Object, since M4Line cannot be named here).
+     * @param name The name of the static method.
+     * @param captured The types of the captured values, which are passed to the factory.
+     * @return A method handle that takes the captured values and returns a LineVisitor.
+     */
+    private static MethodHandle lineVisitor(String name, Class<?>... captured) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType implType = MethodType.methodType(void.class, captured).appendParameterTypes(Object.class);
+            MethodHandle impl = lookup.findStatic(HotPathBenchmarks.class, name, implType);
+            MethodType visitType = MethodType.methodType(void.class, M4_LINE);
+            return LambdaMetafactory.metafactory(lookup, "visit", MethodType.methodType(LINE_VISITOR, captured),
+                    visitType, impl, visitType).getTarget();
+        } catch (ReflectiveOperationException | LambdaConversionException e) {
+            throw new IllegalStateException("Cannot make a LineVisitor from " + name + ".", e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> owner, String name, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(owner, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find " + owner.getName() + "." + name + type + ".", e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findConstructor(owner, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find a constructor " + owner.getName() + type + ".", e);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The analyses that Main runs on every graph backend (CompactGraph, CompressedGraph and DiskGraph), so that one
+ * 'Main.analyseGraph' serves all of them. The backends give the same results for the same edges. The static methods
+ * build the degree distribution in the same way for every backend.
+ */
+public interface AnalysableGraph {
+
+    int numberOfVertices();
+
+    /**
+     * @return A map where keys are degrees and values are total number of vertices of that degree.
+     * @throws IOException If the graph is stored in a file that cannot be read.
+     */
+    Map<Integer, Integer> getDegreeDistribution() throws IOException;
+
+    /**
+     * @return A list of component sizes, listed by the smallest vertex they contain.
+     * @throws IOException If the graph is stored in a file that cannot be read.
+     */
+    List<Integer> findConnectedComponents() throws IOException;
+
+    /**
+     * Count the number of vertices of every degree, in a primitive array indexed by degree that grows as higher
+     * degrees are seen, so every degree is only asked for once.
+     * @param numberOfVertices The number of vertices.
+     * @param degreeOf Gives the degree of a vertex.
+     * @return An array where element d is the number of vertices of degree d.
+     */
+    static int[] countDegrees(int numberOfVertices, IntUnaryOperator degreeOf) {
+        int[] counts = new int[16];
+        int maxDegree = 0;
+        for (int v = 0; v < numberOfVertices; v++) {
+            int degree = degreeOf.applyAsInt(v);
+            if (degree >= counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(2 * counts.length, degree + 1));
+            }
+            counts[degree]++;
+            maxDegree = Math.max(maxDegree, degree);
+        }
+        return Arrays.copyOf(counts, maxDegree + 1);
+    }
+
+    /**
+     * Convert the counts of 'countDegrees' to the map of Graph.getDegreeDistribution, leaving out degrees that no
+     * vertex has.
+     * @param counts An array where element d is the number of vertices of degree d.
+     * @return A map where keys are degrees and values are total number of vertices of that degree.
+     */
+    static Map<Integer, Integer> toDegreeDistribution(int[] counts) {
+        Map<Integer, Integer> degFrequencies = new HashMap<>();
+        for (int deg = 0; deg < counts.length; deg++) {
+            if (counts[deg] > 0) {
+                degFrequencies.put(deg, counts[deg]);
+            }
+        }
+        return degFrequencies;
+    }
+}
@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable compressed sparse row (CSR) implementation of an undirected graph. This is a primitive alternative to
+ * Graph: instead of one list of boxed integers per vertex, all adjacency lists are stored back to back in a single
+ * int array (targets), and a second int array (offsets) marks where the adjacency list of each vertex begins. The
+ * neighbours of vertex v are found in targets[offsets[v]] to targets[offsets[v + 1] - 1].
+ */
+public class CompactGraph implements AnalysableGraph {
+
+    private final int[] offsets; // offsets[v] is the position in targets where the adjacency list of v starts.
+    private final int[] targets; // All adjacency lists, stored back to back.
+
+    /**
+     * Build the graph from a list of edges. This is done in two passes over the edges: the first pass counts the
+     * degree of every vertex, which gives the offsets array (a prefix sum of the degrees), and the second pass fills
+     * in the adjacency lists. Each edge is stored twice, once in the adjacency list of each of its vertices.
+     * @param numVertices The number of vertices.
+     * @param edges The edges of the graph, where each vertex is an integer between 0 and numVertices - 1.
+     */
+    public CompactGraph(int numVertices, EdgeList edges) {
+        offsets = new int[numVertices + 1];
+        // First pass: count degrees. The degree of v is stored in offsets[v + 1] so the prefix sum gives the offsets.
+        for (int i = 0; i < edges.size(); i++) {
+            offsets[edges.source(i) + 1]++;
+            offsets[edges.target(i) + 1]++;
+        }
+        for (int v = 0; v < numVertices; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        // Second pass: fill in the adjacency lists, using a copy of the offsets as insertion positions.
+        targets = new int[offsets[numVertices]];
+        int[] position = Arrays.copyOf(offsets, numVertices);
+        for (int i = 0; i < edges.size(); i++) {
+            int v1 = edges.source(i);
+            int v2 = edges.target(i);
+            targets[position[v1]++] = v2;
+            targets[position[v2]++] = v1;
+        }
+    }
+
+    /**
+     * Wrap already computed CSR arrays, e.g. when loading a graph that was stored earlier. The arrays are not copied.
+     * @param offsets An array of numVertices + 1 offsets into the targets array.
+     * @param targets All adjacency lists, stored back to back.
+     */
+    CompactGraph(int[] offsets, int[] targets) {
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    @Override
+    public int numberOfVertices() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * The number of edges in an undirected graph is the sum of the degrees of its vertices divided by 2, which is
+     * simply the length of the targets array divided by 2.
+     * @return An integer representing the total number of edges in the graph.
+     */
+    public int numberOfEdges() {
+        return targets.length / 2;
+    }
+
+    public int degree(int vertex) {
+        return offsets[vertex + 1] - offsets[vertex];
+    }
+
+    /**
+     * @param vertex An integer representing a vertex.
+     * @return A copy of the adjacency list of the vertex.
+     */
+    public int[] neighbours(int vertex) {
+        return Arrays.copyOfRange(targets, offsets[vertex], offsets[vertex + 1]);
+    }
+
+    int[] offsets() {
+        return offsets;
+    }
+
+    int[] targets() {
+        return targets;
+    }
+
+    /**
+     * Find the degrees of all vertices and count the number of vertices there are of a given degree. The counting
+     * is done in a primitive array indexed by degree, which is then converted to a map so the result can be used in
+     * the same way as the result of Graph.getDegreeDistribution.
+     * @return A map where keys are degrees and values are total number of vertices of that degree.
+     */
+    @Override
+    public Map<Integer, Integer> getDegreeDistribution() {
+        return AnalysableGraph.toDegreeDistribution(AnalysableGraph.countDegrees(numberOfVertices(), this::degree));
+    }
+
+    /**
+     * Compute the number of connected components as well as their size (number of vertices) using an iterative
+     * depth first search and return a list of the component sizes. Components are listed in the same order as
+     * Graph.findConnectedComponents lists them, i.e. by the smallest vertex they contain.
+     * @return A list of integers representing component sizes.
+     */
+    @Override
+    public List<Integer> findConnectedComponents() {
+        List<Integer> components = new ArrayList<>();
+        boolean[] visited = new boolean[numberOfVertices()];
+        // Vertices are marked as visited when pushed, so each vertex is pushed at most once.
+        int[] stack = new int[numberOfVertices()];
+        for (int i = 0; i < numberOfVertices(); i++) {
+            if (!visited[i]) {
+                components.add(depthFirstSearch(i, visited, stack));
+            }
+        }
+        return components;
+    }
+
+    /**
+     * Label every vertex with the number of its connected component. Components are numbered in the same order as
+     * findConnectedComponents lists them, so component c has size findConnectedComponents().get(c).
+     * @return An array where element v is the component number of vertex v.
+     */
+    public int[] componentLabels() {
+        int[] labels = new int[numberOfVertices()];
+        Arrays.fill(labels, -1);
+        int[] stack = new int[numberOfVertices()];
+        int component = 0;
+        for (int i = 0; i < numberOfVertices(); i++) {
+            if (labels[i] >= 0) {
+                continue;
+            }
+            int top = 0;
+            stack[top++] = i;
+            labels[i] = component;
+            while (top > 0) {
+                int v = stack[--top];
+                for (int j = offsets[v]; j < offsets[v + 1]; j++) {
+                    int adjacent = targets[j];
+                    if (labels[adjacent] < 0) {
+                        labels[adjacent] = component;
+                        stack[top++] = adjacent;
+                    }
+                }
+            }
+            component++;
+        }
+        return labels;
+    }
+
+    /**
+     * Iterative depth first search using a primitive int array as the stack.
+     * @param vertex The starting vertex.
+     * @param visited An array of booleans representing which vertices have been visited (processed).
+     * @param stack An array large enough to hold every vertex of the graph.
+     * @return The number of vertices visited, i.e. the size of the component containing the starting vertex.
+     */
+    private int depthFirstSearch(int vertex, boolean[] visited, int[] stack) {
+        int top = 0;
+        int size = 0;
+        stack[top++] = vertex;
+        visited[vertex] = true;
+        while (top > 0) {
+            int v = stack[--top];
+            size++;
+            for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                int adjacent = targets[i];
+                if (!visited[adjacent]) {
+                    visited[adjacent] = true;
+                    stack[top++] = adjacent; // Push any unvisited neighbours onto the stack.
+                }
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Splits a graph into its connected components and writes every non-trivial component to a file of its own, so that
+ * the assembly of separate components can be started as separate jobs without each job reading the whole data set.
+ *
+ * Every vertex is labelled with its component number (see CompactGraph.componentLabels), and the vertices are grouped
+ * by component with a counting sort. The components are then written in parallel, largest first so that the largest
+ * component does not start last. A component file lists every edge of the component once, as the two contig
+ * identifiers separated by a tab. When all components have been written, a manifest of the components sorted by size
+ * (largest first) is written, and a file with the component of every contig. Every file is first written under a
+ * temporary name and then moved into place, so a manifest is only ever seen once all component files are complete.
+ */
+public class ComponentExporter {
+
+    public static final String MANIFEST = "manifest.tsv";
+    public static final String LABELS = "labels.tsv";
+
+    private final CompactGraph graph;
+    private final IntFunction<String> names;
+    private final int[] labels;
+    private final int[] componentStarts; // The vertices of component c are members[componentStarts[c]..[c + 1]).
+    private final int[] members;
+
+    /**
+     * A component that has been written to a file.
+     */
+    public static final class Component {
+        public final int label;
+        public final int vertices;
+        public final long edges;
+        public final String file;
+
+        Component(int label, int vertices, long edges, String file) {
+            this.label = label;
+            this.vertices = vertices;
+            this.edges = edges;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Label the components of a graph and group the vertices by component.
+     * @param graph The graph.
+     * @param names Gives the contig identifier of a vertex, e.g. FrozenDictionary::nameOf. Called from several threads.
+     */
+    public ComponentExporter(CompactGraph graph, IntFunction<String> names) {
+        this.graph = graph;
+        this.names = names;
+        this.labels = graph.componentLabels();
+        int numComponents = 0;
+        for (int label : labels) {
+            numComponents = Math.max(numComponents, label + 1);
+        }
+        componentStarts = new int[numComponents + 1];
+        for (int label : labels) {
+            componentStarts[label + 1]++;
+        }
+        for (int c = 0; c < numComponents; c++) {
+            componentStarts[c + 1] += componentStarts[c];
+        }
+        members = new int[labels.length];
+        int[] position = new int[numComponents];
+        System.arraycopy(componentStarts, 0, position, 0, numComponents);
+        for (int v = 0; v < labels.length; v++) {
+            members[position[labels[v]]++] = v;
+        }
+    }
+
+    /**
+     * @return An array where element v is the component number of vertex v. The array is not copied.
+     */
+    public int[] labels() {
+        return labels;
+    }
+
+    public int numberOfComponents() {
+        return componentStarts.length - 1;
+    }
+
+    public int componentSize(int component) {
+        return componentStarts[component + 1] - componentStarts[component];
+    }
+
+    /**
+     * Write every component with at least 'minSize' vertices to a file of its own, followed by the label file and
+     * the manifest.
+     * @param directory The directory to write the files to. It is created if it does not exist.
+     * @param minSize The smallest number of vertices of a component that is written (2 leaves out lone contigs).
+     * @param numThreads The number of threads writing component files.
+     * @return The written components, sorted by size like the manifest.
+     * @throws IOException If any of the files cannot be written.
+     */
+    public List<Component> export(String directory, int minSize, int numThreads) throws IOException {
+        Files.createDirectories(Paths.get(directory));
+        List<Integer> order = new ArrayList<>();
+        for (int c = 0; c < numberOfComponents(); c++) {
+            if (componentSize(c) >= minSize) {
+                order.add(c);
+            }
+        }
+        order.sort(Comparator.comparingInt((Integer c) -> -componentSize(c)).thenComparingInt(c -> c));
+
+        List<Future<Component>> futures = new ArrayList<>();
+        List<Component> components = new ArrayList<>();
+        ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int c : order) {
+                futures.add(threadPool.submit(() -> writeComponent(directory, c)));
+            }
+            for (Future<Component> future : futures) {
+                components.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing components to " + directory, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to write components to " + directory, e.getCause());
+        } finally {
+            threadPool.shutdownNow();
+        }
+
+        writeAtomically(Paths.get(directory, LABELS), out -> {
+            out.write("# contig\tcomponent\n");
+            for (int v = 0; v < labels.length; v++) {
+                out.write(names.apply(v) + "\t" + labels[v] + "\n");
+            }
+        });
+        writeAtomically(Paths.get(directory, MANIFEST), out -> {
+            out.write("# component\tvertices\tedges\tfile\n");
+            for (Component component : components) {
+                out.write(component.label + "\t" + component.vertices + "\t" + component.edges + "\t"
+                        + component.file + "\n");
+            }
+        });
+        return components;
+    }
+
+    /**
+     * Write the edges of a component, each edge once, as pairs of contig identifiers.
+     */
+    private Component writeComponent(String directory, int component) throws IOException {
+        long start = System.nanoTime();
+        String file = String.format("component%08d.tsv", component);
+        Path path = Paths.get(directory, file);
+        long[] edges = {0};
+        writeAtomically(path, out -> {
+            for (int i = componentStarts[component]; i < componentStarts[component + 1]; i++) {
+                int v = members[i];
+                String name = names.apply(v);
+                boolean skipLoop = false;
+                for (int adjacent : graph.neighbours(v)) {
+                    // Every edge is in the lists of both its vertices, so only write it from the smaller one. A
+                    // self-loop is listed twice in the same list, so every other occurrence is written.
+                    if (adjacent < v || (adjacent == v && (skipLoop = !skipLoop))) {
+                        continue;
+                    }
+                    out.write(name + "\t" + names.apply(adjacent) + "\n");
+                    edges[0]++;
+                }
+            }
+        });
+        RunReport.recordChunk(file, edges[0], Files.size(path), System.nanoTime() - start);
+        return new Component(component, componentSize(component), edges[0], file);
+    }
+
+    /**
+     * Writes the contents of a text file.
+     */
+    private interface Contents {
+        void write(Writer out) throws IOException;
+    }
+
+    private static void writeAtomically(Path target, Contents contents) throws IOException {
+        Path temp = Paths.get(target + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.ISO_8859_1)) {
+            contents.write(out);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Export the components of the graph in the snapshot written by Main. '--min-size N' sets the smallest
+        // component that is written (default 2), '--threads N' the number of threads.
+        int minSize = 2;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--min-size")) {
+                minSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads")) {
+                numThreads = Integer.parseInt(args[++i]);
+            }
+        }
+        if (!new File(Main.SNAPSHOT_PATH).exists()) {
+            System.out.println("No snapshot found at " + Main.SNAPSHOT_PATH + ", run Main first.");
+            return;
+        }
+        GraphSnapshot snapshot = GraphSnapshot.load(Main.SNAPSHOT_PATH, true);
+        FrozenDictionary dictionary = FrozenDictionary.freeze(snapshot.graph.numberOfVertices(), snapshot::nameOf);
+
+        System.out.println("Labelling components...");
+        RunReport.beginStage("component labels");
+        ComponentExporter exporter = new ComponentExporter(snapshot.graph, dictionary::nameOf);
+        RunReport.endStage();
+        System.out.println("Found " + exporter.numberOfComponents() + " connected components.");
+
+        System.out.println("Writing components...");
+        RunReport.beginStage("component export");
+        List<Component> components = exporter.export("res/components/", minSize, numThreads);
+        RunReport.endStage();
+        System.out.println("Wrote " + components.size() + " components with at least " + minSize + " vertices.");
+        RunReport.write("res/results/componentReport.json");
+    }
+}
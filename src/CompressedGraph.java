@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable compressed alternative to CompactGraph, in the style of WebGraph. The adjacency list of every vertex is
+ * sorted and stored as gaps between consecutive neighbours, and every number is written as a variable length integer
+ * (7 bits per byte, the high bit set on all but the last byte). Since the neighbours of a vertex in the overlap graph
+ * tend to be close to each other and to the vertex itself, most gaps fit in one or two bytes instead of the four
+ * bytes per entry of CompactGraph.
+ *
+ * The list of vertex v starts at byte position offsets[v] and is encoded as:
+ * <pre>
+ *   degree d (varint)
+ *   first neighbour minus v, zigzag encoded so that negative differences are small too (varint)
+ *   d - 1 gaps between consecutive neighbours (varints, 0 for a repeated neighbour)
+ * </pre>
+ * The bytes are kept in pages of at most 1 GB, and a list never crosses a page boundary, so graphs with more than
+ * 2 GB of lists can be stored. The neighbours are read with a NeighbourIterator, which decodes them one at a time
+ * without allocating anything.
+ */
+public class CompressedGraph implements AnalysableGraph {
+
+    private static final int PAGE_BITS = 30;
+    private static final long PAGE_SIZE = 1L << PAGE_BITS;
+    private static final long PAGE_MASK = PAGE_SIZE - 1;
+
+    private final long[] offsets; // offsets[v] is the byte position where the list of v starts.
+    private final byte[][] pages;
+    private final long numEntries;
+
+    /**
+     * Source of sorted adjacency lists, visited in vertex order. Must give the same lists every time.
+     */
+    private interface ListSource {
+        void forEachVertex(DiskGraph.AdjacencyVisitor visitor) throws IOException;
+    }
+
+    /**
+     * Sequential decoder of the neighbours of a vertex. A single iterator can be reused for many vertices with
+     * 'reset', so iterating over the whole graph does not allocate anything.
+     */
+    public final class NeighbourIterator {
+
+        private byte[] page;
+        private int position;
+        private int remaining;
+        private int previous;
+        private int vertex;
+        private boolean first;
+
+        /**
+         * Start iterating over the neighbours of another vertex.
+         * @param vertex An integer representing a vertex.
+         * @return This iterator.
+         */
+        public NeighbourIterator reset(int vertex) {
+            long offset = offsets[vertex];
+            this.page = pages[(int) (offset >>> PAGE_BITS)];
+            this.position = (int) (offset & PAGE_MASK);
+            this.remaining = readVarint();
+            this.vertex = vertex;
+            this.first = true;
+            return this;
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        /**
+         * @return The next neighbour, in ascending order.
+         */
+        public int nextInt() {
+            int value = readVarint();
+            remaining--;
+            if (first) {
+                previous = vertex + ((value >>> 1) ^ -(value & 1)); // Undo the zigzag encoding.
+                first = false;
+            } else {
+                previous += value;
+            }
+            return previous;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = page[position++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    private CompressedGraph(int numVertices, ListSource source) throws IOException {
+        // First pass: compute the encoded size of every list, which gives the offsets and the page sizes.
+        offsets = new long[numVertices + 1];
+        List<Integer> pageSizes = new ArrayList<>();
+        long[] position = {0};
+        long[] entries = {0};
+        source.forEachVertex((vertex, neighbours, degree) -> {
+            int size = encodedSize(vertex, neighbours, degree);
+            if (size > PAGE_SIZE) {
+                throw new IllegalArgumentException("Adjacency list of vertex " + vertex + " is larger than a page.");
+            }
+            long start = position[0];
+            if ((start & PAGE_MASK) + size > PAGE_SIZE) {
+                start = (start | PAGE_MASK) + 1; // Start the list on the next page.
+            }
+            while (pageSizes.size() < start >>> PAGE_BITS) { // Close the pages before the one the list starts on.
+                long pageStart = (long) pageSizes.size() << PAGE_BITS;
+                pageSizes.add((int) (Math.min(position[0], pageStart + PAGE_SIZE) - pageStart));
+            }
+            offsets[vertex] = start;
+            position[0] = start + size;
+            entries[0] += degree;
+        });
+        offsets[numVertices] = position[0];
+        pageSizes.add((int) (position[0] - ((long) pageSizes.size() << PAGE_BITS)));
+        numEntries = entries[0];
+        pages = new byte[pageSizes.size()][];
+        for (int p = 0; p < pages.length; p++) {
+            pages[p] = new byte[pageSizes.get(p)];
+        }
+        // Second pass: encode the lists.
+        source.forEachVertex((vertex, neighbours, degree) -> {
+            long offset = offsets[vertex];
+            encode(pages[(int) (offset >>> PAGE_BITS)], (int) (offset & PAGE_MASK), vertex, neighbours, degree);
+        });
+    }
+
+    /**
+     * Compress a CompactGraph. The adjacency lists are sorted while they are encoded; the CompactGraph is not changed.
+     * @param graph The graph to compress.
+     * @return The compressed graph.
+     */
+    public static CompressedGraph fromCompactGraph(CompactGraph graph) {
+        try {
+            return new CompressedGraph(graph.numberOfVertices(), visitor -> {
+                for (int v = 0; v < graph.numberOfVertices(); v++) {
+                    int[] neighbours = graph.neighbours(v);
+                    Arrays.sort(neighbours);
+                    visitor.visit(v, neighbours, neighbours.length);
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Cannot happen, nothing is read from a file.
+        }
+    }
+
+    /**
+     * Compress a graph stored on disk, streaming over its adjacency file twice. The adjacency lists are already
+     * sorted in the file, and only the compressed graph is held in memory, so this can load a graph that would not
+     * fit on the heap as a CompactGraph.
+     * @param graph The graph to compress.
+     * @return The compressed graph.
+     * @throws IOException If the adjacency file cannot be read.
+     */
+    public static CompressedGraph fromDiskGraph(DiskGraph graph) throws IOException {
+        return new CompressedGraph(graph.numberOfVertices(), graph::forEachVertex);
+    }
+
+    @Override
+    public int numberOfVertices() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return The number of edges, i.e. half the number of adjacency entries.
+     */
+    public long numberOfEdges() {
+        return numEntries / 2;
+    }
+
+    public int degree(int vertex) {
+        return iterator().reset(vertex).remaining;
+    }
+
+    /**
+     * @return A new iterator, to be positioned on a vertex with 'reset'.
+     */
+    public NeighbourIterator iterator() {
+        return new NeighbourIterator();
+    }
+
+    /**
+     * @param vertex An integer representing a vertex.
+     * @return The adjacency list of the vertex, in ascending order.
+     */
+    public int[] neighbours(int vertex) {
+        NeighbourIterator iterator = iterator().reset(vertex);
+        int[] neighbours = new int[iterator.remaining];
+        for (int i = 0; i < neighbours.length; i++) {
+            neighbours[i] = iterator.nextInt();
+        }
+        return neighbours;
+    }
+
+    /**
+     * @return The number of bytes used by the lists and the offsets.
+     */
+    public long sizeInBytes() {
+        long size = 8L * offsets.length;
+        for (byte[] page : pages) {
+            size += page.length;
+        }
+        return size;
+    }
+
+    /**
+     * Find the degrees of all vertices and count the number of vertices there are of a given degree. Only the degree
+     * at the start of every list is decoded. The map is filled in the same way as by CompactGraph.
+     * @return A map where keys are degrees and values are total number of vertices of that degree.
+     */
+    @Override
+    public Map<Integer, Integer> getDegreeDistribution() {
+        NeighbourIterator iterator = iterator();
+        return AnalysableGraph.toDegreeDistribution(
+                AnalysableGraph.countDegrees(numberOfVertices(), v -> iterator.reset(v).remaining));
+    }
+
+    /**
+     * Compute the number of connected components as well as their size (number of vertices) using an iterative
+     * depth first search, decoding the adjacency lists with a single reused iterator. Components are listed in the
+     * same order as CompactGraph.findConnectedComponents lists them, i.e. by the smallest vertex they contain.
+     * @return A list of integers representing component sizes.
+     */
+    @Override
+    public List<Integer> findConnectedComponents() {
+        List<Integer> components = new ArrayList<>();
+        boolean[] visited = new boolean[numberOfVertices()];
+        int[] stack = new int[numberOfVertices()];
+        NeighbourIterator iterator = iterator();
+        for (int i = 0; i < numberOfVertices(); i++) {
+            if (visited[i]) {
+                continue;
+            }
+            int top = 0;
+            int size = 0;
+            stack[top++] = i;
+            visited[i] = true;
+            while (top > 0) {
+                int v = stack[--top];
+                size++;
+                iterator.reset(v);
+                while (iterator.hasNext()) {
+                    int adjacent = iterator.nextInt();
+                    if (!visited[adjacent]) {
+                        visited[adjacent] = true;
+                        stack[top++] = adjacent; // Push any unvisited neighbours onto the stack.
+                    }
+                }
+            }
+            components.add(size);
+        }
+        return components;
+    }
+
+    /**
+     * @return The number of bytes needed to encode a sorted adjacency list.
+     */
+    private static int encodedSize(int vertex, int[] neighbours, int degree) {
+        int size = varintSize(degree);
+        if (degree > 0) {
+            size += varintSize(zigzag(neighbours[0] - vertex));
+            for (int i = 1; i < degree; i++) {
+                size += varintSize(neighbours[i] - neighbours[i - 1]);
+            }
+        }
+        return size;
+    }
+
+    private static void encode(byte[] page, int position, int vertex, int[] neighbours, int degree) {
+        position = writeVarint(page, position, degree);
+        if (degree > 0) {
+            position = writeVarint(page, position, zigzag(neighbours[0] - vertex));
+            for (int i = 1; i < degree; i++) {
+                position = writeVarint(page, position, neighbours[i] - neighbours[i - 1]);
+            }
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] page, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            page[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        page[position++] = (byte) value;
+        return position;
+    }
+}
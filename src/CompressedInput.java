@@ -0,0 +1,288 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Opens data files that may be compressed, so the overlap data does not have to be decompressed to disk first. Plain
+ * files are read as they are, gzip files are decompressed on the fly, and BGZF files (block gzip, as written by
+ * bgzip) are decompressed block by block on several threads.
+ *
+ * A BGZF file is a series of small, independent gzip members of at most 64 kB each, whose gzip header has an extra
+ * field 'BC' with the size of the block. This makes it possible to find the blocks without decompressing them, so
+ * one thread reads the compressed blocks in order while a thread pool inflates them, and the decompressed blocks are
+ * handed out in file order. Since a BGZF file is also a valid gzip file, any gzip tool can still read it.
+ */
+public class CompressedInput {
+
+    private static final int GZIP_MAGIC_1 = 0x1F;
+    private static final int GZIP_MAGIC_2 = 0x8B;
+    private static final int FLAG_EXTRA = 4;
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    /**
+     * Open a data file for reading lines. If the file does not exist but a gzip compressed version with the ".gz"
+     * suffix does, that one is opened instead.
+     * @param filename The name or location of the file.
+     * @return A buffered reader for the decompressed contents of the file.
+     * @throws IOException
+     */
+    public static BufferedReader openReader(String filename) throws IOException {
+        return new BufferedReader(new InputStreamReader(openStream(filename)), BUFFER_SIZE);
+    }
+
+    /**
+     * Open a data file for reading bytes, decompressing it if it is gzip or BGZF compressed. BGZF files are
+     * decompressed using as many threads as there are processors.
+     * @param filename The name or location of the file (or of the file without its ".gz" suffix).
+     * @return An input stream of the decompressed contents of the file.
+     * @throws IOException
+     */
+    public static InputStream openStream(String filename) throws IOException {
+        return openStream(filename, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param filename The name or location of the file (or of the file without its ".gz" suffix).
+     * @param numThreads The number of threads used to decompress BGZF files.
+     * @return An input stream of the decompressed contents of the file.
+     * @throws IOException
+     */
+    public static InputStream openStream(String filename, int numThreads) throws IOException {
+        File file = resolve(filename);
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        in.mark(32);
+        byte[] header = new byte[16];
+        int n = in.readNBytes(header, 0, header.length);
+        in.reset();
+        if (n >= 2 && (header[0] & 0xFF) == GZIP_MAGIC_1 && (header[1] & 0xFF) == GZIP_MAGIC_2) {
+            if (isBgzfHeader(header, n)) {
+                return new ParallelBgzfInputStream(in, numThreads);
+            }
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        return in;
+    }
+
+    /**
+     * @return True if the file (or its ".gz" version) starts with the gzip magic number.
+     */
+    public static boolean isCompressed(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(resolve(filename))) {
+            return in.read() == GZIP_MAGIC_1 && in.read() == GZIP_MAGIC_2;
+        }
+    }
+
+    /**
+     * Use filename.gz if filename does not exist.
+     */
+    static File resolve(String filename) {
+        File file = new File(filename);
+        if (!file.exists()) {
+            File compressed = new File(filename + ".gz");
+            if (compressed.exists()) {
+                return compressed;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Check if a gzip header has the BGZF extra field: FLG has FEXTRA set, and the first subfield is 'B' 'C' with a
+     * length of 2.
+     */
+    private static boolean isBgzfHeader(byte[] header, int length) {
+        return length >= 16 && (header[3] & FLAG_EXTRA) != 0
+                && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+    }
+
+    /**
+     * Input stream that decompresses a BGZF file with a thread pool. Compressed blocks are read in order on the
+     * calling thread and submitted for inflation, with a bounded number of blocks in flight, and the inflated blocks
+     * are returned in order.
+     */
+    static class ParallelBgzfInputStream extends InputStream {
+
+        private final InputStream in;
+        private final ExecutorService threadPool;
+        private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        private final int maxInFlight;
+        private boolean endOfInput = false;
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        ParallelBgzfInputStream(InputStream in, int numThreads) {
+            this.in = in;
+            this.threadPool = Executors.newFixedThreadPool(Math.max(1, numThreads), runnable -> {
+                Thread thread = new Thread(runnable, "bgzf-inflater");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.maxInFlight = Math.max(1, numThreads) * 4;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!ensureData()) {
+                return -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureData()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            threadPool.shutdownNow();
+            in.close();
+        }
+
+        /**
+         * Make sure there are bytes left in the current block, moving on to the next decompressed block if needed.
+         * @return False if the end of the file has been reached.
+         */
+        private boolean ensureData() throws IOException {
+            while (position == current.length) {
+                fill();
+                Future<byte[]> next = inFlight.poll();
+                if (next == null) {
+                    return false;
+                }
+                try {
+                    current = next.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while decompressing", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Failed to decompress block", e.getCause());
+                }
+                position = 0;
+            }
+            return true;
+        }
+
+        /**
+         * Read compressed blocks and submit them for inflation until enough blocks are in flight.
+         */
+        private void fill() throws IOException {
+            while (!endOfInput && inFlight.size() < maxInFlight) {
+                byte[] block = readBlock();
+                if (block == null) {
+                    endOfInput = true;
+                } else {
+                    inFlight.add(threadPool.submit(() -> inflate(block)));
+                }
+            }
+        }
+
+        /**
+         * Read one whole BGZF block (header, compressed data and trailer).
+         * @return The block, or null at the end of the file.
+         */
+        private byte[] readBlock() throws IOException {
+            byte[] header = new byte[18];
+            int n = in.readNBytes(header, 0, 12);
+            if (n == 0) {
+                return null;
+            }
+            if (n < 12 || (header[0] & 0xFF) != GZIP_MAGIC_1 || (header[1] & 0xFF) != GZIP_MAGIC_2
+                    || (header[3] & FLAG_EXTRA) == 0) {
+                throw new IOException("Invalid BGZF block header.");
+            }
+            int extraLength = (header[10] & 0xFF) | (header[11] & 0xFF) << 8;
+            byte[] extra = in.readNBytes(extraLength);
+            if (extra.length < extraLength) {
+                throw new EOFException("Truncated BGZF block header.");
+            }
+            int blockSize = -1;
+            for (int i = 0; i + 4 <= extraLength; ) { // Look for the 'BC' subfield among the extra subfields.
+                int subfieldLength = (extra[i + 2] & 0xFF) | (extra[i + 3] & 0xFF) << 8;
+                if (extra[i] == 'B' && extra[i + 1] == 'C' && subfieldLength == 2) {
+                    blockSize = ((extra[i + 4] & 0xFF) | (extra[i + 5] & 0xFF) << 8) + 1;
+                }
+                i += 4 + subfieldLength;
+            }
+            if (blockSize < 0) {
+                throw new IOException("BGZF block without a BC field.");
+            }
+            byte[] block = new byte[blockSize];
+            System.arraycopy(header, 0, block, 0, 12);
+            System.arraycopy(extra, 0, block, 12, extraLength);
+            int remaining = blockSize - 12 - extraLength;
+            if (in.readNBytes(block, 12 + extraLength, remaining) < remaining) {
+                throw new EOFException("Truncated BGZF block.");
+            }
+            return block;
+        }
+
+        /**
+         * Inflate the compressed data of a block and check it against the CRC32 and size in the trailer.
+         */
+        private static byte[] inflate(byte[] block) throws IOException {
+            int extraLength = (block[10] & 0xFF) | (block[11] & 0xFF) << 8;
+            int dataStart = 12 + extraLength;
+            int dataLength = block.length - dataStart - 8;
+            int expectedCrc = readIntLE(block, block.length - 8);
+            int size = readIntLE(block, block.length - 4);
+            byte[] out = new byte[size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(block, dataStart, dataLength);
+                int done = 0;
+                while (done < size && !inflater.finished()) {
+                    int n = inflater.inflate(out, done, size - done);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    done += n;
+                }
+                if (done != size) {
+                    throw new IOException("BGZF block decompressed to " + done + " bytes, expected " + size + ".");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt BGZF block.", e);
+            } finally {
+                inflater.end();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out);
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("CRC mismatch in BGZF block.");
+            }
+            return out;
+        }
+
+        private static int readIntLE(byte[] b, int i) {
+            return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lock-free union-find (disjoint-set) structure over a primitive int array, intended to be shared by many threads
+ * that add edges concurrently. Each vertex starts in its own set. Roots are only ever changed with a compare-and-set
+ * from 'parent of root is root itself' to 'parent is another root', and path halving only ever replaces a parent
+ * with a grandparent, so concurrent unions and finds never lose a merge.
+ *
+ * When two sets are merged, the root with the larger index is linked below the root with the smaller index. The root
+ * of each set is therefore always its smallest vertex, which makes the component order of 'componentSizes' the same
+ * as the order of Graph.findConnectedComponents.
+ */
+public class ConcurrentUnionFind {
+
+    private static final VarHandle PARENT = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private int[] parent; // May be longer than numVertices after 'grow'.
+    private int numVertices;
+
+    /**
+     * @param numVertices The number of vertices, each of which starts out as its own component.
+     */
+    public ConcurrentUnionFind(int numVertices) {
+        parent = new int[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+            parent[i] = i;
+        }
+        this.numVertices = numVertices;
+    }
+
+    /**
+     * Restore a structure from the parent array of another one (see 'parents').
+     * @param parent The parent of every vertex.
+     */
+    ConcurrentUnionFind(int[] parent) {
+        this.parent = parent;
+        this.numVertices = parent.length;
+    }
+
+    /**
+     * Add new vertices, each in its own component. Unlike 'union' and 'find', this must not be called while other
+     * threads use the structure.
+     * @param numVertices The new number of vertices. Nothing happens if it is not larger than the current one.
+     */
+    public void grow(int numVertices) {
+        if (numVertices <= this.numVertices) {
+            return;
+        }
+        if (numVertices > parent.length) { // Grow the array by at least half, so adding vertices one by one is cheap.
+            int oldLength = parent.length;
+            parent = Arrays.copyOf(parent, Math.max(numVertices, oldLength + (oldLength >> 1)));
+            for (int i = oldLength; i < parent.length; i++) {
+                parent[i] = i;
+            }
+        }
+        this.numVertices = numVertices;
+    }
+
+    /**
+     * @return A copy of the parent array, with every vertex pointing directly to its root. Can be passed to the
+     * package-private constructor to restore the structure.
+     */
+    int[] parents() {
+        int[] roots = new int[numVertices];
+        for (int v = 0; v < numVertices; v++) {
+            roots[v] = find(v);
+        }
+        return roots;
+    }
+
+    public int numberOfVertices() {
+        return numVertices;
+    }
+
+    /**
+     * Find the root (representative) of the set containing a vertex, halving the path to the root on the way.
+     * @param vertex An integer representing a vertex.
+     * @return The root of the set, which is also the smallest vertex in the set.
+     */
+    public int find(int vertex) {
+        int v = vertex;
+        while (true) {
+            int p = (int) PARENT.getVolatile(parent, v);
+            if (p == v) {
+                return v;
+            }
+            int gp = (int) PARENT.getVolatile(parent, p);
+            if (p != gp) {
+                PARENT.compareAndSet(parent, v, p, gp); // Path halving; failing is harmless.
+            }
+            v = p;
+        }
+    }
+
+    /**
+     * Merge the sets containing two vertices, i.e. add an edge between them. Safe to call from several threads.
+     * @param v1 An integer representing the first vertex.
+     * @param v2 An integer representing the second vertex.
+     */
+    public void union(int v1, int v2) {
+        while (true) {
+            int r1 = find(v1);
+            int r2 = find(v2);
+            if (r1 == r2) {
+                return;
+            }
+            if (r1 < r2) { // Always link the larger root below the smaller one.
+                int tmp = r1;
+                r1 = r2;
+                r2 = tmp;
+            }
+            if (PARENT.compareAndSet(parent, r1, r1, r2)) {
+                return;
+            }
+            // Another thread linked r1 somewhere in the meantime, try again from the new roots.
+        }
+    }
+
+    /**
+     * Compute the size of every component. This should only be called once all unions have finished.
+     * @return A list of integers representing component sizes, ordered by the smallest vertex of each component.
+     */
+    public List<Integer> componentSizes() {
+        int[] counts = new int[numVertices];
+        for (int v = 0; v < numVertices; v++) {
+            counts[find(v)]++;
+        }
+        List<Integer> components = new ArrayList<>();
+        for (int v = 0; v < numVertices; v++) {
+            if (parent[v] == v) {
+                components.add(counts[v]);
+            }
+        }
+        return components;
+    }
+}
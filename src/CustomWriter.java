@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Handles printing progress and durations of tests to the standard output stream, and contains methods for writing
@@ -72,30 +71,13 @@ public class CustomWriter {
     }
 
     /**
-     * Print and update a progress bar in standard output stream. Just to have a nice visual representation of
-     * how far a test has progressed. Looks like this: [...        ]
-     * @param progressPercentage A double between 0 and 1 represeting the progress percentage.
+     * Print the amount of heap memory currently in use to the standard output stream. Garbage collection is
+     * requested first so that the number reflects live objects (e.g. a graph) rather than garbage from parsing.
      */
-    public static void updateProgress(double progressPercentage) {
-        final int width = 50;
-        System.out.print("\r[");
-        int i = 0;
-        for (; i < (int) (progressPercentage * width); i++) {
-            System.out.print(".");
-        }
-        for (; i < width; i++) {
-            System.out.print(" ");
-        }
-        System.out.print("]");
-    }
-
-    /**
-     * Print the time elapsed to the standard output stream.
-     * @param start A long representing the start time in nanoseconds.
-     * @param end A long representing the end time in nanoseconds.
-     */
-    public static void testDuration(long start, long end) {
-        long duration = TimeUnit.NANOSECONDS.toMillis(end - start);
-        System.out.println("Time elapsed: " + duration + " milliseconds.");
+    public static void printHeapUsage() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        System.out.println("Heap in use: " + (used / (1024 * 1024)) + " MB.");
     }
 }
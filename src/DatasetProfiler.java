@@ -0,0 +1,481 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Quick, approximate profile of an overlap data set, to judge its size before running the exact pipeline of Main.
+ * Every chunk is read once, in parallel, and summarised into sketches of a fixed size. Every thread has one set of
+ * sketches for a fixed share of the chunks (every numThreads:th chunk), and the sets are merged in thread order at the
+ * end, so memory use depends on the number of threads but not on the size of the data set, and the result is the
+ * same on every run:
+ * <ul>
+ *   <li>the filter rate: the fraction of lines an OverlapFilter rejects (by default the containments removed by
+ *   FilteredCopyTask), per rule;</li>
+ *   <li>the number of distinct contigs in the lines that pass the filter, i.e. the vertices of the graph, with a
+ *   HyperLogLog sketch;</li>
+ *   <li>the top hubs, with a Count-Min sketch of the degrees and a list of the heaviest contigs seen so far;</li>
+ *   <li>the degree distribution, from the exact degrees of a sample of the contigs. A contig is in the sample if its
+ *   hash is below a threshold, so either all or none of its edges are counted. When the sample is full the threshold
+ *   is halved. (Count-Min estimates are only accurate for the hubs; for the typical contig the error would be larger
+ *   than its degree.)</li>
+ * </ul>
+ * The lines are parsed with M4Reader and the contigs hashed directly from the bytes, so apart from the names of the
+ * hubs no Strings are created.
+ */
+public class DatasetProfiler {
+
+    private static final int HLL_PRECISION = 14; // 2^14 registers, a standard error of about 0.8%.
+    private static final int CMS_DEPTH = 4;
+    private static final int CMS_WIDTH_BITS = 18;
+    private static final int NUM_HUBS = 50;
+    private static final int SAMPLE_CAPACITY = 1 << 16;
+
+    /**
+     * 64 bit hash of a byte sequence: FNV-1a followed by the finalizer of MurmurHash3, so all bits are well mixed.
+     */
+    static long hash64(byte[] bytes, int offset, int length) {
+        long h = 0xCBF29CE484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ (bytes[i] & 0xFF)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * HyperLogLog sketch of the number of distinct hashes added to it.
+     */
+    static final class HyperLogLog {
+        private final byte[] registers = new byte[1 << HLL_PRECISION];
+
+        void add(long hash) {
+            int register = (int) (hash >>> (64 - HLL_PRECISION));
+            // Position of the first 1 bit among the remaining bits, counting from 1.
+            int rank = Long.numberOfLeadingZeros((hash << HLL_PRECISION) | (1L << (HLL_PRECISION - 1))) + 1;
+            if (rank > registers[register]) {
+                registers[register] = (byte) rank;
+            }
+        }
+
+        void merge(HyperLogLog other) {
+            for (int i = 0; i < registers.length; i++) {
+                registers[i] = (byte) Math.max(registers[i], other.registers[i]);
+            }
+        }
+
+        long estimate() {
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += Math.scalb(1.0, -register);
+                if (register == 0) {
+                    zeros++;
+                }
+            }
+            double alpha = 0.7213 / (1 + 1.079 / m);
+            double estimate = alpha * m * m / sum;
+            if (estimate <= 2.5 * m && zeros > 0) {
+                estimate = m * Math.log((double) m / zeros); // Linear counting for small cardinalities.
+            }
+            return Math.round(estimate);
+        }
+    }
+
+    /**
+     * Count-Min sketch of how often every hash has been added. Estimates are never too small, and too large by at
+     * most a small fraction of the total count (with high probability).
+     */
+    static final class CountMinSketch {
+        private final int[][] counts = new int[CMS_DEPTH][1 << CMS_WIDTH_BITS];
+
+        /**
+         * Add one to the count of a hash.
+         * @return The new estimate of the count.
+         */
+        int add(long hash) {
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < CMS_DEPTH; row++) {
+                int[] rowCounts = counts[row];
+                int column = column(hash, row);
+                estimate = Math.min(estimate, ++rowCounts[column]);
+            }
+            return estimate;
+        }
+
+        int estimate(long hash) {
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < CMS_DEPTH; row++) {
+                estimate = Math.min(estimate, counts[row][column(hash, row)]);
+            }
+            return estimate;
+        }
+
+        void merge(CountMinSketch other) {
+            for (int row = 0; row < CMS_DEPTH; row++) {
+                for (int i = 0; i < counts[row].length; i++) {
+                    counts[row][i] += other.counts[row][i];
+                }
+            }
+        }
+
+        /**
+         * The rows use the hash functions h1 + row * h2, where h1 and h2 are the two halves of the hash.
+         */
+        private static int column(long hash, int row) {
+            int h = (int) hash + row * (int) (hash >>> 32);
+            return h & ((1 << CMS_WIDTH_BITS) - 1);
+        }
+    }
+
+    /**
+     * The contigs with the highest Count-Min estimates seen so far, at most NUM_HUBS of them.
+     */
+    static final class HeavyHitters {
+        private final long[] hashes = new long[NUM_HUBS];
+        private final String[] names = new String[NUM_HUBS];
+        private final int[] estimates = new int[NUM_HUBS];
+        private int size = 0;
+        private int minimum = 0; // Smallest estimate in the list once it is full.
+
+        /**
+         * Offer a contig with its current estimate. Its name is only created if it enters the list.
+         */
+        void offer(long hash, int estimate, byte[] bytes, int offset, int length) {
+            if (size == NUM_HUBS && estimate <= minimum) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                if (hashes[i] == hash) {
+                    estimates[i] = Math.max(estimates[i], estimate);
+                    updateMinimum();
+                    return;
+                }
+            }
+            put(hash, new String(bytes, offset, length, StandardCharsets.ISO_8859_1), estimate);
+        }
+
+        private void put(long hash, String name, int estimate) {
+            int slot = size;
+            if (size == NUM_HUBS) {
+                slot = 0;
+                for (int i = 1; i < size; i++) {
+                    if (estimates[i] < estimates[slot]) {
+                        slot = i;
+                    }
+                }
+            } else {
+                size++;
+            }
+            hashes[slot] = hash;
+            names[slot] = name;
+            estimates[slot] = estimate;
+            updateMinimum();
+        }
+
+        private void updateMinimum() {
+            if (size == NUM_HUBS) {
+                minimum = Integer.MAX_VALUE;
+                for (int i = 0; i < size; i++) {
+                    minimum = Math.min(minimum, estimates[i]);
+                }
+            }
+        }
+
+        /**
+         * Merge the candidates of another list, re-estimating all of them with the merged Count-Min sketch.
+         */
+        void merge(HeavyHitters other, CountMinSketch sketch) {
+            long[] allHashes = Arrays.copyOf(hashes, size + other.size);
+            String[] allNames = Arrays.copyOf(names, size + other.size);
+            int n = size;
+            outer:
+            for (int j = 0; j < other.size; j++) {
+                for (int i = 0; i < size; i++) {
+                    if (hashes[i] == other.hashes[j]) {
+                        continue outer;
+                    }
+                }
+                allHashes[n] = other.hashes[j];
+                allNames[n++] = other.names[j];
+            }
+            size = 0;
+            minimum = 0;
+            for (int i = 0; i < n; i++) {
+                int estimate = sketch.estimate(allHashes[i]);
+                if (size < NUM_HUBS || estimate > minimum) {
+                    put(allHashes[i], allNames[i], estimate);
+                }
+            }
+        }
+
+        /**
+         * @return The hubs and their estimated degrees, highest degree first.
+         */
+        List<Map.Entry<String, Integer>> hubs() {
+            List<Map.Entry<String, Integer>> hubs = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                hubs.add(Map.entry(names[i], estimates[i]));
+            }
+            hubs.sort((a, b) -> b.getValue() - a.getValue());
+            return hubs;
+        }
+    }
+
+    /**
+     * Exact degrees of the contigs whose hash has 'level' leading zero bits, an open addressing table of at most
+     * SAMPLE_CAPACITY contigs. When it is full, the level is increased, which keeps about half of the contigs.
+     */
+    static final class DegreeSample {
+        private long[] keys = new long[2 * SAMPLE_CAPACITY];
+        private int[] degrees = new int[2 * SAMPLE_CAPACITY];
+        private boolean[] used = new boolean[2 * SAMPLE_CAPACITY];
+        private int size = 0;
+        private int level = 0;
+
+        private boolean sampled(long hash, int level) {
+            return level == 0 || (hash >>> (64 - level)) == 0;
+        }
+
+        void add(long hash) {
+            add(hash, 1);
+        }
+
+        private void add(long hash, int count) {
+            if (!sampled(hash, level)) {
+                return;
+            }
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask; // The low bits are independent of the leading bits used for sampling.
+            while (used[slot] && keys[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            if (!used[slot]) {
+                used[slot] = true;
+                keys[slot] = hash;
+                size++;
+            }
+            degrees[slot] += count;
+            while (size > SAMPLE_CAPACITY) {
+                rebuild(level + 1);
+            }
+        }
+
+        /**
+         * Keep only the contigs of a higher level.
+         */
+        private void rebuild(int newLevel) {
+            long[] oldKeys = keys;
+            int[] oldDegrees = degrees;
+            boolean[] oldUsed = used;
+            keys = new long[oldKeys.length];
+            degrees = new int[oldKeys.length];
+            used = new boolean[oldKeys.length];
+            size = 0;
+            level = newLevel;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i] && sampled(oldKeys[i], level)) {
+                    add(oldKeys[i], oldDegrees[i]);
+                }
+            }
+        }
+
+        void merge(DegreeSample other) {
+            if (other.level > level) {
+                rebuild(other.level);
+            }
+            for (int i = 0; i < other.keys.length; i++) {
+                if (other.used[i]) {
+                    add(other.keys[i], other.degrees[i]);
+                }
+            }
+        }
+
+        /**
+         * @return The estimated number of contigs of every degree: the sampled counts scaled by 2^level.
+         */
+        Map<Integer, Long> degreeDistribution() {
+            Map<Integer, Long> distribution = new TreeMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                if (used[i]) {
+                    distribution.merge(degrees[i], 1L << level, Long::sum);
+                }
+            }
+            return distribution;
+        }
+    }
+
+    /**
+     * The sketches of one or more files.
+     */
+    static final class Profile {
+        long lines = 0;
+        final long[] rejections;
+        final HyperLogLog contigs = new HyperLogLog();
+        final CountMinSketch degrees = new CountMinSketch();
+        final HeavyHitters hubs = new HeavyHitters();
+        final DegreeSample sample = new DegreeSample();
+
+        Profile(int numRules) {
+            rejections = new long[numRules];
+        }
+
+        void addContig(byte[] bytes, int offset, int length) {
+            long hash = hash64(bytes, offset, length);
+            contigs.add(hash);
+            hubs.offer(hash, degrees.add(hash), bytes, offset, length);
+            sample.add(hash);
+        }
+
+        Profile merge(Profile other) {
+            lines += other.lines;
+            for (int i = 0; i < rejections.length; i++) {
+                rejections[i] += other.rejections[i];
+            }
+            contigs.merge(other.contigs);
+            degrees.merge(other.degrees);
+            hubs.merge(other.hubs, degrees);
+            sample.merge(other.sample);
+            return this;
+        }
+
+        long edges() {
+            long edges = lines;
+            for (long rejected : rejections) {
+                edges -= rejected;
+            }
+            return edges;
+        }
+    }
+
+    private final String chunkPrefix;
+    private final int numChunks;
+    private final int numThreads;
+
+    /**
+     * @param chunkPrefix The location and name prefix of the chunk files, e.g. "res/splits/chunk".
+     * @param numChunks The number of chunk files.
+     * @param numThreads The number of threads to read the chunks with.
+     */
+    public DatasetProfiler(String chunkPrefix, int numChunks, int numThreads) {
+        this.chunkPrefix = chunkPrefix;
+        this.numChunks = numChunks;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Read every chunk once and merge the sketches of all chunks.
+     * @param filter The filter whose rejection rate is estimated; the lines it accepts are the edges of the graph.
+     * @return The merged sketches.
+     * @throws IOException If any of the chunks cannot be read.
+     */
+    Profile profile(OverlapFilter filter) throws IOException {
+        List<Future<Profile>> futures = new ArrayList<>();
+        ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int t = 0; t < numThreads; t++) {
+                int first = t;
+                futures.add(threadPool.submit(() -> {
+                    Profile profile = new Profile(filter.numberOfRules());
+                    for (int fileIndex = first; fileIndex < numChunks; fileIndex += numThreads) {
+                        profileChunk(chunkPrefix + String.format("%04d", fileIndex), filter, profile);
+                    }
+                    return profile;
+                }));
+            }
+            Profile merged = futures.get(0).get();
+            for (int t = 1; t < numThreads; t++) {
+                merged.merge(futures.get(t).get());
+            }
+            return merged;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while profiling " + chunkPrefix, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to profile " + chunkPrefix, e.getCause());
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Add the lines of a chunk to a profile.
+     */
+    private static void profileChunk(String filename, OverlapFilter filter, Profile profile) throws IOException {
+        long start = System.nanoTime();
+        long linesBefore = profile.lines;
+        File file = CompressedInput.resolve(filename);
+        M4Reader.read(file.getPath(), line -> {
+            profile.lines++;
+            int rule = filter.reject(line);
+            if (rule != OverlapFilter.ACCEPTED) {
+                profile.rejections[rule]++;
+                return;
+            }
+            profile.addContig(line.buffer(), line.fieldStart(0), line.fieldLength(0));
+            profile.addContig(line.buffer(), line.fieldStart(1), line.fieldLength(1));
+        });
+        RunReport.recordChunk(file.getName(), profile.lines - linesBefore, file.length(), System.nanoTime() - start);
+    }
+
+    /**
+     * Profile the data set and print the estimates. The estimated degree distribution is also written to the results
+     * folder.
+     * @param filter The filter whose rejection rate is estimated.
+     * @throws IOException If any of the chunks cannot be read.
+     */
+    public void run(OverlapFilter filter) throws IOException {
+        RunReport.beginStage("profile");
+        Profile profile = profile(filter);
+        RunReport.endStage();
+
+        System.out.println("Lines: " + profile.lines);
+        for (int i = 0; i < filter.numberOfRules(); i++) {
+            System.out.println(String.format("Rejected by '%s': %d (%.2f%%)", filter.ruleName(i),
+                    profile.rejections[i], 100.0 * profile.rejections[i] / Math.max(1, profile.lines)));
+        }
+        System.out.println("Edges (lines that pass the filter): " + profile.edges());
+        System.out.println("Estimated distinct contigs (vertices): " + profile.contigs.estimate());
+        System.out.println("--------------------");
+        System.out.println("Estimated top " + NUM_HUBS + " hubs -- (contig):(degree, at most "
+                + String.format("%.0f", Math.E / (1 << CMS_WIDTH_BITS) * 2 * profile.edges()) + " too high):");
+        for (Map.Entry<String, Integer> hub : profile.hubs.hubs()) {
+            System.out.println(hub.getKey() + ":" + hub.getValue());
+        }
+        System.out.println("--------------------");
+        Map<Integer, Long> degrees = profile.sample.degreeDistribution();
+        System.out.println("Estimated degree distribution from a 1/" + (1L << profile.sample.level)
+                + " sample of the contigs, written to degreeFrequenciesEstimate.txt.");
+        CustomWriter.writeMapToFile(degrees, "degreeFrequenciesEstimate",
+                "Estimated degree frequencies -- (degree):(vertex count) -- " + degrees.size() + " entries.");
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Profile the unfiltered chunks before running the filter and Main. '--filter FILE' estimates the rejection
+        // rate of the rules in FILE instead of only the containments (see OverlapFilter).
+        OverlapFilter filter = OverlapFilter.containment();
+        if (args.length >= 2 && args[0].equals("--filter")) {
+            filter = OverlapFilter.load(args[1]);
+        }
+        DatasetProfiler profiler = new DatasetProfiler("res/splits/chunk", 641,
+                Runtime.getRuntime().availableProcessors());
+        profiler.run(filter);
+        RunReport.write("res/results/profileReport.json");
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Removes edges touching repeat 'hub' vertices before they are added to a graph. Because the spruce genome is very
+ * repetitive, a small number of contigs overlap with a huge number of other contigs, and these edges carry little
+ * useful information while taking up most of the memory and traversal time. The degrees of all vertices are counted
+ * in a cheap first pass (see LineParser.countDegrees), and every edge with an endpoint of degree above a cap is
+ * dropped. The hub vertices themselves are kept (as isolated vertices) so that the indexing does not change.
+ */
+public class DegreePruner {
+
+    private final int[] degrees;
+    private final int maxDegree;
+    private long keptEdges;
+    private long prunedEdges;
+
+    /**
+     * @param degrees The degree of every vertex in the unpruned graph, indexed by vertex.
+     * @param maxDegree Edges touching a vertex of a higher degree than this are pruned.
+     */
+    public DegreePruner(int[] degrees, int maxDegree) {
+        this.degrees = degrees;
+        this.maxDegree = maxDegree;
+    }
+
+    /**
+     * Create a pruner that removes the vertices above a percentile of the degree distribution, e.g. 99.9 to prune
+     * edges touching the 0.1 % of vertices with the highest degrees.
+     * @param degrees The degree of every vertex in the unpruned graph, indexed by vertex.
+     * @param percentile A number between 0 and 100.
+     * @return A pruner with the degree at the given percentile as its cap.
+     */
+    public static DegreePruner fromPercentile(int[] degrees, double percentile) {
+        return new DegreePruner(degrees, degreeAtPercentile(degrees, percentile));
+    }
+
+    /**
+     * Find the smallest degree such that at least the given percentage of vertices have at most that degree. A
+     * counting sort is used since degrees are small integers.
+     */
+    static int degreeAtPercentile(int[] degrees, double percentile) {
+        int max = 0;
+        for (int degree : degrees) {
+            max = Math.max(max, degree);
+        }
+        long[] counts = new long[max + 1];
+        for (int degree : degrees) {
+            counts[degree]++;
+        }
+        long target = (long) Math.ceil(degrees.length * percentile / 100.0);
+        long seen = 0;
+        for (int degree = 0; degree <= max; degree++) {
+            seen += counts[degree];
+            if (seen >= target) {
+                return degree;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Decide if an edge should be kept, and count the decision.
+     * @param v1 An integer representing the first vertex.
+     * @param v2 An integer representing the second vertex.
+     * @return True if neither vertex is a hub.
+     */
+    public boolean keep(int v1, int v2) {
+        if (degrees[v1] > maxDegree || degrees[v2] > maxDegree) {
+            prunedEdges++;
+            return false;
+        }
+        keptEdges++;
+        return true;
+    }
+
+    public int getMaxDegree() {
+        return maxDegree;
+    }
+
+    public long getKeptEdges() {
+        return keptEdges;
+    }
+
+    public long getPrunedEdges() {
+        return prunedEdges;
+    }
+
+    /**
+     * @return The number of hub vertices, i.e. vertices with a degree above the cap.
+     */
+    public int getPrunedVertices() {
+        int count = 0;
+        for (int degree : degrees) {
+            if (degree > maxDegree) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Print how many edges and vertices were pruned to the standard output stream.
+     */
+    public void printReport() {
+        long total = keptEdges + prunedEdges;
+        System.out.println("Degree cap: " + maxDegree);
+        System.out.println("Hub vertices pruned: " + getPrunedVertices() + " of " + degrees.length
+                + " (kept as isolated vertices).");
+        System.out.println("Edges pruned: " + prunedEdges + " of " + total + " ("
+                + String.format("%.2f", total == 0 ? 0.0 : 100.0 * prunedEdges / total) + " %).");
+    }
+}
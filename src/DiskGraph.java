@@ -0,0 +1,185 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Undirected graph whose adjacency lists are stored in a file instead of on the heap, as built by
+ * ExternalGraphBuilder. Only the degree of every vertex is kept in memory; the analyses stream over the adjacency
+ * lists in vertex order, so they work for graphs that are larger than the heap. The degree distribution and the
+ * connected components are the same as those of a CompactGraph with the same edges.
+ *
+ * Layout (all numbers big endian):
+ * <pre>
+ *   magic "GRAPHEXT" (8 bytes), version (int)
+ *   number of vertices V (int), number of adjacency entries E (long)
+ *   adjacency lists (E ints), in vertex order and sorted within each list
+ *   degrees (V ints)
+ * </pre>
+ */
+public class DiskGraph implements AnalysableGraph {
+
+    private static final byte[] MAGIC = "GRAPHEXT".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8 + 4 + 4 + 8;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final String filename;
+    private final int[] degrees;
+    private final long numEntries;
+
+    /**
+     * Visits the adjacency lists of a DiskGraph.
+     */
+    public interface AdjacencyVisitor {
+        /**
+         * @param vertex An integer representing a vertex.
+         * @param neighbours A buffer holding the neighbours of the vertex. It is reused for the next vertex.
+         * @param degree The number of neighbours in the buffer.
+         */
+        void visit(int vertex, int[] neighbours, int degree);
+    }
+
+    private DiskGraph(String filename, int[] degrees, long numEntries) {
+        this.filename = filename;
+        this.degrees = degrees;
+        this.numEntries = numEntries;
+    }
+
+    static void writeHeader(DataOutputStream out, int numVertices, long numEntries) throws IOException {
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numVertices);
+        out.writeLong(numEntries);
+    }
+
+    /**
+     * Fill in the number of adjacency entries of a file once it is known. This is the last write to the file, so the
+     * whole file is forced to disk before returning, and can then be moved into place.
+     */
+    static void patchNumberOfEntries(Path file, long numEntries) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            buffer.putLong(numEntries).flip();
+            channel.write(buffer, HEADER_SIZE - 8);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Open an adjacency file and read the degrees of its vertices.
+     * @param filename The name or location of the file.
+     * @return The graph.
+     * @throws IOException If the file cannot be read or is not an adjacency file of a supported version.
+     */
+    public static DiskGraph open(String filename) throws IOException {
+        Path path = Paths.get(filename);
+        long size = Files.size(path);
+        int numVertices;
+        long numEntries;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(filename + " is not an adjacency file.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported adjacency file version " + version + " in " + filename + ".");
+            }
+            numVertices = in.readInt();
+            numEntries = in.readLong();
+        }
+        if (HEADER_SIZE + 4 * numEntries + 4L * numVertices != size) {
+            throw new IOException("Adjacency file " + filename + " is truncated or has trailing data.");
+        }
+        int[] degrees = new int[numVertices];
+        try (InputStream file = Files.newInputStream(path)) {
+            file.skipNBytes(HEADER_SIZE + 4 * numEntries);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE));
+            for (int v = 0; v < numVertices; v++) {
+                degrees[v] = in.readInt();
+            }
+        }
+        return new DiskGraph(filename, degrees, numEntries);
+    }
+
+    @Override
+    public int numberOfVertices() {
+        return degrees.length;
+    }
+
+    /**
+     * @return The number of edges, i.e. half the number of adjacency entries.
+     */
+    public long numberOfEdges() {
+        return numEntries / 2;
+    }
+
+    public int degree(int vertex) {
+        return degrees[vertex];
+    }
+
+    /**
+     * Read the adjacency lists from the file in vertex order and pass each to a visitor.
+     * @param visitor The visitor.
+     * @throws IOException If the file cannot be read.
+     */
+    public void forEachVertex(AdjacencyVisitor visitor) throws IOException {
+        int maxDegree = 0;
+        for (int degree : degrees) {
+            maxDegree = Math.max(maxDegree, degree);
+        }
+        int[] neighbours = new int[maxDegree];
+        try (InputStream file = Files.newInputStream(Paths.get(filename))) {
+            file.skipNBytes(HEADER_SIZE);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE));
+            for (int v = 0; v < degrees.length; v++) {
+                for (int i = 0; i < degrees[v]; i++) {
+                    neighbours[i] = in.readInt();
+                }
+                visitor.visit(v, neighbours, degrees[v]);
+            }
+        }
+    }
+
+    /**
+     * Get the degree distribution, from the degrees alone. The map is filled in the same way as by
+     * CompactGraph.getDegreeDistribution.
+     * @return A map where keys are degrees and values are total number of vertices of that degree.
+     */
+    @Override
+    public Map<Integer, Integer> getDegreeDistribution() {
+        return AnalysableGraph.toDegreeDistribution(AnalysableGraph.countDegrees(degrees.length, v -> degrees[v]));
+    }
+
+    /**
+     * Find the connected components with one pass over the adjacency lists, merging every edge into a union-find
+     * structure. Only O(vertices) memory is needed.
+     * @return A list of component sizes, in the same order as CompactGraph.findConnectedComponents.
+     * @throws IOException If the file cannot be read.
+     */
+    @Override
+    public List<Integer> findConnectedComponents() throws IOException {
+        ConcurrentUnionFind components = new ConcurrentUnionFind(degrees.length);
+        forEachVertex((vertex, neighbours, degree) -> {
+            for (int i = 0; i < degree; i++) {
+                if (neighbours[i] > vertex) { // Every edge is stored in both directions, one union is enough.
+                    components.union(vertex, neighbours[i]);
+                }
+            }
+        });
+        return components.componentSizes();
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * Growable list of edges where each edge is packed into a single primitive long: the first vertex in the upper
+ * 32 bits and the second vertex in the lower 32 bits. Used as an intermediate storage when reading edges from the
+ * data files, so that an immutable graph can be built from it afterwards without boxing every vertex integer.
+ */
+public class EdgeList {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private long[] edges;
+    private int size;
+
+    public EdgeList() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity The number of edges to allocate memory for before the list needs to resize.
+     */
+    public EdgeList(int initialCapacity) {
+        edges = new long[Math.max(initialCapacity, 1)];
+        size = 0;
+    }
+
+    /**
+     * Append an edge between two vertices to the list.
+     * @param v1 An integer representing the first vertex.
+     * @param v2 An integer representing the second vertex.
+     */
+    public void add(int v1, int v2) {
+        if (size == edges.length) {
+            // Grow by 50% rather than doubling; the edge list is typically the largest array on the heap.
+            edges = Arrays.copyOf(edges, edges.length + (edges.length >> 1) + 1);
+        }
+        edges[size++] = pack(v1, v2);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int source(int i) {
+        return (int) (edges[i] >>> 32);
+    }
+
+    public int target(int i) {
+        return (int) edges[i];
+    }
+
+    /**
+     * Remove self-loops and duplicate edges. Every edge is first rewritten as (smaller vertex, larger vertex), so that
+     * A-B and B-A become the same long, and the packed edges are then sorted with a parallel radix sort so that
+     * duplicates end up next to each other. Afterwards the list is sorted, which also means that a CompactGraph built
+     * from it has every adjacency list in ascending order.
+     * @param numThreads The number of threads to sort with.
+     */
+    public void deduplicate(int numThreads) {
+        for (int i = 0; i < size; i++) {
+            int v1 = source(i);
+            int v2 = target(i);
+            edges[i] = v1 <= v2 ? pack(v1, v2) : pack(v2, v1);
+        }
+        RadixSort.sort(edges, size, numThreads);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            long edge = edges[i];
+            boolean selfLoop = (int) (edge >>> 32) == (int) edge;
+            if (!selfLoop && (unique == 0 || edges[unique - 1] != edge)) {
+                edges[unique++] = edge;
+            }
+        }
+        size = unique;
+    }
+
+    /**
+     * Pack two vertices into a single long, the first vertex in the upper 32 bits.
+     */
+    public static long pack(int v1, int v2) {
+        return ((long) v1 << 32) | (v2 & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a DiskGraph within a fixed memory budget, for data sets whose graph does not fit on the heap. Edges are
+ * collected in a buffer of packed longs (both directions of every edge, the source in the upper 32 bits). When the
+ * buffer is full it is sorted with RadixSort and written to a temporary 'run' file. When all edges have been added,
+ * the runs are merged with a k-way merge (a priority queue of the smallest remaining edge of every run) into the
+ * adjacency file of the DiskGraph, where the adjacency lists follow each other in vertex order.
+ *
+ * Apart from the buffer, only O(vertices) memory is used: the degree of every vertex, which is written at the end of
+ * the adjacency file. If there are more runs than can be merged at once, groups of runs are first merged into larger
+ * runs.
+ */
+public class ExternalGraphBuilder {
+
+    private static final int MAX_MERGE_FAN_IN = 128;
+    private static final int RUN_BUFFER_SIZE = 1 << 16;
+
+    private final int numVertices;
+    private final long[] buffer;
+    private int buffered = 0;
+    private final File tempDir;
+    private final List<File> runs = new ArrayList<>();
+    private final int numThreads;
+    private long edgesAdded = 0;
+
+    /**
+     * @param numVertices The number of vertices of the graph.
+     * @param memoryBudget The number of bytes the edge buffer and the sort may use. Half of it is the buffer, the
+     *                     other half is needed by RadixSort.
+     * @param tempDir The directory for the temporary run files.
+     * @param numThreads The number of threads to sort with.
+     */
+    public ExternalGraphBuilder(int numVertices, long memoryBudget, File tempDir, int numThreads) {
+        long capacity = memoryBudget / 16; // 8 bytes per long, twice for the sort.
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Memory budget of " + memoryBudget + " bytes is too small.");
+        }
+        this.numVertices = numVertices;
+        this.buffer = new long[(int) Math.min(capacity, Integer.MAX_VALUE - 8) & ~1]; // Room for both directions.
+        this.tempDir = tempDir;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Add an undirected edge between two vertices. Spills the buffer to a run file when it is full.
+     * @param v1 An integer representing the first vertex.
+     * @param v2 An integer representing the second vertex.
+     * @throws IOException If a run file cannot be written.
+     */
+    public void addEdge(int v1, int v2) throws IOException {
+        if (buffered == buffer.length) {
+            spill();
+        }
+        buffer[buffered++] = EdgeList.pack(v1, v2);
+        buffer[buffered++] = EdgeList.pack(v2, v1);
+        edgesAdded++;
+    }
+
+    /**
+     * @return The number of run files written so far.
+     */
+    public int numberOfRuns() {
+        return runs.size();
+    }
+
+    public long numberOfEdgesAdded() {
+        return edgesAdded;
+    }
+
+    /**
+     * Sort the buffer and write it to a new run file.
+     */
+    private void spill() throws IOException {
+        RadixSort.sort(buffer, buffered, numThreads);
+        File run = File.createTempFile("run", ".edges", tempDir);
+        run.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(run.toPath()), RUN_BUFFER_SIZE))) {
+            for (int i = 0; i < buffered; i++) {
+                out.writeLong(buffer[i]);
+            }
+        }
+        runs.add(run);
+        buffered = 0;
+    }
+
+    /**
+     * Merge all edges into the adjacency file of a DiskGraph. The builder cannot be used afterwards.
+     * @param filename The name or location of the adjacency file to create or overwrite.
+     * @param deduplicate If true, self-loops and duplicate edges (including A-B listed again as B-A) are left out.
+     * @return The DiskGraph.
+     * @throws IOException If the run files or the adjacency file cannot be read or written.
+     */
+    public DiskGraph build(String filename, boolean deduplicate) throws IOException {
+        if (buffered > 0 || runs.isEmpty()) {
+            spill();
+        }
+        try {
+            while (runs.size() > MAX_MERGE_FAN_IN) { // Too many runs to keep open at once, merge them in groups.
+                List<File> merged = new ArrayList<>();
+                for (int i = 0; i < runs.size(); i += MAX_MERGE_FAN_IN) {
+                    List<File> group = runs.subList(i, Math.min(i + MAX_MERGE_FAN_IN, runs.size()));
+                    File run = File.createTempFile("run", ".edges", tempDir);
+                    run.deleteOnExit();
+                    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                            Files.newOutputStream(run.toPath()), RUN_BUFFER_SIZE))) {
+                        merge(group, out::writeLong);
+                    }
+                    for (File file : group) {
+                        file.delete();
+                    }
+                    merged.add(run);
+                }
+                runs.clear();
+                runs.addAll(merged);
+            }
+            return writeAdjacency(filename, deduplicate);
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    /**
+     * Write the final merge as an adjacency file, first under a temporary name and then moved into place.
+     */
+    private DiskGraph writeAdjacency(String filename, boolean deduplicate) throws IOException {
+        Path target = Paths.get(filename);
+        Path temp = Paths.get(filename + ".tmp");
+        int[] degrees = new int[numVertices];
+        long[] entries = {0};
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp), RUN_BUFFER_SIZE))) {
+            DiskGraph.writeHeader(out, numVertices, 0); // The number of entries is filled in below.
+            long[] previous = {-1};
+            merge(runs, edge -> {
+                int source = (int) (edge >>> 32);
+                int destination = (int) edge;
+                if (deduplicate && (edge == previous[0] || source == destination)) {
+                    return;
+                }
+                previous[0] = edge;
+                out.writeInt(destination);
+                degrees[source]++;
+                entries[0]++;
+            });
+            for (int degree : degrees) {
+                out.writeInt(degree);
+            }
+        }
+        DiskGraph.patchNumberOfEntries(temp, entries[0]);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return DiskGraph.open(filename);
+    }
+
+    /**
+     * Receives the merged edges in ascending order.
+     */
+    private interface EdgeConsumer {
+        void accept(long edge) throws IOException;
+    }
+
+    /**
+     * The next edge of a run file.
+     */
+    private static final class RunReader {
+        final DataInputStream in;
+        long head;
+
+        RunReader(File run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.toPath()), RUN_BUFFER_SIZE));
+        }
+
+        /**
+         * @return False if the end of the run has been reached.
+         */
+        boolean advance() throws IOException {
+            try {
+                head = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * K-way merge of sorted run files.
+     */
+    private static void merge(List<File> runFiles, EdgeConsumer consumer) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runFiles.size()),
+                (a, b) -> Long.compare(a.head, b.head));
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for (File run : runFiles) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                consumer.accept(reader.head);
+                if (reader.advance()) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.in.close();
+            }
+        }
+    }
+}
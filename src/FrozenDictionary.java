@@ -0,0 +1,368 @@
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/**
+ * Compact read only dictionary between contig identifiers and their integer indices, made by freezing the index map
+ * of LineParser.indexAllIdentifiers (or IdentifierInterner.asMap) once it is complete. A HashMap entry costs a String,
+ * its byte array, a boxed Integer and a map node, around 100 bytes per identifier; here an identifier costs a few
+ * bytes of its name plus two ints.
+ *
+ * The identifiers are sorted (by their bytes, unsigned) and front coded in blocks of BLOCK_SIZE identifiers, all in a
+ * single byte array. The first identifier of a block is stored in full, every other identifier as the length of the
+ * prefix it shares with the previous identifier followed by the rest of its bytes:
+ * <pre>
+ *   first:  length (varint), bytes
+ *   others: shared prefix length (varint), suffix length (varint), suffix bytes
+ * </pre>
+ * An identifier is looked up with a binary search over the first identifiers of the blocks and a scan of one block,
+ * without creating any objects. The position of every index in the sorted order is kept in an array, so the
+ * identifier of an index is found by decoding at most one block.
+ *
+ * Through 'asMap', the dictionary can be used wherever a Map from identifiers to indices is expected.
+ */
+public class FrozenDictionary {
+
+    private static final int BLOCK_SIZE = 16;
+
+    private final byte[] bytes; // The front coded blocks, back to back.
+    private final int[] blockOffsets; // blockOffsets[b] is the position in bytes where block b starts.
+    private final int[] indexOfRank; // The index of the identifier at every position of the sorted order.
+    private final int[] rankOfIndex; // The position in the sorted order of the identifier of every index.
+    private final int maxLength;
+
+    private FrozenDictionary(byte[] bytes, int[] blockOffsets, int[] indexOfRank, int[] rankOfIndex, int maxLength) {
+        this.bytes = bytes;
+        this.blockOffsets = blockOffsets;
+        this.indexOfRank = indexOfRank;
+        this.rankOfIndex = rankOfIndex;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Build a dictionary from an index map. The indices must be 0 to indices.size() - 1, as given by
+     * LineParser.indexAllIdentifiers. The map is not changed, and can be dropped afterwards.
+     * @param indices A string to integer index map.
+     * @return The dictionary.
+     * @throws IllegalArgumentException If the indices are not 0 to indices.size() - 1, or the front coded
+     *                                  identifiers do not fit in a single array.
+     */
+    public static FrozenDictionary freeze(Map<String, Integer> indices) {
+        int size = indices.size();
+        // Every identifier is sorted together with its index, stored in the last 4 bytes, so that no boxed indices
+        // or index arrays have to be sorted along with the identifiers.
+        byte[][] entries = new byte[size][];
+        int n = 0;
+        for (Map.Entry<String, Integer> entry : indices.entrySet()) {
+            int index = entry.getValue();
+            if (index < 0 || index >= size || n == size) {
+                throw new IllegalArgumentException("Index " + index + " is not between 0 and " + (size - 1) + ".");
+            }
+            entries[n++] = entry(entry.getKey(), index);
+        }
+        return build(entries, n);
+    }
+
+    /**
+     * Build a dictionary from identifiers given in index order, e.g. GraphSnapshot::nameOf, without building an
+     * index map first.
+     * @param size The number of identifiers.
+     * @param names Gives the identifier of every index from 0 to size - 1.
+     * @return The dictionary.
+     * @throws IllegalArgumentException If an identifier is given for more than one index, or the front coded
+     *                                  identifiers do not fit in a single array.
+     */
+    public static FrozenDictionary freeze(int size, IntFunction<String> names) {
+        byte[][] entries = new byte[size][];
+        for (int index = 0; index < size; index++) {
+            entries[index] = entry(names.apply(index), index);
+        }
+        return build(entries, size);
+    }
+
+    /**
+     * @return The bytes of an identifier followed by its index in 4 bytes, the form 'build' sorts.
+     */
+    private static byte[] entry(String identifier, int index) {
+        byte[] name = identifier.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] bytes = Arrays.copyOf(name, name.length + 4);
+        for (int i = 0; i < 4; i++) {
+            bytes[name.length + i] = (byte) (index >>> (24 - 8 * i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Sort the entries made by 'entry' and front code them. The array of entries is cleared on the way.
+     */
+    private static FrozenDictionary build(byte[][] entries, int n) {
+        Arrays.parallelSort(entries, 0, n,
+                (a, b) -> Arrays.compareUnsigned(a, 0, a.length - 4, b, 0, b.length - 4));
+
+        int[] indexOfRank = new int[n];
+        int[] rankOfIndex = new int[n];
+        Arrays.fill(rankOfIndex, -1);
+        int[] blockOffsets = new int[(n + BLOCK_SIZE - 1) / BLOCK_SIZE];
+        byte[] bytes = new byte[1 << 16];
+        long position = 0;
+        int maxLength = 0;
+        byte[] previous = null;
+        for (int rank = 0; rank < n; rank++) {
+            byte[] entry = entries[rank];
+            entries[rank] = null; // Only the previous identifier is needed from here on.
+            int length = entry.length - 4;
+            int index = ((entry[length] & 0xFF) << 24) | ((entry[length + 1] & 0xFF) << 16)
+                    | ((entry[length + 2] & 0xFF) << 8) | (entry[length + 3] & 0xFF);
+            if (rankOfIndex[index] >= 0) {
+                throw new IllegalArgumentException("Index " + index + " is used for more than one identifier.");
+            }
+            if (previous != null && Arrays.equals(entry, 0, length, previous, 0, previous.length - 4)) {
+                throw new IllegalArgumentException("Identifier "
+                        + new String(entry, 0, length, StandardCharsets.ISO_8859_1) + " has more than one index.");
+            }
+            indexOfRank[rank] = index;
+            rankOfIndex[index] = rank;
+            maxLength = Math.max(maxLength, length);
+            int shared = 0;
+            if (rank % BLOCK_SIZE == 0) {
+                blockOffsets[rank / BLOCK_SIZE] = (int) position;
+            } else {
+                int limit = Math.min(length, previous.length - 4);
+                while (shared < limit && entry[shared] == previous[shared]) {
+                    shared++;
+                }
+            }
+            if (position + 2 * 5 + length > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("The identifiers do not fit in a single array.");
+            }
+            if (position + 2 * 5 + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8,
+                        Math.max(2L * bytes.length, position + 2 * 5 + length)));
+            }
+            int p = (int) position;
+            if (rank % BLOCK_SIZE != 0) {
+                p = writeVarint(bytes, p, shared);
+            }
+            p = writeVarint(bytes, p, length - shared);
+            System.arraycopy(entry, shared, bytes, p, length - shared);
+            position = p + length - shared;
+            previous = entry;
+        }
+        return new FrozenDictionary(Arrays.copyOf(bytes, (int) position), blockOffsets, indexOfRank, rankOfIndex,
+                maxLength);
+    }
+
+    public int size() {
+        return indexOfRank.length;
+    }
+
+    /**
+     * @return The number of bytes used by the front coded identifiers and the arrays.
+     */
+    public long sizeInBytes() {
+        return bytes.length + 4L * (blockOffsets.length + indexOfRank.length + rankOfIndex.length);
+    }
+
+    /**
+     * Look up an identifier given as bytes, e.g. a field of an M4Reader.M4Line. No objects are created.
+     * @param key An array containing the identifier.
+     * @param offset The position of the first byte of the identifier in the array.
+     * @param length The number of bytes of the identifier.
+     * @return The index of the identifier, or -1 if it is not in the dictionary.
+     */
+    public int indexOf(byte[] key, int offset, int length) {
+        // Find the last block whose first identifier is not greater than the key.
+        int low = 0;
+        int high = blockOffsets.length - 1;
+        int block = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int p = blockOffsets[middle];
+            int headLength = readVarint(bytes, p);
+            int cmp = Arrays.compareUnsigned(bytes, p + varintSize(headLength), p + varintSize(headLength) + headLength,
+                    key, offset, offset + length);
+            if (cmp == 0) {
+                return indexOfRank[middle * BLOCK_SIZE];
+            } else if (cmp < 0) {
+                block = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (block < 0) {
+            return -1;
+        }
+        // Scan the block, keeping track of the length of the prefix the previous identifier shares with the key.
+        // If the next identifier shares more with the previous one than the key does, it is still smaller than the
+        // key; if it shares less, it is already larger than the key.
+        int p = blockOffsets[block];
+        int headLength = readVarint(bytes, p);
+        p += varintSize(headLength);
+        int matched = commonPrefix(bytes, p, headLength, key, offset, length);
+        p += headLength;
+        int end = Math.min(size(), (block + 1) * BLOCK_SIZE);
+        for (int rank = block * BLOCK_SIZE + 1; rank < end; rank++) {
+            int shared = readVarint(bytes, p);
+            p += varintSize(shared);
+            int suffixLength = readVarint(bytes, p);
+            p += varintSize(suffixLength);
+            if (shared < matched) {
+                return -1;
+            }
+            if (shared == matched) {
+                int common = commonPrefix(bytes, p, suffixLength, key, offset + shared, length - shared);
+                if (common == suffixLength && shared + common == length) {
+                    return indexOfRank[rank];
+                }
+                if (common == length - shared
+                        || (common < suffixLength && (bytes[p + common] & 0xFF) > (key[offset + shared + common] & 0xFF))) {
+                    return -1; // The key is a prefix of, or smaller than, this identifier.
+                }
+                matched = shared + common;
+            }
+            p += suffixLength;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The index of an identifier, or -1 if it is not in the dictionary.
+     */
+    public int indexOf(String identifier) {
+        byte[] key = identifier.getBytes(StandardCharsets.ISO_8859_1);
+        return indexOf(key, 0, key.length);
+    }
+
+    /**
+     * @param index An index between 0 and size() - 1.
+     * @return The identifier with the given index.
+     */
+    public String nameOf(int index) {
+        byte[] name = new byte[maxLength];
+        int length = decode(rankOfIndex[index], name);
+        return new String(name, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decode the identifier at a position of the sorted order into an array of at least maxLength bytes.
+     * @return The length of the identifier.
+     */
+    private int decode(int rank, byte[] name) {
+        int p = blockOffsets[rank / BLOCK_SIZE];
+        int length = readVarint(bytes, p);
+        p += varintSize(length);
+        System.arraycopy(bytes, p, name, 0, length);
+        p += length;
+        for (int i = 0; i < rank % BLOCK_SIZE; i++) {
+            int shared = readVarint(bytes, p);
+            p += varintSize(shared);
+            int suffixLength = readVarint(bytes, p);
+            p += varintSize(suffixLength);
+            System.arraycopy(bytes, p, name, shared, suffixLength);
+            p += suffixLength;
+            length = shared + suffixLength;
+        }
+        return length;
+    }
+
+    /**
+     * @return A read only view of the dictionary as a map from identifiers to indices, which can be passed to methods
+     * such as LineParser.generateFullGraph that expect the index map of 'indexAllIdentifiers'. The entries are
+     * iterated in the sorted order of the identifiers.
+     */
+    public Map<String, Integer> asMap() {
+        return new AbstractMap<>() {
+            @Override
+            public Integer get(Object key) {
+                if (!(key instanceof String)) {
+                    return null;
+                }
+                int index = indexOf((String) key);
+                return index < 0 ? null : index;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return FrozenDictionary.this.size();
+            }
+
+            @Override
+            public Set<Entry<String, Integer>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public Iterator<Entry<String, Integer>> iterator() {
+                        return new Iterator<>() {
+                            private int rank = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return rank < FrozenDictionary.this.size();
+                            }
+
+                            @Override
+                            public Entry<String, Integer> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                int index = indexOfRank[rank++];
+                                return new AbstractMap.SimpleImmutableEntry<>(nameOf(index), index);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return FrozenDictionary.this.size();
+                    }
+                };
+            }
+        };
+    }
+
+    private static int commonPrefix(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        int mismatch = Arrays.mismatch(a, aOffset, aOffset + aLength, b, bOffset, bOffset + bLength);
+        return mismatch < 0 ? aLength : mismatch;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] bytes, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    private static int readVarint(byte[] bytes, int position) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+}
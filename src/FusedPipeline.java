@@ -0,0 +1,101 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Single pass alternative to the split, filter, index and graph generation steps. The original (unsplit) data file is
+ * read once, and for each line the containment filter of FilteredCopyTask is applied, the two contig identifiers are
+ * indexed and an edge is emitted between them. No split or filtered copies of the data are written to disk.
+ */
+public class FusedPipeline {
+
+    private final String filename;
+    public Map<String, Integer> indices;
+    public EdgeList edges;
+    public long linesRead;
+    public long containments;
+
+    /**
+     * @param filename The name or location of the original data file.
+     */
+    public FusedPipeline(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Read the data file once, filtering, indexing and collecting edges as each line is read. The file is read with
+     * the memory mapped M4Reader, so only the two identifier fields of each line are turned into strings. The results
+     * are stored in 'indices' and 'edges'.
+     * @throws IOException If the data file cannot be read. The results are then incomplete and must not be used.
+     */
+    public void run() throws IOException {
+        indices = new HashMap<>();
+        edges = new EdgeList();
+        linesRead = 0;
+        containments = 0;
+        M4Reader.read(filename, line -> {
+            linesRead++;
+            if (line.isContainment()) {
+                containments++;
+                return; // False overlap, neither an edge nor (by itself) a vertex.
+            }
+            edges.add(index(line.field(0)), index(line.field(1)));
+        });
+    }
+
+    /**
+     * @return The index of an identifier, assigning the next free index if the identifier has not been seen before.
+     */
+    private int index(String identifier) {
+        Integer index = indices.get(identifier);
+        if (index == null) {
+            index = indices.size();
+            indices.put(identifier, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return A CompactGraph built from the indices and edges found by 'run'.
+     */
+    public CompactGraph toGraph() {
+        return new CompactGraph(indices.size(), edges);
+    }
+
+    public static void main(String[] args) {
+        String filename = args.length > 0 ? args[0] : Main.FILEPATH;
+
+        System.out.println("Filtering, indexing and generating edges in a single pass...");
+        RunReport.beginStage("fused pass");
+        long start = System.nanoTime();
+        FusedPipeline pipeline = new FusedPipeline(filename);
+        try {
+            pipeline.run();
+        } catch (IOException e) {
+            // Stop before the results of an earlier complete run are overwritten with those of a partial read.
+            e.printStackTrace();
+            RunReport.endStage();
+            return;
+        }
+        CompactGraph graph = pipeline.toGraph();
+        RunReport.recordChunk(filename, pipeline.linesRead, new File(filename).length(), System.nanoTime() - start);
+        RunReport.recordCount("containments", pipeline.containments);
+        RunReport.endStage();
+        CustomWriter.printHeapUsage();
+        System.out.println("Lines read: " + pipeline.linesRead + ", containments filtered: " + pipeline.containments);
+        System.out.println("Unique identifiers found: " + pipeline.indices.size());
+        System.out.println("Vertices: " + graph.numberOfVertices());
+        System.out.println("Edges: " + graph.numberOfEdges());
+        System.out.println("--------------------");
+
+        try {
+            Main.analyseGraph(graph, "");
+        } catch (IOException e) {
+            e.printStackTrace(); // Not possible for a CompactGraph.
+            return;
+        }
+        RunReport.write(RunReport.DEFAULT_PATH);
+        System.out.println("Program finished.");
+    }
+}
@@ -0,0 +1,404 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Long running HTTP service that answers questions about single contigs of the graph, so that they do not require a
+ * new run of Main. The graph, the identifier index and the component of every vertex are loaded or computed once at
+ * start up, after which every query is a few array lookups. The service only listens on the loopback interface.
+ *
+ * Endpoints (all answers are JSON, contig identifiers are given with the 'contig' parameter):
+ * <pre>
+ *   GET  /degree?contig=X       the degree of X
+ *   GET  /neighbours?contig=X   the identifiers of the neighbours of X
+ *   GET  /component?contig=X    the component number of X and the size of the component
+ *   POST /batch?query=Q         the answer to query Q (degree, neighbours or component) for every contig in the
+ *                               request body, one contig per line
+ *   GET  /stats                 latency histograms of every endpoint and the hit rate of the cache
+ * </pre>
+ * The neighbour lists of hub vertices are the only answers that take real work (one String per neighbour), so the
+ * answers for vertices of at least 'minCachedDegree' neighbours are kept in an LRU cache. Answers for low degree
+ * vertices are cheaper to recompute than to keep, and would push the hubs out of the cache.
+ */
+public class GraphQueryService {
+
+    public static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_CACHE_SIZE = 10_000;
+    private static final int DEFAULT_MIN_CACHED_DEGREE = 64;
+
+    private final CompactGraph graph;
+    private final Map<String, Integer> indices;
+    private final IntFunction<String> names;
+    private final int[] labels;
+    private final int[] componentSizes;
+    private final int minCachedDegree;
+    private final Map<Integer, String> neighbourCache;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final Map<String, LatencyHistogram> latencies = new TreeMap<>();
+    private HttpServer server;
+
+    /**
+     * Thrown by a query that cannot be answered, with the HTTP status code to answer with.
+     */
+    private static class QueryException extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        QueryException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Answers a query on a single contig.
+     */
+    private interface Query {
+        String answer(int vertex);
+    }
+
+    /**
+     * Histogram of request latencies with one bucket per power of two microseconds. Can be updated from several
+     * threads at once.
+     */
+    static final class LatencyHistogram {
+        private static final int NUM_BUCKETS = 32;
+        private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS); // Bucket b: [2^b, 2^(b+1)) us.
+        private final LongAdder totalNanos = new LongAdder();
+
+        void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            buckets.incrementAndGet(Math.min(NUM_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+            totalNanos.add(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                count += buckets.get(b);
+            }
+            return count;
+        }
+
+        /**
+         * @return The upper bound in microseconds of the bucket holding the given quantile, e.g. 0.99.
+         */
+        long quantileMicros(double quantile) {
+            long rank = (long) Math.ceil(quantile * count());
+            long seen = 0;
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank && seen > 0) {
+                    return 1L << (b + 1);
+                }
+            }
+            return 0;
+        }
+
+        String toJson() {
+            long count = count();
+            StringBuilder sb = new StringBuilder("{\"count\": ").append(count);
+            sb.append(", \"meanMicros\": ").append(String.format(Locale.ROOT, "%.1f",
+                    count == 0 ? 0.0 : totalNanos.sum() / 1000.0 / count));
+            sb.append(", \"p50Micros\": ").append(quantileMicros(0.5));
+            sb.append(", \"p99Micros\": ").append(quantileMicros(0.99));
+            sb.append(", \"buckets\": {");
+            int j = 0;
+            for (int b = 0; b < NUM_BUCKETS; b++) {
+                if (buckets.get(b) > 0) {
+                    sb.append(j++ == 0 ? "" : ", ").append("\"<").append(1L << (b + 1)).append("us\": ")
+                            .append(buckets.get(b));
+                }
+            }
+            return sb.append("}}").toString();
+        }
+    }
+
+    /**
+     * @param graph The graph.
+     * @param indices A string to integer index map of the contig identifiers, like the one from
+     *                LineParser.indexAllIdentifiers.
+     * @param names Gives the contig identifier of a vertex. Called from several threads.
+     * @param cacheSize The largest number of neighbour lists kept in the cache.
+     * @param minCachedDegree The smallest degree of a vertex whose neighbour list is cached.
+     */
+    public GraphQueryService(CompactGraph graph, Map<String, Integer> indices, IntFunction<String> names,
+                             int cacheSize, int minCachedDegree) {
+        this.graph = graph;
+        this.indices = indices;
+        this.names = names;
+        this.labels = graph.componentLabels();
+        this.componentSizes = componentSizes(labels);
+        this.minCachedDegree = minCachedDegree;
+        this.neighbourCache = new LinkedHashMap<>(16, 0.75f, true) { // Access order, so the eldest is the LRU.
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        for (String endpoint : new String[]{"/degree", "/neighbours", "/component", "/batch", "/stats"}) {
+            latencies.put(endpoint, new LatencyHistogram());
+        }
+    }
+
+    public String degree(int vertex) {
+        return "{\"contig\": " + RunReport.quote(names.apply(vertex)) + ", \"degree\": " + graph.degree(vertex) + "}";
+    }
+
+    public String component(int vertex) {
+        return "{\"contig\": " + RunReport.quote(names.apply(vertex)) + ", \"component\": " + labels[vertex]
+                + ", \"size\": " + componentSizes[labels[vertex]] + "}";
+    }
+
+    /**
+     * Count the vertices of every component from the component labels, instead of searching the graph again.
+     * @param labels The component number of every vertex, as given by CompactGraph.componentLabels.
+     * @return An array where element c is the number of vertices of component c.
+     */
+    private static int[] componentSizes(int[] labels) {
+        int[] sizes = new int[labels.length];
+        int numComponents = 0;
+        for (int label : labels) {
+            sizes[label]++;
+            numComponents = Math.max(numComponents, label + 1);
+        }
+        return Arrays.copyOf(sizes, numComponents);
+    }
+
+    /**
+     * The neighbours of a vertex, from the cache if the vertex is a hub whose neighbours have been asked for before.
+     */
+    public String neighbours(int vertex) {
+        boolean cacheable = graph.degree(vertex) >= minCachedDegree;
+        if (cacheable) {
+            String cached;
+            synchronized (neighbourCache) {
+                cached = neighbourCache.get(vertex);
+            }
+            if (cached != null) {
+                cacheHits.increment();
+                return cached;
+            }
+            cacheMisses.increment();
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"contig\": ").append(RunReport.quote(names.apply(vertex))).append(", \"neighbours\": [");
+        int[] neighbours = graph.neighbours(vertex);
+        for (int i = 0; i < neighbours.length; i++) {
+            sb.append(i == 0 ? "" : ", ").append(RunReport.quote(names.apply(neighbours[i])));
+        }
+        String answer = sb.append("]}").toString();
+        if (cacheable) {
+            synchronized (neighbourCache) {
+                neighbourCache.put(vertex, answer);
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * @return The latency histograms of all endpoints and the cache statistics.
+     */
+    public String stats() {
+        StringBuilder sb = new StringBuilder("{\n  \"latencies\": {");
+        int j = 0;
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            sb.append(j++ == 0 ? "\n" : ",\n").append("    ").append(RunReport.quote(entry.getKey())).append(": ")
+                    .append(entry.getValue().toJson());
+        }
+        int cached;
+        synchronized (neighbourCache) {
+            cached = neighbourCache.size();
+        }
+        sb.append("\n  },\n  \"cache\": {\"entries\": ").append(cached).append(", \"hits\": ")
+                .append(cacheHits.sum()).append(", \"misses\": ").append(cacheMisses.sum()).append("}\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Start listening on the loopback interface. Requests are handled by 'numThreads' threads.
+     * @param port The port to listen on, or 0 for any free port.
+     * @param numThreads The number of threads handling requests.
+     * @return The port the service listens on.
+     * @throws IOException If the port cannot be opened.
+     */
+    public int start(int port, int numThreads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/degree", exchange -> handle(exchange, () -> single(exchange, this::degree)));
+        server.createContext("/neighbours", exchange -> handle(exchange, () -> single(exchange, this::neighbours)));
+        server.createContext("/component", exchange -> handle(exchange, () -> single(exchange, this::component)));
+        server.createContext("/batch", exchange -> handle(exchange, () -> batch(exchange)));
+        server.createContext("/stats", exchange -> handle(exchange, this::stats));
+        ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+        server.setExecutor(threadPool);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stop listening, waiting at most a second for requests in progress.
+     */
+    public void stop() {
+        server.stop(1);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    /**
+     * Produces the body of an answer.
+     */
+    private interface Handler {
+        String answer() throws QueryException, IOException;
+    }
+
+    /**
+     * Answer a request and record its latency in the histogram of its endpoint. A query that fails for any other
+     * reason than a QueryException is answered with status 500 and the error as JSON, so the client is never left
+     * without an answer; the latency is recorded even if the answer cannot be sent.
+     */
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            int status = 200;
+            String body;
+            try {
+                body = handler.answer();
+            } catch (QueryException e) {
+                status = e.status;
+                body = "{\"error\": " + RunReport.quote(e.getMessage()) + "}";
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+                status = 500;
+                body = "{\"error\": " + RunReport.quote(e.toString()) + "}";
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            LatencyHistogram histogram = latencies.get(exchange.getHttpContext().getPath());
+            histogram.record(System.nanoTime() - start);
+        }
+    }
+
+    private String single(HttpExchange exchange, Query query) throws QueryException {
+        String contig = parameters(exchange).get("contig");
+        if (contig == null) {
+            throw new QueryException(400, "Missing parameter 'contig'.");
+        }
+        return query.answer(vertex(contig));
+    }
+
+    private String batch(HttpExchange exchange) throws QueryException, IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            throw new QueryException(405, "Send the contigs as the body of a POST request.");
+        }
+        String queryName = parameters(exchange).get("query");
+        Query query;
+        if ("degree".equals(queryName)) {
+            query = this::degree;
+        } else if ("neighbours".equals(queryName)) {
+            query = this::neighbours;
+        } else if ("component".equals(queryName)) {
+            query = this::component;
+        } else {
+            throw new QueryException(400, "Parameter 'query' must be degree, neighbours or component.");
+        }
+        StringBuilder sb = new StringBuilder("[");
+        int j = 0;
+        for (String contig : readBody(exchange).split("\n")) {
+            contig = contig.trim();
+            if (contig.isEmpty()) {
+                continue;
+            }
+            Integer vertex = indices.get(contig);
+            sb.append(j++ == 0 ? "\n" : ",\n").append(vertex == null
+                    ? "{\"contig\": " + RunReport.quote(contig) + ", \"error\": \"Unknown contig.\"}"
+                    : query.answer(vertex));
+        }
+        return sb.append(j == 0 ? "]" : "\n]").toString();
+    }
+
+    private int vertex(String contig) throws QueryException {
+        Integer vertex = indices.get(contig);
+        if (vertex == null) {
+            throw new QueryException(404, "Unknown contig " + contig + ".");
+        }
+        return vertex;
+    }
+
+    private static Map<String, String> parameters(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8),
+                        URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            in.transferTo(body);
+        }
+        return body.toString(StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Serve the graph in the snapshot written by Main. Options: '--port N' (default 8080), '--cache-size N' (the
+        // number of cached neighbour lists) and '--min-cached-degree N'.
+        int port = DEFAULT_PORT;
+        int cacheSize = DEFAULT_CACHE_SIZE;
+        int minCachedDegree = DEFAULT_MIN_CACHED_DEGREE;
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--cache-size")) {
+                cacheSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--min-cached-degree")) {
+                minCachedDegree = Integer.parseInt(args[++i]);
+            }
+        }
+        if (!new File(Main.SNAPSHOT_PATH).exists()) {
+            System.out.println("No snapshot found at " + Main.SNAPSHOT_PATH + ", run Main first.");
+            return;
+        }
+        System.out.println("Loading snapshot...");
+        GraphSnapshot snapshot = GraphSnapshot.load(Main.SNAPSHOT_PATH, true);
+        FrozenDictionary dictionary = FrozenDictionary.freeze(snapshot.graph.numberOfVertices(), snapshot::nameOf);
+        GraphQueryService service = new GraphQueryService(snapshot.graph, dictionary.asMap(), dictionary::nameOf,
+                cacheSize, minCachedDegree);
+        port = service.start(port, Runtime.getRuntime().availableProcessors());
+        System.out.println("Serving " + snapshot.graph.numberOfVertices() + " contigs on http://localhost:" + port
+                + "/ (degree, neighbours, component, batch, stats).");
+    }
+}
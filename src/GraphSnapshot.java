@@ -0,0 +1,301 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Versioned binary file format for storing a CompactGraph together with its identifier index, so that the data does
+ * not have to be parsed again when only the analysis changes. The file is written once after graph generation and
+ * loaded with memory mapping, which only takes as long as copying the arrays from the page cache.
+ *
+ * Layout (all numbers big endian):
+ * <pre>
+ *   magic "GRAPHSNP" (8 bytes), version (int)
+ *   source description length (int), source description (UTF-8) -- which input files were read
+ *   filter settings length (int), filter settings (UTF-8) -- which filter produced the edges
+ *   number of vertices V (int), number of adjacency entries E (int), number of identifier bytes B (long)
+ *   CSR offsets (V + 1 ints), CSR targets (E ints)
+ *   identifier offsets (V + 1 ints), identifier bytes (B bytes) -- the identifier of vertex v is bytes[off[v]..off[v+1])
+ *   CRC32C checksum of everything above (long)
+ * </pre>
+ */
+public class GraphSnapshot {
+
+    private static final byte[] MAGIC = "GRAPHSNP".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    public final CompactGraph graph;
+    public final String sourceDescription;
+    public final String filterSettings;
+    private final int[] nameOffsets;
+    private final MappedByteBuffer names;
+
+    private GraphSnapshot(CompactGraph graph, String sourceDescription, String filterSettings, int[] nameOffsets,
+                          MappedByteBuffer names) {
+        this.graph = graph;
+        this.sourceDescription = sourceDescription;
+        this.filterSettings = filterSettings;
+        this.nameOffsets = nameOffsets;
+        this.names = names;
+    }
+
+    /**
+     * @return The contig identifier of a vertex, read from the mapped file.
+     */
+    public String nameOf(int vertex) {
+        byte[] bytes = new byte[nameOffsets[vertex + 1] - nameOffsets[vertex]];
+        names.get(nameOffsets[vertex], bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Build an identifier to index map like the one from LineParser.indexAllIdentifiers. This creates a String per
+     * vertex, so it should only be called when the map is actually needed.
+     * @return A string to integer index map.
+     */
+    public Map<String, Integer> toIndexMap() {
+        Map<String, Integer> indices = new HashMap<>(graph.numberOfVertices() * 2);
+        for (int v = 0; v < graph.numberOfVertices(); v++) {
+            indices.put(nameOf(v), v);
+        }
+        return indices;
+    }
+
+    /**
+     * Describe a list of input files by their names, sizes and modification times. Two descriptions are equal if the
+     * files have (most likely) not changed, which is used to decide if a snapshot is still valid.
+     * @param files The input files.
+     * @return A string with one line per file.
+     */
+    public static String describeSources(List<File> files) {
+        StringBuilder sb = new StringBuilder();
+        for (File file : files) {
+            sb.append(file.getPath()).append('\t').append(file.length()).append('\t').append(file.lastModified())
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write a graph and its identifier index to a snapshot file. The file is first written under a temporary name
+     * and then moved into place, so a crash never leaves a half written snapshot behind.
+     * @param filename The name or location of the snapshot file.
+     * @param graph The graph to store.
+     * @param indices The identifier index used to build the graph.
+     * @param sourceDescription A description of the input files, e.g. from 'describeSources'.
+     * @param filterSettings A description of the filter settings used when reading the input files.
+     * @throws IOException
+     */
+    public static void write(String filename, CompactGraph graph, Map<String, Integer> indices,
+                             String sourceDescription, String filterSettings) throws IOException {
+        int numVertices = graph.numberOfVertices();
+        byte[][] nameBytes = new byte[numVertices][];
+        long numNameBytes = 0;
+        for (Map.Entry<String, Integer> entry : indices.entrySet()) {
+            nameBytes[entry.getValue()] = entry.getKey().getBytes(StandardCharsets.ISO_8859_1);
+            numNameBytes += nameBytes[entry.getValue()].length;
+        }
+
+        Path target = Paths.get(filename);
+        Path temp = Paths.get(filename + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChecksummedWriter out = new ChecksummedWriter(channel);
+            out.putBytes(MAGIC);
+            out.putInt(VERSION);
+            out.putString(sourceDescription);
+            out.putString(filterSettings);
+            out.putInt(numVertices);
+            out.putInt(graph.targets().length);
+            out.putLong(numNameBytes);
+            out.putInts(graph.offsets());
+            out.putInts(graph.targets());
+            int offset = 0;
+            for (int v = 0; v < numVertices; v++) {
+                out.putInt(offset);
+                offset += nameBytes[v].length;
+            }
+            out.putInt(offset);
+            for (byte[] name : nameBytes) {
+                out.putBytes(name);
+            }
+            out.finish();
+            channel.force(true); // The data has to be on disk before the move, or a crash can leave an empty file.
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a snapshot by memory mapping it. The CSR arrays are copied from the mapping into int arrays, while the
+     * identifier bytes stay mapped.
+     * @param filename The name or location of the snapshot file.
+     * @param verifyChecksum If true, the checksum is computed and compared to the stored one.
+     * @return The loaded snapshot.
+     * @throws IOException If the file cannot be read, is not a snapshot of a supported version, or is corrupt.
+     */
+    public static GraphSnapshot load(String filename, boolean verifyChecksum) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            CRC32C crc = new CRC32C();
+
+            // The header is small, read it with a plain buffer.
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(size, BUFFER_SIZE));
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                // Keep reading until the buffer is full or the end of the file is reached.
+            }
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(filename + " is not a graph snapshot.");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + filename + ".");
+            }
+            String sourceDescription = getString(header);
+            String filterSettings = getString(header);
+            int numVertices = header.getInt();
+            int numTargets = header.getInt();
+            long numNameBytes = header.getLong();
+            long position = header.position();
+            if (verifyChecksum) {
+                crc.update(header.array(), 0, header.position());
+            }
+
+            int[] offsets = readInts(channel, position, numVertices + 1, verifyChecksum ? crc : null);
+            position += 4L * (numVertices + 1);
+            int[] targets = readInts(channel, position, numTargets, verifyChecksum ? crc : null);
+            position += 4L * numTargets;
+            int[] nameOffsets = readInts(channel, position, numVertices + 1, verifyChecksum ? crc : null);
+            position += 4L * (numVertices + 1);
+            MappedByteBuffer names = channel.map(FileChannel.MapMode.READ_ONLY, position, numNameBytes);
+            position += numNameBytes;
+            if (position + 8 != size) {
+                throw new IOException("Snapshot " + filename + " is truncated or has trailing data.");
+            }
+            if (verifyChecksum) {
+                crc.update(names.duplicate());
+                ByteBuffer stored = ByteBuffer.allocate(8);
+                channel.read(stored, position);
+                stored.flip();
+                if (stored.getLong() != crc.getValue()) {
+                    throw new IOException("Checksum mismatch in snapshot " + filename + ".");
+                }
+            }
+            return new GraphSnapshot(new CompactGraph(offsets, targets), sourceDescription, filterSettings,
+                    nameOffsets, names);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Map a section of ints and copy it into an array, optionally adding the section to a checksum.
+     */
+    private static int[] readInts(FileChannel channel, long position, int count, CRC32C crc) throws IOException {
+        int[] values = new int[count];
+        int done = 0;
+        while (done < count) {
+            int n = Math.min(count - done, 1 << 28); // Map at most 1 GB at a time.
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position + 4L * done, 4L * n);
+            if (crc != null) {
+                crc.update(mapped.duplicate());
+            }
+            mapped.asIntBuffer().get(values, done, n);
+            done += n;
+        }
+        return values;
+    }
+
+    /**
+     * Writes numbers to a file channel through a large buffer, keeping a running CRC32C of everything written.
+     */
+    static class ChecksummedWriter {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32C crc = new CRC32C();
+
+        ChecksummedWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putInts(int[] values) throws IOException {
+            for (int value : values) {
+                putInt(value);
+            }
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            int done = 0;
+            while (done < bytes.length) {
+                ensure(1);
+                int n = Math.min(bytes.length - done, buffer.remaining());
+                buffer.put(bytes, done, n);
+                done += n;
+            }
+        }
+
+        void putString(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            putBytes(bytes);
+        }
+
+        /**
+         * Flush the buffer and append the checksum.
+         */
+        void finish() throws IOException {
+            flush();
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
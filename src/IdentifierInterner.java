@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe table that maps contig identifiers (as bytes) to dense integer ids 0, 1, 2, ..., for indexing the
+ * identifiers with several threads at once. The table is split into shards by the hash of the identifier, and each
+ * shard is an open addressing hash table guarded by its own lock, so threads only contend when they happen to intern
+ * identifiers of the same shard at the same time. Identifier bytes are stored back to back in one byte array per
+ * shard rather than as String objects.
+ *
+ * When identifiers are interned by several threads, which identifier gets which id depends on thread scheduling. To
+ * get the same ids on every run, each identifier can be interned together with an 'order' (its position in the data),
+ * and 'renumberByFirstOccurrence' then reassigns the ids in the order the identifiers first occur. This gives exactly
+ * the ids that the sequential LineParser.indexAllIdentifiers would give.
+ *
+ * Through 'asMap', the table can be used wherever a Map from identifiers to indices is expected.
+ */
+public class IdentifierInterner {
+
+    private static final int DEFAULT_SHARD_BITS = 6; // 64 shards
+
+    private final Shard[] shards;
+    private final int shardBits;
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * One lock striped part of the table. All fields are guarded by the shard itself.
+     */
+    private static final class Shard {
+        private int[] table = new int[1024]; // Entry number + 1 for each slot, 0 if the slot is empty.
+        private int numEntries = 0;
+        private byte[] bytes = new byte[1024 * 16]; // Identifier bytes, stored back to back.
+        private int numBytes = 0;
+        private int[] byteOffsets = new int[512 + 1]; // Entry e is bytes[byteOffsets[e]] to bytes[byteOffsets[e+1]-1]
+        private int[] hashes = new int[512];
+        private int[] ids = new int[512];
+        private long[] firstOrders = new long[512]; // Smallest order the entry has been interned with.
+
+        synchronized int intern(byte[] src, int offset, int length, int hash, long order, AtomicInteger nextId) {
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            while (table[slot] != 0) {
+                int entry = table[slot] - 1;
+                if (hashes[entry] == hash && matches(entry, src, offset, length)) {
+                    if (order < firstOrders[entry]) {
+                        firstOrders[entry] = order;
+                    }
+                    return ids[entry];
+                }
+                slot = (slot + 1) & mask;
+            }
+            int id = nextId.getAndIncrement();
+            int entry = add(src, offset, length, hash, id, order);
+            table[slot] = entry + 1;
+            if (numEntries * 2 > table.length) {
+                rehash(table.length * 2);
+            }
+            return id;
+        }
+
+        synchronized int get(byte[] src, int offset, int length, int hash) {
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            while (table[slot] != 0) {
+                int entry = table[slot] - 1;
+                if (hashes[entry] == hash && matches(entry, src, offset, length)) {
+                    return ids[entry];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private boolean matches(int entry, byte[] src, int offset, int length) {
+            int start = byteOffsets[entry];
+            return byteOffsets[entry + 1] - start == length
+                    && Arrays.equals(bytes, start, start + length, src, offset, offset + length);
+        }
+
+        private int add(byte[] src, int offset, int length, int hash, int id, long order) {
+            if (numEntries == hashes.length) {
+                int capacity = hashes.length * 2;
+                byteOffsets = Arrays.copyOf(byteOffsets, capacity + 1);
+                hashes = Arrays.copyOf(hashes, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                firstOrders = Arrays.copyOf(firstOrders, capacity);
+            }
+            if (numBytes + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, numBytes + length));
+            }
+            System.arraycopy(src, offset, bytes, numBytes, length);
+            numBytes += length;
+            int entry = numEntries++;
+            hashes[entry] = hash;
+            ids[entry] = id;
+            firstOrders[entry] = order;
+            byteOffsets[entry + 1] = numBytes;
+            return entry;
+        }
+
+        private void rehash(int capacity) {
+            table = new int[capacity];
+            int mask = capacity - 1;
+            for (int entry = 0; entry < numEntries; entry++) {
+                int slot = hashes[entry] & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = entry + 1;
+            }
+        }
+    }
+
+    public IdentifierInterner() {
+        this(DEFAULT_SHARD_BITS);
+    }
+
+    /**
+     * @param shardBits The table is split into 2^shardBits shards. More shards means less lock contention.
+     */
+    public IdentifierInterner(int shardBits) {
+        this.shardBits = shardBits;
+        shards = new Shard[1 << shardBits];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Get the id of an identifier, giving it the next free id if it has not been interned before. Safe to call from
+     * several threads.
+     * @param bytes An array containing the identifier.
+     * @param offset The position of the first byte of the identifier in the array.
+     * @param length The number of bytes of the identifier.
+     * @param order The position of this occurrence in the data, used by 'renumberByFirstOccurrence'.
+     * @return The id of the identifier.
+     */
+    public int intern(byte[] bytes, int offset, int length, long order) {
+        int hash = hash(bytes, offset, length);
+        return shardOf(hash).intern(bytes, offset, length, hash, order, nextId);
+    }
+
+    public int intern(String identifier) {
+        byte[] bytes = identifier.getBytes(StandardCharsets.ISO_8859_1);
+        return intern(bytes, 0, bytes.length, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return The id of an identifier, or -1 if it has not been interned.
+     */
+    public int get(byte[] bytes, int offset, int length) {
+        int hash = hash(bytes, offset, length);
+        return shardOf(hash).get(bytes, offset, length, hash);
+    }
+
+    public int get(String identifier) {
+        byte[] bytes = identifier.getBytes(StandardCharsets.ISO_8859_1);
+        return get(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return The number of unique identifiers interned so far.
+     */
+    public int size() {
+        return nextId.get();
+    }
+
+    /**
+     * Reassign the ids so that identifiers are numbered in the order of the smallest 'order' they were interned with.
+     * If the orders are positions in the data, the ids are then the same on every run regardless of how the work was
+     * divided between threads. This must not be called while other threads are interning, and any ids handed out
+     * before the call are invalid afterwards.
+     */
+    public synchronized void renumberByFirstOccurrence() {
+        int size = size();
+        long[] orders = new long[size];
+        int[] shardOf = new int[size];
+        int[] entryOf = new int[size];
+        for (int s = 0; s < shards.length; s++) {
+            Shard shard = shards[s];
+            synchronized (shard) {
+                for (int entry = 0; entry < shard.numEntries; entry++) {
+                    int id = shard.ids[entry];
+                    orders[id] = shard.firstOrders[entry];
+                    shardOf[id] = s;
+                    entryOf[id] = entry;
+                }
+            }
+        }
+        // Sort the old ids by (order, old id); the old id breaks ties so the result is always well defined. The orders
+        // can use all 64 bits, so every order is first replaced by its rank among the distinct orders, which fits in
+        // 32 bits, and the ids are then sorted as primitive longs holding the rank above the old id.
+        long[] distinct = orders.clone();
+        Arrays.sort(distinct);
+        int numDistinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0 || distinct[i] != distinct[i - 1]) {
+                distinct[numDistinct++] = distinct[i];
+            }
+        }
+        long[] byOrder = new long[size];
+        for (int id = 0; id < size; id++) {
+            long rank = Arrays.binarySearch(distinct, 0, numDistinct, orders[id]);
+            byOrder[id] = rank << 32 | id;
+        }
+        Arrays.sort(byOrder);
+        for (int newId = 0; newId < size; newId++) {
+            int oldId = (int) byOrder[newId];
+            Shard shard = shards[shardOf[oldId]];
+            synchronized (shard) {
+                shard.ids[entryOf[oldId]] = newId;
+            }
+        }
+    }
+
+    /**
+     * @return A read only view of the table as a map from identifiers to ids, which can be passed to methods such as
+     * LineParser.generateFullGraph that expect the index map of 'indexAllIdentifiers'.
+     */
+    public Map<String, Integer> asMap() {
+        return new AbstractMap<>() {
+            @Override
+            public Integer get(Object key) {
+                if (!(key instanceof String)) {
+                    return null;
+                }
+                int id = IdentifierInterner.this.get((String) key);
+                return id < 0 ? null : id;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return IdentifierInterner.this.size();
+            }
+
+            @Override
+            public Set<Entry<String, Integer>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public Iterator<Entry<String, Integer>> iterator() {
+                        return new EntryIterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        return IdentifierInterner.this.size();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterates over all (identifier, id) pairs, shard by shard.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, Integer>> {
+        private int shard = 0;
+        private int entry = 0;
+
+        @Override
+        public boolean hasNext() {
+            while (shard < shards.length && entry >= shards[shard].numEntries) {
+                shard++;
+                entry = 0;
+            }
+            return shard < shards.length;
+        }
+
+        @Override
+        public Map.Entry<String, Integer> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Shard s = shards[shard];
+            synchronized (s) {
+                int start = s.byteOffsets[entry];
+                String name = new String(s.bytes, start, s.byteOffsets[entry + 1] - start, StandardCharsets.ISO_8859_1);
+                int id = s.ids[entry];
+                entry++;
+                return new AbstractMap.SimpleImmutableEntry<>(name, id);
+            }
+        }
+    }
+
+    private Shard shardOf(int hash) {
+        return shards[hash >>> (32 - shardBits)]; // The upper bits pick the shard, the lower bits the slot.
+    }
+
+    /**
+     * 32 bit FNV-1a hash of the bytes, with a final mixing step so both the upper and lower bits are usable.
+     */
+    static int hash(byte[] bytes, int offset, int length) {
+        int h = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ (bytes[i] & 0xFF)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    /**
+     * Index all identifiers of a (unsplit) data file with several threads, skipping containment lines in the same
+     * way as FusedPipeline does. The file is read with M4Reader, so no strings are created.
+     * @param filename The name or location of the data file.
+     * @param numThreads The number of threads to use.
+     * @param deterministic If true, the ids are renumbered by first occurrence so they are the same on every run.
+     * @return The interned identifiers.
+     * @throws IOException
+     */
+    public static IdentifierInterner indexFile(String filename, int numThreads, boolean deterministic)
+            throws IOException {
+        IdentifierInterner interner = new IdentifierInterner();
+        M4Reader.readParallel(filename, numThreads, () -> line -> {
+            if (line.isContainment()) {
+                return;
+            }
+            for (int field = 0; field < 2; field++) {
+                interner.intern(line.buffer(), line.fieldStart(field), line.fieldLength(field),
+                        line.filePosition() * 2 + field);
+            }
+        });
+        if (deterministic) {
+            interner.renumberByFirstOccurrence();
+        }
+        return interner;
+    }
+}
@@ -0,0 +1,497 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Keeps the results of Main (degree distribution and connected components) up to date as new batches of overlap
+ * lines arrive, without re-indexing the identifiers or regenerating the graph from all chunks. The state consists of
+ * the identifier index, the degree of every vertex, a histogram of the degrees and a union-find structure of the
+ * components; adding a line only updates these, so the cost of an update is proportional to the new data (plus
+ * loading and saving the state, which is proportional to the number of vertices, not edges).
+ *
+ * New identifiers get the next free index in the order they are found, just as in LineParser.indexAllIdentifiers, so
+ * after adding new files the result files are the same as those of a full rebuild over the old and new files in the
+ * same order. Hub pruning and deduplication depend on all edges at once and are not supported here.
+ *
+ * New lines are filtered with the rules of an OverlapFilter, by default only the containment rule. A state started
+ * from the snapshot of Main uses the rules that the filtered chunks were made with (see Main.loadChunkFilter), and
+ * the rules are saved with the state, so every later batch is filtered in the same way.
+ *
+ * The state also records every batch file added by 'main' (its path and content hash, see RunManifest.hash) and the
+ * number of lines added and filtered so far. A batch with the same content as one that was added before is skipped,
+ * so running the same batch twice does not count its lines twice.
+ *
+ * State file layout (all numbers big endian):
+ * <pre>
+ *   magic "GRAPHINC" (8 bytes), version (int)
+ *   filter rules, one per line (int length + UTF-8 bytes)
+ *   lines added (long), lines filtered (long), number of batches N (int)
+ *   N times: batch path, batch content hash (each int length + UTF-8 bytes)
+ *   number of vertices V (int), number of edges (long), number of identifier bytes B (long)
+ *   identifier offsets (V + 1 ints), identifier bytes (B bytes)
+ *   degrees (V ints), component roots (V ints)
+ *   CRC32C checksum of everything above (long)
+ * </pre>
+ *
+ * Usage: java IncrementalGraph [--state FILE] NEW_FILE...
+ */
+public class IncrementalGraph {
+
+    public static final String STATE_PATH = "res/graph.incremental";
+    private static final byte[] MAGIC = "GRAPHINC".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 3;
+
+    private final Map<String, Integer> indices;
+    private String[] names;
+    private int[] degrees;
+    private int[] degreeCounts; // degreeCounts[d] is the number of vertices of degree d.
+    private final ConcurrentUnionFind components;
+    private long numEdges;
+    private OverlapFilter filter = OverlapFilter.containment();
+    private final Map<String, String> batches = new LinkedHashMap<>(); // Content hash to path of every batch added.
+    public long linesAdded;
+    public long linesFiltered;
+
+    /**
+     * Create an empty state, as if no lines had been read yet.
+     */
+    public IncrementalGraph() {
+        this(new String[0], new int[0], new int[0], 0);
+    }
+
+    private IncrementalGraph(String[] names, int[] degrees, int[] roots, long numEdges) {
+        this.names = names;
+        this.degrees = degrees;
+        this.numEdges = numEdges;
+        this.components = new ConcurrentUnionFind(roots);
+        this.indices = new HashMap<>(Math.max(16, names.length * 2));
+        for (int v = 0; v < names.length; v++) {
+            indices.put(names[v], v);
+        }
+        int maxDegree = 0;
+        for (int degree : degrees) {
+            maxDegree = Math.max(maxDegree, degree);
+        }
+        degreeCounts = new int[maxDegree + 1];
+        for (int degree : degrees) {
+            degreeCounts[degree]++;
+        }
+    }
+
+    /**
+     * Create the state of an existing graph, e.g. one loaded from a GraphSnapshot, so that new batches can be added
+     * to it. This needs one pass over the edges of the graph.
+     * @param graph The graph.
+     * @param indices The identifier index of the graph.
+     * @return The state of the graph.
+     */
+    public static IncrementalGraph fromGraph(CompactGraph graph, Map<String, Integer> indices) {
+        int numVertices = graph.numberOfVertices();
+        String[] names = new String[numVertices];
+        for (Map.Entry<String, Integer> entry : indices.entrySet()) {
+            names[entry.getValue()] = entry.getKey();
+        }
+        int[] degrees = new int[numVertices];
+        ConcurrentUnionFind unionFind = new ConcurrentUnionFind(numVertices);
+        int[] offsets = graph.offsets();
+        int[] targets = graph.targets();
+        for (int v = 0; v < numVertices; v++) {
+            degrees[v] = offsets[v + 1] - offsets[v];
+            for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                unionFind.union(v, targets[i]);
+            }
+        }
+        return new IncrementalGraph(names, degrees, unionFind.parents(), graph.numberOfEdges());
+    }
+
+    /**
+     * Set the filter for the lines that are added from now on.
+     * @param filter The filter.
+     */
+    public void setFilter(OverlapFilter filter) {
+        this.filter = filter;
+    }
+
+    public OverlapFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Add the overlap lines of a file: lines rejected by the filter are skipped, and every other line adds an edge
+     * between its two contigs, giving new contigs the next free index.
+     * @param filename The name or location of the file (plain or compressed).
+     * @throws IOException If the file cannot be read.
+     */
+    public void addFile(String filename) throws IOException {
+        long start = System.nanoTime();
+        long[] lines = {0};
+        M4Reader.read(filename, line -> addLine(line, lines));
+        linesAdded += lines[0];
+        RunReport.recordChunk(filename, lines[0], CompressedInput.resolve(filename).length(),
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Add a batch file with 'addFile', unless a file with the same content was added to the state before. The path
+     * and content hash of the batch are recorded in the state.
+     * @param filename The name or location of the file (plain or compressed).
+     * @param manifest Computes the content hash, and keeps it so an unchanged file is only hashed once.
+     * @return True if the batch was added, false if it was skipped.
+     * @throws IOException If the file cannot be read.
+     */
+    public boolean addBatch(String filename, RunManifest manifest) throws IOException {
+        String hash = manifest.hash(new File(filename));
+        String added = batches.get(hash);
+        if (added != null) {
+            System.out.println("Skipping " + filename + ", its content was already added from " + added + ".");
+            return false;
+        }
+        addFile(filename);
+        batches.put(hash, filename);
+        return true;
+    }
+
+    /**
+     * Same as 'addFile' for a byte range of an uncompressed file, e.g. one of the ranges of M4Reader.splitRanges.
+     * @param filename The name or location of the file.
+     * @param range A byte range of the file that starts and ends on line boundaries.
+     * @throws IOException If the file cannot be read.
+     */
+    public void addRange(String filename, M4Reader.ByteRange range) throws IOException {
+        long start = System.nanoTime();
+        long[] lines = {0};
+        M4Reader.read(filename, range, line -> addLine(line, lines));
+        linesAdded += lines[0];
+        RunReport.recordChunk(filename + "[" + range.start + ", " + range.end + ")", lines[0], range.length(),
+                System.nanoTime() - start);
+    }
+
+    private void addLine(M4Reader.M4Line line, long[] lines) {
+        lines[0]++;
+        if (!filter.accept(line)) {
+            linesFiltered++;
+            return;
+        }
+        addEdge(index(line.field(0)), index(line.field(1)));
+    }
+
+    /**
+     * Add the state of another part of the data, e.g. a shard processed by another process. The identifiers of the
+     * other state that are new get the next free indices in the other state's order, so merging the states of
+     * consecutive parts of the data in order gives the same indices, degrees and components as adding all of the
+     * data to a single state. This is proportional to the number of vertices of the other state, not its edges.
+     * @param other The state to add. It is not changed.
+     */
+    public void merge(IncrementalGraph other) {
+        int[] merged = new int[other.numberOfVertices()]; // The index in this state of every vertex of the other.
+        for (int v = 0; v < merged.length; v++) {
+            merged[v] = index(other.names[v]);
+            addDegree(merged[v], other.degrees[v]);
+        }
+        for (int v = 0; v < merged.length; v++) {
+            components.union(merged[v], merged[other.components.find(v)]);
+        }
+        numEdges += other.numEdges;
+        linesAdded += other.linesAdded;
+        linesFiltered += other.linesFiltered;
+        other.batches.forEach(batches::putIfAbsent);
+    }
+
+    private void addDegree(int v, int amount) {
+        int degree = degrees[v];
+        degrees[v] += amount;
+        degreeCounts[degree]--;
+        if (degree + amount >= degreeCounts.length) {
+            degreeCounts = Arrays.copyOf(degreeCounts, Math.max(degreeCounts.length * 2, degree + amount + 1));
+        }
+        degreeCounts[degree + amount]++;
+    }
+
+    /**
+     * Add an edge between two vertices, updating their degrees, the degree histogram and the components.
+     * @param v1 An integer representing the first vertex.
+     * @param v2 An integer representing the second vertex.
+     */
+    public void addEdge(int v1, int v2) {
+        incrementDegree(v1);
+        incrementDegree(v2);
+        components.union(v1, v2);
+        numEdges++;
+    }
+
+    private void incrementDegree(int v) {
+        int degree = degrees[v]++;
+        degreeCounts[degree]--;
+        if (degree + 1 == degreeCounts.length) {
+            degreeCounts = Arrays.copyOf(degreeCounts, degreeCounts.length * 2);
+        }
+        degreeCounts[degree + 1]++;
+    }
+
+    /**
+     * @return The index of an identifier, assigning the next free index if the identifier has not been seen before.
+     */
+    private int index(String identifier) {
+        Integer index = indices.get(identifier);
+        if (index == null) {
+            index = indices.size();
+            indices.put(identifier, index);
+            if (index == names.length) {
+                int capacity = Math.max(16, names.length + (names.length >> 1));
+                names = Arrays.copyOf(names, capacity);
+                degrees = Arrays.copyOf(degrees, capacity);
+            }
+            names[index] = identifier;
+            degreeCounts[0]++; // A new vertex starts with degree 0, the edge that found it is added right after.
+            components.grow(index + 1);
+        }
+        return index;
+    }
+
+    public int numberOfVertices() {
+        return indices.size();
+    }
+
+    public long numberOfEdges() {
+        return numEdges;
+    }
+
+    /**
+     * @return The identifier index, including the identifiers added so far.
+     */
+    public Map<String, Integer> getIndices() {
+        return indices;
+    }
+
+    /**
+     * Get the degree distribution from the histogram. The map is filled in the same way as by
+     * CompactGraph.getDegreeDistribution, so it is written to the same file.
+     * @return A map where keys are degrees and values are total number of vertices of that degree.
+     */
+    public Map<Integer, Integer> getDegreeDistribution() {
+        return AnalysableGraph.toDegreeDistribution(degreeCounts);
+    }
+
+    /**
+     * @return A list of component sizes, in the same order as CompactGraph.findConnectedComponents.
+     */
+    public List<Integer> componentSizes() {
+        return components.componentSizes();
+    }
+
+    /**
+     * Write the state to a file. The file is first written under a temporary name and then moved into place, so a
+     * crash never leaves a half written state behind.
+     * @param filename The name or location of the state file.
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        int numVertices = numberOfVertices();
+        byte[][] nameBytes = new byte[numVertices][];
+        long numNameBytes = 0;
+        for (int v = 0; v < numVertices; v++) {
+            nameBytes[v] = names[v].getBytes(StandardCharsets.ISO_8859_1);
+            numNameBytes += nameBytes[v].length;
+        }
+        Path target = Paths.get(filename);
+        Path temp = Paths.get(filename + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            GraphSnapshot.ChecksummedWriter out = new GraphSnapshot.ChecksummedWriter(channel);
+            out.putBytes(MAGIC);
+            out.putInt(VERSION);
+            out.putString(filter.rules());
+            out.putLong(linesAdded);
+            out.putLong(linesFiltered);
+            out.putInt(batches.size());
+            for (Map.Entry<String, String> batch : batches.entrySet()) {
+                out.putString(batch.getValue());
+                out.putString(batch.getKey());
+            }
+            out.putInt(numVertices);
+            out.putLong(numEdges);
+            out.putLong(numNameBytes);
+            int offset = 0;
+            for (int v = 0; v < numVertices; v++) {
+                out.putInt(offset);
+                offset += nameBytes[v].length;
+            }
+            out.putInt(offset);
+            for (byte[] name : nameBytes) {
+                out.putBytes(name);
+            }
+            out.putInts(Arrays.copyOf(degrees, numVertices));
+            out.putInts(components.parents());
+            out.finish();
+            channel.force(true); // On disk before the move, as in GraphSnapshot.write.
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a state written by 'save'.
+     * @param filename The name or location of the state file.
+     * @return The loaded state.
+     * @throws IOException If the file cannot be read, is not a state file of a supported version, or is corrupt.
+     */
+    public static IncrementalGraph load(String filename) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (InputStream file = Files.newInputStream(Paths.get(filename));
+             DataInputStream in = new DataInputStream(new CheckedInputStream(
+                     new BufferedInputStream(file, 1 << 20), crc))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(filename + " is not an incremental graph state.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported state version " + version + " in " + filename + ".");
+            }
+            String rules = readString(in);
+            long linesAdded = in.readLong();
+            long linesFiltered = in.readLong();
+            int numBatches = in.readInt();
+            Map<String, String> batches = new LinkedHashMap<>();
+            for (int i = 0; i < numBatches; i++) {
+                String path = readString(in);
+                batches.put(readString(in), path);
+            }
+            int numVertices = in.readInt();
+            long numEdges = in.readLong();
+            long numNameBytes = in.readLong();
+            int[] nameOffsets = readInts(in, numVertices + 1);
+            if (numNameBytes > Integer.MAX_VALUE - 8) {
+                throw new IOException("Identifiers of " + filename + " do not fit in an array.");
+            }
+            byte[] nameBytes = new byte[(int) numNameBytes];
+            in.readFully(nameBytes);
+            int[] degrees = readInts(in, numVertices);
+            int[] roots = readInts(in, numVertices);
+            long checksum = crc.getValue();
+            long stored = in.readLong();
+            if (stored != checksum) {
+                throw new IOException("Checksum mismatch in state " + filename + ".");
+            }
+            if (in.read() != -1) {
+                throw new IOException("State " + filename + " has trailing data.");
+            }
+            String[] names = new String[numVertices];
+            for (int v = 0; v < numVertices; v++) {
+                names[v] = new String(nameBytes, nameOffsets[v], nameOffsets[v + 1] - nameOffsets[v],
+                        StandardCharsets.ISO_8859_1);
+            }
+            IncrementalGraph graph = new IncrementalGraph(names, degrees, roots, numEdges);
+            graph.setFilter(OverlapFilter.parse(rules));
+            graph.linesAdded = linesAdded;
+            graph.linesFiltered = linesFiltered;
+            graph.batches.putAll(batches);
+            return graph;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] readInts(DataInputStream in, int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    public static void main(String[] args) {
+        String statePath = STATE_PATH;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("--state")) {
+            statePath = args[1];
+            first = 2;
+        }
+
+        // Start from the saved state if there is one, otherwise from the snapshot written by Main (if it was made
+        // without pruning or deduplication, from chunks with known filter rules), otherwise from an empty graph. New
+        // lines are filtered with the rules of the filtered chunks if they are known.
+        IncrementalGraph graph = null;
+        RunReport.beginStage("state load");
+        try {
+            if (new File(statePath).exists()) {
+                graph = load(statePath);
+            } else {
+                OverlapFilter filter = Main.loadChunkFilter();
+                if (filter != null && new File(Main.SNAPSHOT_PATH).exists()) {
+                    GraphSnapshot snapshot = GraphSnapshot.load(Main.SNAPSHOT_PATH, true);
+                    if (snapshot.filterSettings.equals(Main.describeFilter(filter))) {
+                        graph = fromGraph(snapshot.graph, snapshot.toIndexMap());
+                    }
+                }
+                if (graph == null) {
+                    graph = new IncrementalGraph();
+                }
+                if (filter != null) {
+                    graph.setFilter(filter);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return;
+        }
+        RunReport.endStage();
+        System.out.println("Vertices: " + graph.numberOfVertices() + ", edges: " + graph.numberOfEdges());
+        System.out.println("--------------------");
+
+        // Batches are recognized by their content hash, which the run manifest keeps for unchanged files.
+        RunManifest manifest = RunManifest.load(RunManifest.DEFAULT_PATH);
+        long linesBefore = graph.linesAdded;
+        long filteredBefore = graph.linesFiltered;
+        int skipped = 0;
+        RunReport.beginStage("incremental update");
+        try {
+            for (int i = first; i < args.length; i++) {
+                if (!graph.addBatch(args[i], manifest)) {
+                    skipped++;
+                }
+            }
+            manifest.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        RunReport.recordCount("batches skipped", skipped);
+        RunReport.endStage();
+        System.out.println("Lines added: " + (graph.linesAdded - linesBefore) + ", filtered (" + graph.getFilter()
+                + "): " + (graph.linesFiltered - filteredBefore) + ", batches skipped: " + skipped);
+        System.out.println("Vertices: " + graph.numberOfVertices() + ", edges: " + graph.numberOfEdges());
+        System.out.println("--------------------");
+
+        RunReport.beginStage("state write");
+        try {
+            graph.save(statePath);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        RunReport.endStage();
+
+        Main.writeResults(graph.getDegreeDistribution(), graph.componentSizes(), "");
+        RunReport.write(RunReport.DEFAULT_PATH);
+    }
+}
@@ -1,4 +1,6 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -13,11 +15,13 @@ public class LineParser {
 
     static final String DELIMITER = "\t";
     static final byte NEWLINE = '\n';
+    static final String CHUNK_PREFIX = "res/splits/chunkF"; // Filtered chunks are named chunkF0000 to chunkF0640.
+    static final int NUM_CHUNKS = 641;
 
     /**
      * Implementation of a line counting algorithm. Uses a buffered input stream to read a certain number
      * of bytes at a time, looking for the newline escape sequence '\n'. The goal of this implementation was to make it
-     * as fast as possible using only Java.
+     * as fast as possible using only Java. Gzip and BGZF compressed files are decompressed on the fly.
      * @param filename The name or location of the file to count lines in.
      * @return The number of lines found.
      * @throws IOException
@@ -26,7 +30,7 @@ public class LineParser {
         // Probably only works for ASCII or UTF-8 character encoded files
         // Note: This can easily be done using the word count Unix command with newline option: wc -l
         // Testing a larger buffer size on the BufferedInputStream resulted in faster runtime (default is 8 kB)
-        try (InputStream is = new BufferedInputStream(new FileInputStream(filename), 1024 * 64)) {
+        try (InputStream is = new BufferedInputStream(CompressedInput.openStream(filename), 1024 * 64)) {
             byte[] b = new byte[1024]; // For some reason, 1024 (1 kB) seems very fast
             int readChars = is.read(b); // Read the next 1024 bytes
             if (readChars == -1) { // .read returns -1 if end of file is reached
@@ -69,14 +73,13 @@ public class LineParser {
      */
     public static Map<String, Integer> indexIdentifiers(String filename) {
         Map<String, Integer> indices = new HashMap<>();
-        FileReader fileReader;
+        BufferedReader bufferedReader;
         try {
-            fileReader = new FileReader(filename);
-        } catch (FileNotFoundException e) {
+            bufferedReader = CompressedInput.openReader(filename);
+        } catch (IOException e) {
             e.printStackTrace();
             return indices;
         }
-        BufferedReader bufferedReader = new BufferedReader(fileReader);
 
         String line;
         String[] tokens;
@@ -114,17 +117,29 @@ public class LineParser {
      * @return A map/dictionary between string identifiers and integers.
      */
     public static Map<String, Integer> indexAllIdentifiers() {
+        return indexAllIdentifiers(CHUNK_PREFIX, NUM_CHUNKS);
+    }
+
+    /**
+     * Same as 'indexAllIdentifiers', but reading from a given set of chunk files.
+     * @param chunkPrefix The location of the chunks, up to the four digit chunk number, e.g. "res/splits/chunkF".
+     * @param numChunks The number of chunks.
+     * @return A map/dictionary between string identifiers and integers.
+     */
+    public static Map<String, Integer> indexAllIdentifiers(String chunkPrefix, int numChunks) {
         Map<String, Integer> indices = new HashMap<>();
-        FileReader fileReader;
         String line;
         String[] tokens;
         int indexCount = 0;
-        for (int i = 0; i < 641; i++) { // There are 641 chunks/parts.
+        for (int i = 0; i < numChunks; i++) {
+            String chunkName = chunkPrefix + String.format("%04d", i);
+            long chunkStart = System.nanoTime();
+            long chunkLines = 0;
             try {
-                fileReader = new FileReader("res/splits/chunkF" + String.format("%04d", i));
-                BufferedReader bufferedReader = new BufferedReader(fileReader);
+                BufferedReader bufferedReader = CompressedInput.openReader(chunkName);
                 while (true) {
                     if ((line = bufferedReader.readLine()) != null) {
+                        chunkLines++;
                         tokens = line.split(DELIMITER);
                         if (indices.get(tokens[0]) == null) {
                             indices.put(tokens[0], indexCount++);
@@ -134,14 +149,12 @@ public class LineParser {
                         }
                     } else break;
                 }
-                fileReader.close();
                 bufferedReader.close();
             } catch (IOException e) {
                 e.printStackTrace();
                 break;
             }
-            double percentage = ((double) i) / 640;
-            CustomWriter.updateProgress(percentage);
+            recordChunk(chunkName, chunkLines, chunkStart);
         }
         return indices;
     }
@@ -158,14 +171,13 @@ public class LineParser {
         System.out.println("Generating vertices from indices...");
         Graph g = new Graph(indices.size());
         System.out.println("Vertices generated.");
-        FileReader fileReader;
+        BufferedReader bufferedReader;
         try {
-            fileReader = new FileReader(filename);
-        } catch (FileNotFoundException e) {
+            bufferedReader = CompressedInput.openReader(filename);
+        } catch (IOException e) {
             e.printStackTrace();
             return g;
         }
-        BufferedReader bufferedReader = new BufferedReader(fileReader);
 
         String line;
         String[] tokens;
@@ -194,30 +206,360 @@ public class LineParser {
      * @return A Graph object representation of the data set.
      */
     public static Graph generateFullGraph(Map<String, Integer> indices) {
+        return generateFullGraph(indices, CHUNK_PREFIX, NUM_CHUNKS);
+    }
+
+    /**
+     * Same as 'generateFullGraph', but reading from a given set of chunk files.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @param chunkPrefix The location of the chunks, up to the four digit chunk number, e.g. "res/splits/chunkF".
+     * @param numChunks The number of chunks.
+     * @return A Graph object representation of the data set.
+     */
+    public static Graph generateFullGraph(Map<String, Integer> indices, String chunkPrefix, int numChunks) {
         Graph g = new Graph(indices.size());
         String line;
         String[] tokens;
-        for (int i = 0; i < 641; i++) {
+        for (int i = 0; i < numChunks; i++) {
+            String chunkName = chunkPrefix + String.format("%04d", i);
+            long chunkStart = System.nanoTime();
+            long chunkLines = 0;
             try {
-                FileReader fileReader = new FileReader("res/splits/chunkF" + String.format("%04d", i));
-                BufferedReader bufferedReader = new BufferedReader(fileReader);
+                BufferedReader bufferedReader = CompressedInput.openReader(chunkName);
                 while (true) {
                     if ((line = bufferedReader.readLine()) != null) {
+                        chunkLines++;
                         tokens = line.split(DELIMITER);
                         // Add an edge between the integer representations of the first and second column of the data
                         g.addEdge(indices.get(tokens[0]), indices.get(tokens[1]));
                     } else break;
                 }
-                fileReader.close();
                 bufferedReader.close();
 
             } catch (IOException e) {
                 e.printStackTrace();
                 break;
             }
-            double percentage = ((double) i) / 640;
-            CustomWriter.updateProgress(percentage);
+            recordChunk(chunkName, chunkLines, chunkStart);
         }
         return g;
     }
+
+    /**
+     * Generate a CompactGraph object from the full data set using the index map from 'indexAllIdentifiers'. This
+     * reads the same filtered chunks as 'generateFullGraph', but collects the edges in a primitive EdgeList first,
+     * since the CSR representation needs to know every vertex degree before the adjacency lists can be filled in.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @return A CompactGraph object representation of the data set.
+     */
+    public static CompactGraph generateFullCompactGraph(Map<String, Integer> indices) throws IOException {
+        return generateFullCompactGraph(indices, null, false);
+    }
+
+    /**
+     * Generate a CompactGraph object from the full data set, leaving out the edges rejected by a DegreePruner. The
+     * pruned edges are never stored, so the repeat hubs do not take up any memory.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @param pruner Decides which edges to keep, or null to keep all edges.
+     * @param deduplicate If true, self-loops and duplicate edges (including A-B listed again as B-A) are removed
+     *                    before the adjacency lists are built.
+     * @return A CompactGraph object representation of the data set.
+     * @throws IOException If a chunk cannot be read.
+     */
+    public static CompactGraph generateFullCompactGraph(Map<String, Integer> indices, DegreePruner pruner,
+                                                        boolean deduplicate) throws IOException {
+        return generateFullCompactGraph(indices, pruner, deduplicate, CHUNK_PREFIX, NUM_CHUNKS);
+    }
+
+    /**
+     * Same as 'generateFullCompactGraph', but reading from a given set of chunk files.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @param pruner Decides which edges to keep, or null to keep all edges.
+     * @param deduplicate If true, self-loops and duplicate edges are removed.
+     * @param chunkPrefix The location of the chunks, up to the four digit chunk number, e.g. "res/splits/chunkF".
+     * @param numChunks The number of chunks.
+     * @return A CompactGraph object representation of the data set.
+     * @throws IOException If a chunk cannot be read.
+     */
+    public static CompactGraph generateFullCompactGraph(Map<String, Integer> indices, DegreePruner pruner,
+                                                        boolean deduplicate, String chunkPrefix, int numChunks)
+            throws IOException {
+        return generateFullCompactGraph(indices, pruner, deduplicate, chunkPrefix, numChunks, null);
+    }
+
+    /**
+     * Same as 'generateFullCompactGraph', but with the edges of every chunk kept as a checkpoint file in
+     * RunManifest.CHECKPOINT_DIR. A chunk that was read before with the same identifier index, and has not changed
+     * since, is loaded from its checkpoint instead of being parsed, so a run that was stopped part way only parses the
+     * chunks it had not reached. The checkpoints hold all edges of a chunk, and the pruner is applied when they are
+     * loaded, so the checkpoints do not depend on the pruning settings.
+     *
+     * The chunks that have to be parsed go through a PipelinedParser, so reading, parsing and adding the edges
+     * overlap. Its sink adds the edges of the chunks in chunk order, loading the checkpointed chunks in between, so
+     * the graph is the same as when every chunk is read one after the other.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @param pruner Decides which edges to keep, or null to keep all edges.
+     * @param deduplicate If true, self-loops and duplicate edges are removed.
+     * @param chunkPrefix The location of the chunks, up to the four digit chunk number, e.g. "res/splits/chunkF".
+     * @param numChunks The number of chunks.
+     * @param manifest The manifest recording the completed chunks, or null to parse every chunk without checkpoints.
+     * @return A CompactGraph object representation of the data set.
+     * @throws IOException If a chunk or a checkpoint cannot be read, or a checkpoint cannot be written.
+     */
+    public static CompactGraph generateFullCompactGraph(Map<String, Integer> indices, DegreePruner pruner,
+                                                        boolean deduplicate, String chunkPrefix, int numChunks,
+                                                        RunManifest manifest) throws IOException {
+        String fingerprint = manifest != null ? RunManifest.fingerprint(indices) : null;
+        boolean[] checkpointed = new boolean[numChunks];
+        int numToParse = 0;
+        for (int i = 0; i < numChunks; i++) {
+            File chunk = chunkFile(chunkPrefix, i);
+            checkpointed[i] = manifest != null
+                    && manifest.find("graph", chunk.getName(), chunk, fingerprint, checkpointFile(chunk)) != null;
+            numToParse += checkpointed[i] ? 0 : 1;
+        }
+        int[] toParse = new int[numToParse];
+        for (int i = 0, j = 0; i < numChunks; i++) {
+            if (!checkpointed[i]) {
+                toParse[j++] = i;
+            }
+        }
+        ChunkEdgeSink sink = new ChunkEdgeSink(pruner, chunkPrefix, checkpointed, manifest, fingerprint);
+        PipelinedParser pipeline = new PipelinedParser(chunkPrefix, numChunks,
+                Runtime.getRuntime().availableProcessors());
+        pipeline.run(toParse, PipelinedParser.edgeParser(indices), sink);
+        sink.finishUpTo(numChunks);
+        if (numToParse > 0) {
+            pipeline.printStalls();
+        }
+        if (manifest != null) {
+            manifest.save();
+        }
+        EdgeList edges = sink.edges;
+        if (deduplicate) {
+            int rawEdges = edges.size();
+            edges.deduplicate(Runtime.getRuntime().availableProcessors());
+            System.out.println("Raw edges: " + rawEdges + ", unique edges: " + edges.size() + ".");
+        }
+        return new CompactGraph(indices.size(), edges);
+    }
+
+    private static File chunkFile(String chunkPrefix, int chunk) {
+        return new File(chunkPrefix + String.format("%04d", chunk));
+    }
+
+    private static File checkpointFile(File chunk) {
+        return new File(RunManifest.CHECKPOINT_DIR + "graph/" + chunk.getName() + ".edges");
+    }
+
+    /**
+     * The sink of 'generateFullCompactGraph'. It collects the edges of the chunk that is being parsed, and when the
+     * batches of a later chunk arrive it completes that chunk (writing its checkpoint) and loads the checkpointed
+     * chunks before the new one, so the edges are added in chunk order.
+     */
+    private static final class ChunkEdgeSink implements PipelinedParser.BatchSink<EdgeList> {
+        final EdgeList edges = new EdgeList();
+        private final DegreePruner pruner;
+        private final String chunkPrefix;
+        private final boolean[] checkpointed;
+        private final RunManifest manifest;
+        private final String fingerprint;
+        private int nextChunk = 0; // The first chunk whose edges have not been added yet.
+        private EdgeList chunkEdges = new EdgeList(); // The edges of 'nextChunk' parsed so far.
+
+        ChunkEdgeSink(DegreePruner pruner, String chunkPrefix, boolean[] checkpointed, RunManifest manifest,
+                      String fingerprint) {
+            this.pruner = pruner;
+            this.chunkPrefix = chunkPrefix;
+            this.checkpointed = checkpointed;
+            this.manifest = manifest;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public void accept(int chunk, EdgeList batch) throws IOException {
+            finishUpTo(chunk);
+            for (int i = 0; i < batch.size(); i++) {
+                chunkEdges.add(batch.source(i), batch.target(i));
+            }
+        }
+
+        /**
+         * Add the edges of every chunk before 'chunk'. A parsed chunk without batches is empty.
+         */
+        void finishUpTo(int chunk) throws IOException {
+            for (; nextChunk < chunk; nextChunk++) {
+                File file = chunkFile(chunkPrefix, nextChunk);
+                File checkpoint = checkpointFile(file);
+                if (checkpointed[nextChunk]) {
+                    long chunkStart = System.nanoTime();
+                    EdgeList loaded = readEdges(checkpoint);
+                    add(loaded);
+                    recordChunk(file.getPath(), loaded.size(), chunkStart); // Parsed chunks are recorded by the reader.
+                    continue;
+                }
+                if (manifest != null) {
+                    writeEdges(checkpoint, chunkEdges);
+                    manifest.complete("graph", file.getName(), file, fingerprint, checkpoint,
+                            String.valueOf(chunkEdges.size()));
+                }
+                add(chunkEdges);
+                chunkEdges = new EdgeList();
+            }
+        }
+
+        private void add(EdgeList chunk) {
+            for (int j = 0; j < chunk.size(); j++) {
+                int v1 = chunk.source(j);
+                int v2 = chunk.target(j);
+                if (pruner == null || pruner.keep(v1, v2)) {
+                    edges.add(v1, v2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the edges of a chunk to a checkpoint file, as the number of edges followed by the two vertices of every
+     * edge. The file is written under a temporary name and then moved into place.
+     */
+    private static void writeEdges(File file, EdgeList edges) throws IOException {
+        Files.createDirectories(file.toPath().getParent());
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp),
+                1 << 16))) {
+            out.writeInt(edges.size());
+            for (int i = 0; i < edges.size(); i++) {
+                out.writeInt(edges.source(i));
+                out.writeInt(edges.target(i));
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static EdgeList readEdges(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            int size = in.readInt();
+            EdgeList edges = new EdgeList(size);
+            for (int i = 0; i < size; i++) {
+                edges.add(in.readInt(), in.readInt());
+            }
+            return edges;
+        }
+    }
+
+    /**
+     * Out-of-core version of 'generateFullCompactGraph', for when the graph does not fit on the heap. The edges are
+     * passed to an ExternalGraphBuilder, which spills sorted runs to disk whenever its memory budget is used up, and
+     * merges them into an adjacency file that the DiskGraph analyses stream over.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @param pruner Decides which edges to keep, or null to keep all edges.
+     * @param deduplicate If true, self-loops and duplicate edges are removed.
+     * @param memoryBudget The number of bytes the edge buffer may use.
+     * @param filename The name or location of the adjacency file to create; the runs are written next to it.
+     * @param chunkPrefix The location of the chunks, up to the four digit chunk number, e.g. "res/splits/chunkF".
+     * @param numChunks The number of chunks.
+     * @return A DiskGraph object representation of the data set.
+     * @throws IOException If a chunk cannot be read, or a run or the adjacency file cannot be written.
+     */
+    public static DiskGraph generateFullDiskGraph(Map<String, Integer> indices, DegreePruner pruner,
+                                                  boolean deduplicate, long memoryBudget, String filename,
+                                                  String chunkPrefix, int numChunks) throws IOException {
+        File tempDir = new File(filename).getAbsoluteFile().getParentFile();
+        ExternalGraphBuilder builder = new ExternalGraphBuilder(indices.size(), memoryBudget, tempDir,
+                Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < numChunks; i++) {
+            String chunkName = chunkPrefix + String.format("%04d", i);
+            long chunkStart = System.nanoTime();
+            long chunkLines = parseEdges(chunkName, indices, (v1, v2) -> {
+                if (pruner == null || pruner.keep(v1, v2)) {
+                    builder.addEdge(v1, v2);
+                }
+            });
+            recordChunk(chunkName, chunkLines, chunkStart);
+        }
+        System.out.println("Edges: " + builder.numberOfEdgesAdded() + ", sorted runs spilled: "
+                + builder.numberOfRuns() + ".");
+        return builder.build(filename, deduplicate);
+    }
+
+    /**
+     * Count the degree of every vertex of the full data set without building a graph, by reading the filtered chunks
+     * and incrementing a counter for both contigs of each line. Only the first two fields of each line are looked at.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @return An array with the degree of each vertex, indexed by vertex.
+     * @throws IOException If a chunk cannot be read.
+     */
+    public static int[] countDegrees(Map<String, Integer> indices) throws IOException {
+        return countDegrees(indices, CHUNK_PREFIX, NUM_CHUNKS);
+    }
+
+    /**
+     * Same as 'countDegrees', but reading from a given set of chunk files.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @param chunkPrefix The location of the chunks, up to the four digit chunk number, e.g. "res/splits/chunkF".
+     * @param numChunks The number of chunks.
+     * @return An array with the degree of each vertex, indexed by vertex.
+     * @throws IOException If a chunk cannot be read. Degrees of only some of the chunks would make a DegreePruner
+     *                     prune the wrong vertices, so there is no partial result.
+     */
+    public static int[] countDegrees(Map<String, Integer> indices, String chunkPrefix, int numChunks)
+            throws IOException {
+        int[] degrees = new int[indices.size()];
+        for (int i = 0; i < numChunks; i++) {
+            String chunkName = chunkPrefix + String.format("%04d", i);
+            long chunkStart = System.nanoTime();
+            long chunkLines = parseEdges(chunkName, indices, (v1, v2) -> {
+                degrees[v1]++;
+                degrees[v2]++;
+            });
+            recordChunk(chunkName, chunkLines, chunkStart);
+        }
+        return degrees;
+    }
+
+    /**
+     * Receives the two vertices of every line of a chunk.
+     */
+    private interface EdgeVisitor {
+        void visit(int v1, int v2) throws IOException;
+    }
+
+    /**
+     * Read the lines of a chunk with M4Reader and pass the indices of the two contigs of every line to a visitor.
+     * Only the two identifier fields become Strings, for the lookup in the index map; the line itself does not.
+     * @param chunkName The name of the chunk file (plain or compressed).
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @param visitor Receives the two vertices of every line.
+     * @return The number of lines read.
+     * @throws IOException If the chunk cannot be read, or the visitor fails.
+     */
+    private static long parseEdges(String chunkName, Map<String, Integer> indices, EdgeVisitor visitor)
+            throws IOException {
+        long[] lines = {0};
+        try {
+            M4Reader.read(CompressedInput.resolve(chunkName).getPath(), line -> {
+                lines[0]++;
+                try {
+                    visitor.visit(indices.get(line.field(0)), indices.get(line.field(1)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return lines[0];
+    }
+
+    /**
+     * Report a processed chunk to the current stage of the RunReport.
+     * @param chunkName The name of the chunk file.
+     * @param lines The number of lines read from the chunk.
+     * @param startNanos The time the chunk was opened, from System.nanoTime.
+     */
+    private static void recordChunk(String chunkName, long lines, long startNanos) {
+        RunReport.recordChunk(chunkName, lines, CompressedInput.resolve(chunkName).length(),
+                System.nanoTime() - startNanos);
+    }
 }
@@ -1,9 +1,12 @@
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
 
 
 /**
@@ -12,6 +15,16 @@ import java.util.concurrent.atomic.AtomicInteger;
  * 'true' overlaps, and supports writing custom tasks that can be processed in parallel using
  * one or more threads. This class is similar to LineParser, but performs tasks that can make use of
  * parallel processing.
+ *
+ * The files are processed on a ForkJoinPool in map/reduce style: every file is mapped to a result of its own (see
+ * 'mapFiles' and 'reduceLines'), and the results are merged pairwise in file order once both halves of a range of
+ * files are done. Threads therefore never share mutable results, the merged result is the same on every run, the
+ * methods only return when every file has been processed, and a file that cannot be read makes the whole method fail
+ * with an IOException instead of leaving out part of the data.
+ *
+ * With a RunManifest (see 'setManifest'), filtering and indexing keep track of the chunks they have completed, and a
+ * run that is started again after a crash, or after some chunks have changed, only processes the chunks that are
+ * missing or changed.
  */
 public class LineParserParallel {
 
@@ -22,15 +35,106 @@ public class LineParserParallel {
     private final String targetDir;
     private final int numFiles;
     private final int numThreads;
-    private ExecutorService threadPool;
     public Set<String> identifiers;
     public Map<Integer, Set<Integer>> exclusions;
+    public ConcurrentUnionFind components;
+    public IdentifierInterner interner;
+    public long[] rejections;
+    private RunManifest manifest;
 
     /**
-     * Base class for a runnable task to parse each line of a specific file. Intended to be run by another thread.
-     * The format for the filename needs to be adjusted if the directory or any filenames are modified.
+     * Check if one contig is contained in the other by checking if the overlap is the whole contig. Such overlaps
+     * are 'false' overlaps and are not edges of the graph.
+     * @param fields The tab separated fields of a line of the data file.
+     * @return True if the line is a containment.
      */
-    abstract class LineParseTask implements Runnable {
+    static boolean isContainment(String[] fields) {
+        return (fields[5].equals("0") && fields[6].equals(fields[7])) // overlap is all of first contig
+                || (fields[9].equals("0") && fields[10].equals(fields[11])); // overlap is all of second contig
+    }
+
+    /**
+     * Maps a single file, given by its index, to a result. Used with 'mapFiles'.
+     * @param <R> The type of the result.
+     */
+    public interface FileMapper<R> {
+        R map(int fileIndex) throws IOException;
+    }
+
+    /**
+     * A per-line analysis for 'reduceLines'. Every file gets an accumulator of its own, which is only used by the
+     * thread processing that file, so the accumulator does not need to be thread safe. The accumulators are then
+     * merged two by two, always with the accumulator of the lower file indices on the left.
+     * @param <A> The type of the accumulator.
+     */
+    public interface LineReducer<A> {
+
+        /**
+         * @return A new, empty accumulator.
+         */
+        A newAccumulator();
+
+        /**
+         * Add a line to an accumulator.
+         * @param accumulator The accumulator of the file the line belongs to.
+         * @param fileIndex The index of the file.
+         * @param linePosition The line number within the file, starting at 1.
+         * @param line The line.
+         */
+        void accept(A accumulator, int fileIndex, int linePosition, String line);
+
+        /**
+         * Merge two accumulators. Either of them may be modified and returned.
+         * @param left The accumulator of the lower file indices.
+         * @param right The accumulator of the higher file indices.
+         * @return The merged accumulator.
+         */
+        A merge(A left, A right);
+    }
+
+    /**
+     * Fork/join task that maps the files in [from, to) and merges their results. Ranges of more than one file are
+     * split in half, and the results of the halves are merged in order.
+     */
+    private class FileRangeTask<R> extends RecursiveTask<R> {
+
+        private static final long serialVersionUID = 1L;
+        private final FileMapper<R> mapper;
+        private final BinaryOperator<R> merger;
+        private final int from;
+        private final int to;
+
+        FileRangeTask(FileMapper<R> mapper, BinaryOperator<R> merger, int from, int to) {
+            this.mapper = mapper;
+            this.merger = merger;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from == 1) {
+                try {
+                    return mapper.map(from);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            FileRangeTask<R> left = new FileRangeTask<>(mapper, merger, from, middle);
+            FileRangeTask<R> right = new FileRangeTask<>(mapper, merger, middle, to);
+            right.fork();
+            R leftResult = left.compute();
+            return merger.apply(leftResult, right.join());
+        }
+    }
+
+    /**
+     * Base class for a task to parse each line of a specific file. Intended to be run by another thread, e.g. from
+     * a FileMapper passed to 'mapFiles'. The format for the filename needs to be adjusted if the directory or any
+     * filenames are modified.
+     */
+    abstract class LineParseTask {
 
         protected int fileIndex;
         protected int linePosition;
@@ -43,106 +147,163 @@ public class LineParserParallel {
         protected abstract void doSomethingWithLine(String line);
 
         /**
-         * Attempt to open an read from a file, and do something with each line.
+         * Open and read from a file, and do something with each line. The file may be gzip or BGZF compressed, and
+         * may have a ".gz" suffix that is not part of the file name format.
+         * @return The number of lines read.
+         * @throws IOException If the file cannot be read.
          */
-        @Override
-        public void run() {
+        public int parse() throws IOException {
             String line;
             File file = new File(targetDir + filenamePrefix + String.format("%04d", fileIndex));
-            try {
-                FileReader fr = new FileReader(file);
-                BufferedReader br = new BufferedReader(fr);
+            long start = System.nanoTime();
+            try (BufferedReader br = CompressedInput.openReader(file.getPath())) {
                 while ((line = br.readLine()) != null) {
                     linePosition++;
                     doSomethingWithLine(line);
                 }
-                br.close();
-                fr.close();
-            } catch (IOException e) {
-                e.printStackTrace();
             }
+            recordChunk(file, linePosition, start);
+            return linePosition;
         }
     }
 
     /**
-     * Runnable task that finds exclusions for contig overlaps. If one contig is contained in the other, the task
-     * stores the line position (data point) in a HashMap. The key is the file index and the value is a set of line
-     * positions (integers). THIS TASK IS JUST FOR TESTING as its not very efficient to simply store all exclusions
-     * in a set.
+     * Report a processed file to the current stage of the RunReport.
      */
-    class FindExclusionTask extends LineParseTask {
+    private static void recordChunk(File file, long lines, long startNanos) {
+        RunReport.recordChunk(file.getName(), lines, CompressedInput.resolve(file.getPath()).length(),
+                System.nanoTime() - startNanos);
+    }
 
-        public FindExclusionTask(int fileIndex) {
-            super(fileIndex);
+    /**
+     * Task that filters the lines of a file with an OverlapFilter and copies the lines that pass into a new text
+     * file. The lines are read as bytes with M4Reader and the filter is evaluated on the bytes, so no String is
+     * created for any line, and the lines that pass are copied byte for byte.
+     */
+    class FilteredCopyTask {
+
+        private final int fileIndex;
+        private final OverlapFilter filter;
+        private final long[] rejections; // Number of lines rejected by every rule of the filter.
+        private long linesRead = 0;
+        private long linesCopied = 0;
+
+        public FilteredCopyTask(int fileIndex, OverlapFilter filter) {
+            this.fileIndex = fileIndex;
+            this.filter = filter;
+            this.rejections = new long[filter.numberOfRules()];
         }
 
-        protected void doSomethingWithLine(String line) {
-            String[] fields = line.split(DELIMITER);
-            // Check if one contig is contained in the other by checking if the overlap is the whole contig.
-            if (
-                    (fields[5].equals("0") && fields[6].equals(fields[7])) // overlap is all of first contig
-                    || (fields[9].equals("0") && fields[10].equals(fields[11])) // overlap is all of second contig
-            ) {
-                // First contig contained in second or vice versa, note the position of the exclusion.
-                exclusions.computeIfAbsent(fileIndex, k -> new HashSet<>()); // Make new set if there is none yet.
-                exclusions.get(fileIndex).add(linePosition); // Add the line position to the set of exclusions for the file.
+        /**
+         * Filter a file and write the copy. The format of the files are:
+         * [target directory][filename prefix] + ####, where #### is a number between 0000 and 9999. For example:
+         * [res/splits/][chunkF][0123]. The suffix number is padded with 0's so that each file name ends with four
+         * digits.
+         * @return The number of lines read.
+         * @throws IOException If the file cannot be read or the copy cannot be written.
+         */
+        public long parse() throws IOException {
+            File sourceFile = sourceFile(fileIndex);
+            File targetFile = filteredFile(fileIndex);
+            // The copy is written under a temporary name and moved into place when it is complete, so a crash never
+            // leaves a partial copy that looks like a finished one.
+            File tempFile = new File(targetFile.getPath() + ".tmp");
+            long start = System.nanoTime();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16)) {
+                M4Reader.read(CompressedInput.resolve(sourceFile.getPath()).getPath(), line -> {
+                    linesRead++;
+                    int rule;
+                    try {
+                        rule = filter.reject(line);
+                    } catch (IllegalArgumentException e) { // Too few fields, or a number that cannot be parsed.
+                        throw new UncheckedIOException(new IOException("Malformed line " + linesRead + " (byte "
+                                + line.filePosition() + ") of " + sourceFile + ": " + e.getMessage(), e));
+                    }
+                    if (rule != OverlapFilter.ACCEPTED) {
+                        rejections[rule]++;
+                        return;
+                    }
+                    try {
+                        line.writeTo(out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    linesCopied++;
+                });
+            } catch (UncheckedIOException e) {
+                Files.deleteIfExists(tempFile.toPath());
+                throw e.getCause();
             }
+            Files.move(tempFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            recordChunk(sourceFile, linesRead, start);
+            return linesRead;
         }
     }
 
     /**
-     * Runnable task that filters out any false overlaps (containments) and copies 'true' overlaps into a new text file.
+     * Task that merges the two contigs of every line into the same component of the shared union-find
+     * structure. The lines are assumed to be filtered already, so every line is an edge of the graph.
      */
-    class FilteredCopyTask extends LineParseTask {
+    class UnionTask extends LineParseTask {
 
-        private PrintWriter writer;
+        private final Map<String, Integer> indices;
 
-        public FilteredCopyTask(int fileIndex) {
+        public UnionTask(int fileIndex, Map<String, Integer> indices) {
             super(fileIndex);
+            this.indices = indices;
         }
 
         protected void doSomethingWithLine(String line) {
             String[] fields = line.split(DELIMITER);
-            // Check if one contig is contained in the other by checking if the overlap is the whole contig.
-            if (
-                    (!fields[5].equals("0") || !fields[6].equals(fields[7])) // overlap is not all of first contig
-                    && (!fields[9].equals("0") || !fields[10].equals(fields[11])) // overlap is not all of second contig
-            ) {
-                writer.println(line); // write line if overlap is not a containment
-            }
+            components.union(indices.get(fields[0]), indices.get(fields[1]));
+        }
+    }
+
+    /**
+     * Task that interns the two contig identifiers of every line into the shared IdentifierInterner. The
+     * position of the line (file index and line number) is passed along, so that the ids can be renumbered in the
+     * order the identifiers first occur. The lines are read as bytes with M4Reader, and the identifiers are interned
+     * straight from the read buffer.
+     */
+    class IndexTask {
+
+        private final int fileIndex;
+        private final Set<String> firstSeen; // The identifiers of the file in the order they first occur, if not null.
+        private int linePosition = 0;
+
+        public IndexTask(int fileIndex) {
+            this(fileIndex, null);
+        }
+
+        public IndexTask(int fileIndex, Set<String> firstSeen) {
+            this.fileIndex = fileIndex;
+            this.firstSeen = firstSeen;
         }
 
         /**
-         * This task needs some additional processing in the run-method since it not only reads from a file but copies
-         * some of its contents and writes it into a new file. The format of the files are:
-         * [target directory][filename prefix] + ####, where #### is a number between 0000 and 9999. For example:
-         * [res/splits/][chunkF][0123]. The suffix number is padded with 0's so that each file name ends with four
-         * digits.
+         * Read the file and intern the identifiers of every line. The file may be gzip or BGZF compressed, and may
+         * have a ".gz" suffix that is not part of the file name format.
+         * @return The number of lines read.
+         * @throws IOException If the file cannot be read.
          */
-        @Override
-        public void run() {
-            String line;
-            File sourceFile = new File(targetDir + filenamePrefix + String.format("%04d", fileIndex));
-            File targetFile = new File(targetDir + filenamePrefix + "F" + String.format("%04d", fileIndex));
-            try {
-                targetFile.createNewFile(); //TODO: check if true/false; if new file was created
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        public int parse() throws IOException {
+            File file = sourceFile(fileIndex);
+            long start = System.nanoTime();
+            M4Reader.read(CompressedInput.resolve(file.getPath()).getPath(), line -> {
+                linePosition++;
+                long order = (((long) fileIndex << 32) | linePosition) * 2;
+                intern(line, 0, order);
+                intern(line, 1, order + 1);
+            });
+            recordChunk(file, linePosition, start);
+            return linePosition;
+        }
 
-            try {
-                FileReader fr = new FileReader(sourceFile);
-                BufferedReader br = new BufferedReader(fr);
-                writer = new PrintWriter(new FileWriter(targetFile));
-                while ((line = br.readLine()) != null) {
-                    linePosition++;
-                    doSomethingWithLine(line);
-                }
-                br.close();
-                fr.close();
-                writer.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+        private void intern(M4Reader.M4Line line, int field, long order) {
+            interner.intern(line.buffer(), line.fieldStart(field), line.fieldLength(field), order);
+            if (firstSeen != null) {
+                firstSeen.add(line.field(field));
             }
         }
     }
@@ -164,53 +325,259 @@ public class LineParserParallel {
     }
 
     /**
-     * Find overlaps that are containments and mark the line position and file index where they are found. THIS METHOD
-     * IS JUST FOR TESTING as it's not very efficient to store all 'false' overlaps.
+     * Keep track of the completed chunks in a manifest, so that filtering and indexing reuse the chunks that were
+     * completed before and have not changed since.
+     * @param manifest The manifest, or null to process every chunk.
      */
-    public void findExclusions() {
-        exclusions = Collections.synchronizedMap(new HashMap<>()); // Initialize storage for exclusions.
-        threadPool = Executors.newFixedThreadPool(numThreads); // Initialize thread pool
-        for (int i = 0; i < numFiles; i++) {
-            // Submit a runnable task for each file.
-            threadPool.submit(new FindExclusionTask(i)); // File index starts at 0
+    public void setManifest(RunManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    private File sourceFile(int fileIndex) {
+        return new File(targetDir + filenamePrefix + String.format("%04d", fileIndex));
+    }
+
+    private File filteredFile(int fileIndex) {
+        return new File(targetDir + filenamePrefix + "F" + String.format("%04d", fileIndex));
+    }
+
+    /**
+     * @return The file where 'filterAndCopy' writes the rules of the filter, e.g. res/splits/chunkF.rules.
+     */
+    public File filterRulesFile() {
+        return new File(targetDir + filenamePrefix + "F.rules");
+    }
+
+    /**
+     * Map every file to a result on a ForkJoinPool with 'numThreads' threads, and merge the results in file order.
+     * Returns when all files have been processed.
+     * @param mapper Maps a file index to the result for that file. Called from several threads at once.
+     * @param merger Merges the results of two adjacent ranges of files, lower file indices on the left.
+     * @param <R> The type of the results.
+     * @return The merged result of all files.
+     * @throws IOException If any of the files could not be read. The remaining files are not waited for.
+     */
+    public <R> R mapFiles(FileMapper<R> mapper, BinaryOperator<R> merger) throws IOException {
+        if (numFiles <= 0) {
+            throw new IllegalStateException("There are no files to process.");
         }
-        threadPool.shutdown(); // Make the thread pool not accept any further tasks.
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
         try {
-            threadPool.awaitTermination(60L, TimeUnit.SECONDS); // Wait for tasks to finish.
-        } catch (InterruptedException e) {
-            // Happens if the thread pool is interrupted while waiting for threads to finish.
-            e.printStackTrace();
+            return pool.invoke(new FileRangeTask<>(mapper, merger, 0, numFiles));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdownNow();
         }
     }
 
+    /**
+     * Run a per-line analysis on every line of every file. Each file is reduced into an accumulator of its own
+     * without any locking, and the accumulators are merged in file order at the end, so the result does not depend
+     * on the number of threads or on scheduling.
+     * @param reducer The analysis.
+     * @param <A> The type of the accumulator.
+     * @return The merged accumulator of all files.
+     * @throws IOException If any of the files could not be read.
+     */
+    public <A> A reduceLines(LineReducer<A> reducer) throws IOException {
+        return mapFiles(fileIndex -> {
+            A accumulator = reducer.newAccumulator();
+            new LineParseTask(fileIndex) {
+                protected void doSomethingWithLine(String line) {
+                    reducer.accept(accumulator, fileIndex, linePosition, line);
+                }
+            }.parse();
+            return accumulator;
+        }, reducer::merge);
+    }
+
+    /**
+     * Find overlaps that are containments and mark the line position and file index where they are found. THIS METHOD
+     * IS JUST FOR TESTING as it's not very efficient to store all 'false' overlaps. The result is stored in
+     * 'exclusions', where the key is the file index and the value is the set of line positions of the containments.
+     * @throws IOException If any of the files could not be read.
+     */
+    public void findExclusions() throws IOException {
+        exclusions = reduceLines(new LineReducer<Map<Integer, Set<Integer>>>() {
+            public Map<Integer, Set<Integer>> newAccumulator() {
+                return new HashMap<>();
+            }
+
+            public void accept(Map<Integer, Set<Integer>> accumulator, int fileIndex, int linePosition, String line) {
+                if (isContainment(line.split(DELIMITER))) {
+                    // First contig contained in second or vice versa, note the position of the exclusion.
+                    accumulator.computeIfAbsent(fileIndex, k -> new HashSet<>()).add(linePosition);
+                }
+            }
+
+            public Map<Integer, Set<Integer>> merge(Map<Integer, Set<Integer>> left,
+                                                    Map<Integer, Set<Integer>> right) {
+                left.putAll(right); // Every file has its own key, so nothing is overwritten.
+                return left;
+            }
+        });
+    }
+
     /**
      * Parse all chunks (parts) of the original data and create filtered copies of them, where 'false' overlaps
      * (containments) are ignored.
+     * @return The number of lines copied, i.e. the number of 'true' overlaps.
+     * @throws IOException If any of the files could not be read or written.
+     */
+    public long filterExclusionsAndCopy() throws IOException {
+        return filterAndCopy(OverlapFilter.containment());
+    }
+
+    /**
+     * Parse all chunks (parts) of the original data and create filtered copies of them, where only the lines that
+     * pass every rule of a filter are copied. The number of lines rejected by every rule is stored in 'rejections'
+     * and added to the current stage of the RunReport. The rules are written to 'filterRulesFile' when all chunks
+     * have been copied.
+     * @param filter The filter.
+     * @return The number of lines copied.
+     * @throws IOException If any of the files could not be read or written.
      */
-    public void filterExclusionsAndCopy() {
-        threadPool = Executors.newFixedThreadPool(numThreads);
-        for (int i = 0; i < numFiles; i++) {
-            threadPool.submit(new FilteredCopyTask(i));
+    public long filterAndCopy(OverlapFilter filter) throws IOException {
+        int numRules = filter.numberOfRules();
+        long[] counts = mapFiles(fileIndex -> { // Lines copied, followed by the rejections of every rule.
+            File source = sourceFile(fileIndex);
+            File target = filteredFile(fileIndex);
+            if (manifest != null) {
+                String done = manifest.find("filter", source.getName(), source, filter.toString(), target);
+                if (done != null) {
+                    return Arrays.stream(done.split(",")).mapToLong(Long::parseLong).toArray();
+                }
+            }
+            FilteredCopyTask task = new FilteredCopyTask(fileIndex, filter);
+            task.parse();
+            long[] result = new long[numRules + 1];
+            result[0] = task.linesCopied;
+            System.arraycopy(task.rejections, 0, result, 1, numRules);
+            if (manifest != null) {
+                StringJoiner joiner = new StringJoiner(",");
+                for (long count : result) {
+                    joiner.add(String.valueOf(count));
+                }
+                manifest.complete("filter", source.getName(), source, filter.toString(), target, joiner.toString());
+            }
+            return result;
+        }, (left, right) -> {
+            for (int i = 0; i < left.length; i++) {
+                left[i] += right[i];
+            }
+            return left;
+        });
+        if (manifest != null) {
+            manifest.save();
         }
-        threadPool.shutdown();
-        try {
-            threadPool.awaitTermination(60L, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        // Next to the filtered copies, so that the graphs built from them are described with the rules that made
+        // them (see Main.describeFilter).
+        filter.save(filterRulesFile().getPath());
+        rejections = Arrays.copyOfRange(counts, 1, counts.length);
+        filter.report(rejections);
+        return counts[0];
+    }
+
+    /**
+     * Find the connected components of the graph without constructing it, by merging the edges of every file
+     * directly into a concurrent union-find structure. Only O(vertices) memory is needed, regardless of the number
+     * of edges. The result is stored in 'components'.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @throws IOException If any of the files could not be read.
+     */
+    public void findComponents(Map<String, Integer> indices) throws IOException {
+        components = new ConcurrentUnionFind(indices.size());
+        // The union-find structure is lock-free and the result does not depend on the order of the unions, so all
+        // files share it instead of each building its own.
+        mapFiles(fileIndex -> (long) new UnionTask(fileIndex, indices).parse(), Long::sum);
+    }
+
+    /**
+     * Parallel version of LineParser.indexAllIdentifiers. Every file is parsed by a thread from the pool, and the
+     * identifiers are interned into a shared, lock striped IdentifierInterner. The result is stored in 'interner', and
+     * 'interner.asMap()' can be used in place of the map returned by LineParser.indexAllIdentifiers.
+     * @param deterministic If true, the ids are renumbered in the order the identifiers first occur in the files,
+     *                      which gives the same ids as the sequential LineParser.indexAllIdentifiers on every run.
+     * @throws IOException If any of the files could not be read.
+     */
+    public void indexAllIdentifiers(boolean deterministic) throws IOException {
+        interner = new IdentifierInterner();
+        if (manifest == null) {
+            mapFiles(fileIndex -> (long) new IndexTask(fileIndex).parse(), Long::sum);
+        } else {
+            mapFiles(this::indexWithCheckpoint, Long::sum);
+            manifest.save();
+        }
+        if (deterministic) {
+            interner.renumberByFirstOccurrence();
+        }
+    }
+
+    /**
+     * Index a file, or read its identifiers from the checkpoint written when it was indexed before. The checkpoint
+     * lists the identifiers of the file in the order they first occur in it, so interning them in that order gives
+     * the same first occurrences, and therefore the same ids after 'renumberByFirstOccurrence', as parsing the file.
+     * @return The number of lines or checkpointed identifiers read.
+     */
+    private long indexWithCheckpoint(int fileIndex) throws IOException {
+        File source = sourceFile(fileIndex);
+        File checkpoint = new File(RunManifest.CHECKPOINT_DIR + "index/" + source.getName() + ".ids");
+        if (manifest.find("index", source.getName(), source, "", checkpoint) != null) {
+            long start = System.nanoTime();
+            long position = 0;
+            try (BufferedReader in = Files.newBufferedReader(checkpoint.toPath(), StandardCharsets.ISO_8859_1)) {
+                String name;
+                while ((name = in.readLine()) != null) {
+                    byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+                    interner.intern(bytes, 0, bytes.length, (((long) fileIndex << 32) | position++) * 2);
+                }
+            }
+            recordChunk(checkpoint, position, start);
+            return position;
+        }
+        Set<String> firstSeen = new LinkedHashSet<>();
+        long lines = new IndexTask(fileIndex, firstSeen).parse();
+        Files.createDirectories(checkpoint.toPath().getParent());
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.ISO_8859_1)) {
+            for (String name : firstSeen) {
+                out.write(name);
+                out.write(NEWLINE);
+            }
         }
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        manifest.complete("index", source.getName(), source, "", checkpoint, String.valueOf(firstSeen.size()));
+        return lines;
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         // Example:
         // Parse all 641 chunks (parts) of the original data, and create filtered copies. The filtered copies will
         // use 'chunkF' as filename prefixes.
+        // The default filter only removes containments; '--filter FILE' reads the rules from a file instead (see
+        // OverlapFilter).
+        // Chunks that were filtered before with the same rules, and have not changed since, are not filtered again
+        // (see RunManifest); '--no-checkpoints' filters every chunk.
+        OverlapFilter filter = OverlapFilter.containment();
+        boolean checkpoints = true;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--filter") && i + 1 < args.length) {
+                filter = OverlapFilter.load(args[++i]);
+            } else if (args[i].equals("--no-checkpoints")) {
+                checkpoints = false;
+            }
+        }
         LineParserParallel lpp = new LineParserParallel("res/splits/", "chunk", 641, 8);
-        long start = System.nanoTime();
-        lpp.filterExclusionsAndCopy();
-        long end = System.nanoTime();
-        long dur = TimeUnit.NANOSECONDS.toMillis((end - start));
-        System.out.println("Parse took " + dur + " ms.");
-        System.out.println("Identifiers: " + lpp.identifiers.size());
+        if (checkpoints) {
+            lpp.setManifest(RunManifest.load(RunManifest.DEFAULT_PATH));
+        }
+        RunReport.beginStage("filter");
+        long copied = lpp.filterAndCopy(filter);
+        RunReport.endStage();
+        System.out.println("True overlaps copied: " + copied);
+        RunReport.write("res/results/filterReport.json");
 //
 //        for (Map.Entry<Integer, Set<Integer>> entry : lpp.exclusions.entrySet()) {
 //            System.out.println("Found " + entry.getValue().size() + " exclusions in file " + entry.getKey());
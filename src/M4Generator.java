@@ -0,0 +1,346 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generator for synthetic overlap data in the M4 format, for testing and benchmarking without the real spruce data.
+ * Each line has the 13 tab separated columns that FilteredCopyTask reads:
+ * <pre>
+ *   qName tName score identity qStrand qStart qEnd qLength tStrand tStart tEnd tLength mapQV
+ * </pre>
+ * Contigs are drawn from a power law distribution, so that a few contigs take part in a huge number of overlaps, like
+ * the repeats of the spruce genome. A configurable share of the lines are containments (qStart = 0 and qEnd = qLength,
+ * or the same for the target), which exercises the fields[5..11] filter; all other lines are proper overlaps where
+ * the end of one contig overlaps the start of the other.
+ *
+ * Every line is generated from the seed and its line number alone, so the output is the same regardless of the number
+ * of threads, and a file and a set of chunks generated with the same settings contain exactly the same lines. Lines
+ * are generated in blocks by several threads and written in order, with a bounded number of blocks in memory.
+ *
+ * Usage: java M4Generator output [--lines N] [--contigs N] [--alpha A] [--containment C] [--seed S] [--threads T]
+ *        [--chunk-lines N]
+ * With --chunk-lines, the output is a chunk prefix and chunks output0000, output0001, ... are written instead.
+ */
+public class M4Generator {
+
+    private static final int BLOCK_LINES = 16_384;
+    private static final int MIN_LENGTH = 1_000;
+    private static final int MAX_LENGTH = 40_000;
+    private static final int MIN_OVERLAP = 200;
+
+    private final int numContigs;
+    private final double alpha;
+    private final double containmentShare;
+    private final long seed;
+
+    /**
+     * @param numContigs The number of different contigs.
+     * @param alpha The exponent of the power law; the probability of picking contig k is proportional to
+     *              (k + 1)^-alpha. Larger values give fewer, bigger hubs; 0 gives a uniform distribution.
+     * @param containmentShare The share (between 0 and 1) of lines that are containments.
+     * @param seed The seed of the random number generator.
+     */
+    public M4Generator(int numContigs, double alpha, double containmentShare, long seed) {
+        this.numContigs = numContigs;
+        this.alpha = alpha;
+        this.containmentShare = containmentShare;
+        this.seed = seed;
+    }
+
+    /**
+     * Write lines [0, numLines) to a single file.
+     * @param filename The name or location of the file to create or overwrite.
+     * @param numLines The number of lines to write.
+     * @param numThreads The number of threads generating lines.
+     * @throws IOException
+     */
+    public void writeFile(String filename, long numLines, int numThreads) throws IOException {
+        ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+        try (OutputStream out = new FileOutputStream(filename)) {
+            writeLines(out, 0, numLines, threadPool, numThreads * 2);
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Write lines [0, numLines) to chunk files prefix0000, prefix0001, ... of chunkLines lines each, in the same
+     * layout as produced by UNIX split. Chunks are written in parallel, one chunk per thread at a time.
+     * @param prefix The location of the chunks, up to the four digit chunk number.
+     * @param numLines The total number of lines to write.
+     * @param chunkLines The number of lines per chunk.
+     * @param numThreads The number of threads generating lines.
+     * @return The number of chunks written.
+     * @throws IOException
+     */
+    public int writeChunks(String prefix, long numLines, int chunkLines, int numThreads) throws IOException {
+        int numChunks = (int) ((numLines + chunkLines - 1) / chunkLines);
+        ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int chunk = 0; chunk < numChunks; chunk++) {
+                long first = (long) chunk * chunkLines;
+                long last = Math.min(numLines, first + chunkLines);
+                String filename = prefix + String.format("%04d", chunk);
+                futures.add(threadPool.submit(() -> {
+                    try (OutputStream out = new FileOutputStream(filename)) {
+                        for (long block = first; block < last; block += BLOCK_LINES) {
+                            ByteBuilder lines = generate(block, Math.min(last, block + BLOCK_LINES));
+                            out.write(lines.bytes, 0, lines.length);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            waitFor(futures);
+        } finally {
+            threadPool.shutdownNow();
+        }
+        return numChunks;
+    }
+
+    /**
+     * Generate the lines in blocks on the thread pool and write them in order, with at most maxInFlight blocks
+     * generated but not yet written.
+     */
+    private void writeLines(OutputStream out, long first, long last, ExecutorService threadPool, int maxInFlight)
+            throws IOException {
+        Deque<Future<ByteBuilder>> inFlight = new ArrayDeque<>();
+        long next = first;
+        try {
+            while (next < last || !inFlight.isEmpty()) {
+                while (next < last && inFlight.size() < maxInFlight) {
+                    long blockStart = next;
+                    long blockEnd = Math.min(last, next + BLOCK_LINES);
+                    inFlight.add(threadPool.submit(() -> generate(blockStart, blockEnd)));
+                    next = blockEnd;
+                }
+                ByteBuilder block = inFlight.poll().get();
+                out.write(block.bytes, 0, block.length);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating lines", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to generate lines", e.getCause());
+        }
+    }
+
+    private static void waitFor(List<Future<Void>> futures) throws IOException {
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating lines", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to generate lines", e.getCause());
+        }
+    }
+
+    /**
+     * Generate lines [first, last).
+     */
+    ByteBuilder generate(long first, long last) {
+        ByteBuilder out = new ByteBuilder((int) (last - first) * 96);
+        for (long line = first; line < last; line++) {
+            generateLine(line, out);
+        }
+        return out;
+    }
+
+    /**
+     * Generate a single line. The random numbers come from a SplitMix64 sequence that starts at a state derived from
+     * the seed and the line number, so each line can be generated independently of all others.
+     */
+    void generateLine(long lineNumber, ByteBuilder out) {
+        long[] state = {mix(seed ^ mix(lineNumber + 0x9E3779B97F4A7C15L))};
+        int q = pickContig(nextDouble(state));
+        int t = pickContig(nextDouble(state));
+        if (t == q) {
+            t = (q + 1) % numContigs;
+        }
+        int qLength = contigLength(q);
+        int tLength = contigLength(t);
+        int qStart, qEnd, tStart, tEnd, overlap;
+        if (nextDouble(state) < containmentShare) {
+            if (qLength <= tLength) { // Query contained in target.
+                overlap = qLength;
+                qStart = 0;
+                qEnd = qLength;
+                tStart = (int) (nextDouble(state) * (tLength - qLength));
+                tEnd = tStart + qLength;
+            } else { // Target contained in query.
+                overlap = tLength;
+                tStart = 0;
+                tEnd = tLength;
+                qStart = (int) (nextDouble(state) * (qLength - tLength));
+                qEnd = qStart + tLength;
+            }
+        } else {
+            // The end of the query overlaps the start of the target, never covering either contig completely.
+            int maxOverlap = Math.min(qLength, tLength) - 1;
+            overlap = MIN_OVERLAP + (int) (nextDouble(state) * (maxOverlap - MIN_OVERLAP));
+            qStart = qLength - overlap;
+            qEnd = qLength;
+            tStart = 0;
+            tEnd = overlap;
+        }
+        int identity = 750 + (int) (nextDouble(state) * 250); // Tenths of a percent.
+        int strand = nextDouble(state) < 0.5 ? 0 : 1;
+
+        out.append("contig").appendPadded(q, 8).append('\t');
+        out.append("contig").appendPadded(t, 8).append('\t');
+        out.append('-').append(overlap * 5).append('\t');
+        out.append(identity / 10).append('.').append(identity % 10).append('\t');
+        out.append(0).append('\t').append(qStart).append('\t').append(qEnd).append('\t').append(qLength).append('\t');
+        out.append(strand).append('\t').append(tStart).append('\t').append(tEnd).append('\t').append(tLength)
+                .append('\t');
+        out.append(254).append('\n');
+    }
+
+    /**
+     * Map a uniform number in [0, 1) to a contig, using the inverse of the cumulative distribution of a continuous
+     * power law on [1, numContigs + 1).
+     */
+    int pickContig(double u) {
+        double n = numContigs + 1;
+        double x;
+        if (Math.abs(alpha - 1.0) < 1e-9) {
+            x = Math.pow(n, u);
+        } else {
+            double e = 1.0 - alpha;
+            x = Math.pow((Math.pow(n, e) - 1.0) * u + 1.0, 1.0 / e);
+        }
+        return Math.min(numContigs - 1, Math.max(0, (int) x - 1));
+    }
+
+    /**
+     * The length of a contig, derived from its number so that it is the same in every line.
+     */
+    int contigLength(int contig) {
+        long h = mix(seed * 31 + contig);
+        return MIN_LENGTH + (int) ((h >>> 1) % (MAX_LENGTH - MIN_LENGTH));
+    }
+
+    private static double nextDouble(long[] state) {
+        state[0] += 0x9E3779B97F4A7C15L;
+        return (mix(state[0]) >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * The SplitMix64 finalizer, a fast mixing function for 64 bit numbers.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Minimal growable byte array for building ASCII lines without creating Strings.
+     */
+    static final class ByteBuilder {
+        byte[] bytes;
+        int length;
+
+        ByteBuilder(int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        ByteBuilder append(char c) {
+            ensure(1);
+            bytes[length++] = (byte) c;
+            return this;
+        }
+
+        ByteBuilder append(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                bytes[length++] = (byte) s.charAt(i);
+            }
+            return this;
+        }
+
+        ByteBuilder append(int value) {
+            return appendPadded(value, 1);
+        }
+
+        /**
+         * Append a non-negative integer, padded with zeros to at least the given number of digits.
+         */
+        ByteBuilder appendPadded(int value, int digits) {
+            int n = 1;
+            for (int v = value / 10; v > 0; v /= 10) {
+                n++;
+            }
+            n = Math.max(n, digits);
+            ensure(n);
+            for (int i = length + n - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += n;
+            return this;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: java M4Generator output [--lines N] [--contigs N] [--alpha A] "
+                    + "[--containment C] [--seed S] [--threads T] [--chunk-lines N]");
+            return;
+        }
+        String output = args[0];
+        long numLines = 1_000_000;
+        int numContigs = 200_000;
+        double alpha = 1.2;
+        double containment = 0.3;
+        long seed = 42;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int chunkLines = 0;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--lines": numLines = Long.parseLong(args[i + 1]); break;
+                case "--contigs": numContigs = Integer.parseInt(args[i + 1]); break;
+                case "--alpha": alpha = Double.parseDouble(args[i + 1]); break;
+                case "--containment": containment = Double.parseDouble(args[i + 1]); break;
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                case "--threads": numThreads = Integer.parseInt(args[i + 1]); break;
+                case "--chunk-lines": chunkLines = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        M4Generator generator = new M4Generator(numContigs, alpha, containment, seed);
+        RunReport.beginStage("generate");
+        if (chunkLines > 0) {
+            int numChunks = generator.writeChunks(output, numLines, chunkLines, numThreads);
+            System.out.println("Wrote " + numLines + " lines to " + numChunks + " chunks " + output + "####.");
+        } else {
+            generator.writeFile(output, numLines, numThreads);
+            System.out.println("Wrote " + numLines + " lines to " + output + ".");
+        }
+        RunReport.recordCount("lines written", numLines);
+        RunReport.endStage();
+    }
+}
@@ -0,0 +1,538 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Byte level reader for the tab separated M4 data file. Instead of reading lines as strings and splitting them, the
+ * file is memory mapped with FileChannel.map, copied out in large blocks, and each line is handed to a LineVisitor as
+ * an M4Line: a reusable view that knows where each field starts and ends in the block, and that can parse integer
+ * fields in place. No objects are allocated per line unless the visitor asks for a field as a String.
+ *
+ * A single large file can be split into byte ranges that start and end on line boundaries, so that several threads
+ * can parse the same file in parallel, without splitting it into chunk files first.
+ */
+public class M4Reader {
+
+    static final byte DELIMITER = '\t';
+    static final byte NEWLINE = '\n';
+    static final byte CARRIAGE_RETURN = '\r';
+    static final int MAX_FIELDS = 16; // M4 lines have 13 fields; later fields are only kept as part of the line.
+    static final long WINDOW_SIZE = 1L << 30; // A single mapping can be at most 2 GB, so map 1 GB at a time.
+    static final int BLOCK_SIZE = 1 << 22; // Bytes are copied from the mapping 4 MB at a time.
+
+    /**
+     * Callback interface for doing something with each line of a byte range.
+     */
+    public interface LineVisitor {
+        void visit(M4Line line);
+    }
+
+    /**
+     * A range of bytes [start, end) of a file. The start is the first byte of a line and the end is the first byte
+     * after a newline (or the end of the file).
+     */
+    public static final class ByteRange {
+        public final long start;
+        public final long end;
+
+        public ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long length() {
+            return end - start;
+        }
+    }
+
+    /**
+     * A view of a single line in a mapped buffer. The same object is reused for every line of a range, so visitors
+     * must not hold on to it (or to offsets into it) after 'visit' returns.
+     */
+    public static final class M4Line {
+
+        private byte[] buffer;
+        private final int[] fieldStarts = new int[MAX_FIELDS];
+        private final int[] fieldEnds = new int[MAX_FIELDS];
+        private int numFields;
+        private int lineStart;
+        private int lineEnd; // Excludes the newline, and a carriage return before it.
+        private long filePosition;
+
+        /**
+         * Find the fields of the line between two positions in the buffer. The end position excludes the newline.
+         */
+        void set(byte[] buffer, int start, int end, long filePosition) {
+            this.buffer = buffer;
+            this.filePosition = filePosition;
+            if (end > start && buffer[end - 1] == CARRIAGE_RETURN) {
+                end--;
+            }
+            lineStart = start;
+            lineEnd = end;
+            numFields = 0;
+            int fieldStart = start;
+            for (int i = start; i < end; i++) {
+                if (buffer[i] == DELIMITER) {
+                    addField(fieldStart, i);
+                    fieldStart = i + 1;
+                }
+            }
+            addField(fieldStart, end);
+        }
+
+        private void addField(int start, int end) {
+            if (numFields < MAX_FIELDS) {
+                fieldStarts[numFields] = start;
+                fieldEnds[numFields] = end;
+                numFields++;
+            }
+        }
+
+        public int numberOfFields() {
+            return numFields;
+        }
+
+        /**
+         * Make sure that a field exists, so that a line that is too short is never read with the field positions of
+         * an earlier line.
+         * @throws IllegalArgumentException If the line has no such field.
+         */
+        private void checkField(int field) {
+            if (field < 0 || field >= numFields) {
+                throw new IllegalArgumentException("The line at byte " + filePosition + " has " + numFields
+                        + " fields, field " + field + " does not exist.");
+            }
+        }
+
+        /**
+         * @return The position of the first byte of the line in the file.
+         */
+        public long filePosition() {
+            return filePosition;
+        }
+
+        public int fieldLength(int field) {
+            checkField(field);
+            return fieldEnds[field] - fieldStarts[field];
+        }
+
+        /**
+         * @return The position of the first byte of a field in 'buffer()'.
+         */
+        public int fieldStart(int field) {
+            checkField(field);
+            return fieldStarts[field];
+        }
+
+        /**
+         * @return The array holding the bytes of the line. Together with 'fieldStart' and 'fieldLength' this gives
+         * direct access to the bytes of a field, e.g. for IdentifierInterner.intern, without copying.
+         */
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        /**
+         * @return The byte at a position relative to the start of a field.
+         */
+        public byte byteAt(int field, int position) {
+            checkField(field);
+            return buffer[fieldStarts[field] + position];
+        }
+
+        /**
+         * Parse a field as an integer directly from the bytes, without creating a String.
+         * @param field The index of the field, starting at 0.
+         * @return The integer value of the field.
+         * @throws NumberFormatException If the field is not an integer.
+         * @throws IllegalArgumentException If the line has no such field.
+         */
+        public int intField(int field) {
+            checkField(field);
+            int i = fieldStarts[field];
+            int end = fieldEnds[field];
+            boolean negative = false;
+            if (i < end && buffer[i] == '-') {
+                negative = true;
+                i++;
+            }
+            if (i == end) {
+                throw new NumberFormatException("Field " + field + " is not an integer: " + field(field));
+            }
+            int value = 0;
+            for (; i < end; i++) {
+                int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("Field " + field + " is not an integer: " + field(field));
+                }
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * Parse a field as a decimal number (digits with an optional sign and decimal point, like the identity
+         * column) directly from the bytes, without creating a String.
+         * @param field The index of the field, starting at 0.
+         * @return The value of the field.
+         * @throws NumberFormatException If the field is not a decimal number.
+         * @throws IllegalArgumentException If the line has no such field.
+         */
+        public double decimalField(int field) {
+            checkField(field);
+            int i = fieldStarts[field];
+            int end = fieldEnds[field];
+            boolean negative = false;
+            if (i < end && buffer[i] == '-') {
+                negative = true;
+                i++;
+            }
+            long digits = 0;
+            int numDigits = 0;
+            int decimals = -1; // Number of digits after the decimal point, or -1 before the point.
+            for (; i < end; i++) {
+                byte b = buffer[i];
+                if (b == '.' && decimals < 0) {
+                    decimals = 0;
+                } else if (b >= '0' && b <= '9' && numDigits < 18) { // 18 digits always fit in a long.
+                    digits = digits * 10 + (b - '0');
+                    numDigits++;
+                    if (decimals >= 0) {
+                        decimals++;
+                    }
+                } else {
+                    return Double.parseDouble(field(field)); // Exponents, very long numbers and malformed fields.
+                }
+            }
+            if (numDigits == 0) {
+                throw new NumberFormatException("Field " + field + " is not a number: " + field(field));
+            }
+            double value = decimals > 0 ? digits / Math.pow(10, decimals) : digits;
+            return negative ? -value : value;
+        }
+
+        /**
+         * Write the whole line and a newline to a stream, without creating a String. This includes any fields after
+         * the first MAX_FIELDS, which are not split up but are still part of the line.
+         * @param out The stream to write to.
+         * @throws IOException If the stream cannot be written.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, lineStart, lineEnd - lineStart);
+            out.write(NEWLINE);
+        }
+
+        /**
+         * @return True if the two fields consist of the same bytes.
+         * @throws IllegalArgumentException If the line has no such fields.
+         */
+        public boolean fieldEquals(int field1, int field2) {
+            int length = fieldLength(field1);
+            if (length != fieldLength(field2)) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buffer[fieldStarts[field1] + i] != buffer[fieldStarts[field2] + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return True if the field is exactly the given (ASCII) character.
+         * @throws IllegalArgumentException If the line has no such field.
+         */
+        public boolean fieldIs(int field, char c) {
+            return fieldLength(field) == 1 && buffer[fieldStarts[field]] == c;
+        }
+
+        /**
+         * Copy the bytes of a field into an array.
+         * @param field The index of the field.
+         * @param dst The destination array, which must be large enough to hold the field.
+         * @return The number of bytes copied.
+         */
+        public int copyField(int field, byte[] dst) {
+            int length = fieldLength(field);
+            System.arraycopy(buffer, fieldStarts[field], dst, 0, length);
+            return length;
+        }
+
+        /**
+         * @return The field as a new String. This allocates, so it should be avoided in hot loops where possible.
+         */
+        public String field(int field) {
+            int length = fieldLength(field);
+            return new String(buffer, fieldStarts[field], length, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * @return The whole line as a new String (without the trailing newline), including any fields after the first
+         * MAX_FIELDS.
+         */
+        public String line() {
+            return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Check if one contig is contained in the other, in the same way as LineParserParallel.isContainment but
+         * directly on the bytes of the line.
+         * @return True if the line is a containment ('false' overlap).
+         */
+        public boolean isContainment() {
+            return (fieldIs(5, '0') && fieldEquals(6, 7)) // overlap is all of first contig
+                    || (fieldIs(9, '0') && fieldEquals(10, 11)); // overlap is all of second contig
+        }
+    }
+
+    /**
+     * Split a file into byte ranges of roughly equal size that start and end on line boundaries.
+     * @param filename The name or location of the file.
+     * @param numRanges The desired number of ranges. Fewer ranges are returned for small files.
+     * @return A list of byte ranges that together cover the whole file.
+     * @throws IOException
+     */
+    public static List<ByteRange> splitRanges(String filename, int numRanges) throws IOException {
+        List<ByteRange> ranges = new ArrayList<>();
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            long size = file.length();
+            long target = Math.max(1, size / Math.max(1, numRanges));
+            long start = 0;
+            while (start < size) {
+                long end = Math.min(size, start + target);
+                // Move the end forward to just after the next newline.
+                file.seek(end);
+                int b;
+                while (end < size && (b = file.read()) != -1) {
+                    end++;
+                    if (b == NEWLINE) {
+                        break;
+                    }
+                }
+                ranges.add(new ByteRange(start, end));
+                start = end;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Read every line of a byte range of a file, and pass each line to the visitor. The range is memory mapped one
+     * window at a time, and copied from the mapping in large blocks.
+     * @param filename The name or location of the file.
+     * @param range A byte range of the file that starts and ends on line boundaries.
+     * @param visitor The visitor that does something with each line.
+     * @throws IOException
+     */
+    public static void read(String filename, ByteRange range, LineVisitor visitor) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+             FileChannel channel = file.getChannel()) {
+            parse(new MappedSource(channel, range), range.start, visitor);
+        }
+    }
+
+    /**
+     * Read every line of a stream, e.g. a decompressed file from CompressedInput, and pass each line to the visitor.
+     * The file positions reported by the lines are positions in the stream.
+     * @param in The stream to read from. It is not closed.
+     * @param visitor The visitor that does something with each line.
+     * @throws IOException
+     */
+    public static void read(InputStream in, LineVisitor visitor) throws IOException {
+        parse(in::read, 0, visitor);
+    }
+
+    /**
+     * Read a whole file with a single visitor on the calling thread. Gzip and BGZF compressed files are decompressed
+     * on the fly (see CompressedInput), other files are memory mapped.
+     * @param filename The name or location of the file.
+     * @param visitor The visitor that does something with each line.
+     * @throws IOException
+     */
+    public static void read(String filename, LineVisitor visitor) throws IOException {
+        if (CompressedInput.isCompressed(filename)) {
+            try (InputStream in = CompressedInput.openStream(filename)) {
+                read(in, visitor);
+            }
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            read(filename, new ByteRange(0, file.length()), visitor);
+        }
+    }
+
+    /**
+     * Source of bytes for 'parse'. Same contract as InputStream.read(byte[], int, int).
+     */
+    private interface ByteSource {
+        int read(byte[] b, int off, int len) throws IOException;
+    }
+
+    /**
+     * Reads a byte range of a file through memory mappings of at most WINDOW_SIZE bytes.
+     */
+    private static class MappedSource implements ByteSource {
+        private final FileChannel channel;
+        private final long end;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedSource(FileChannel channel, ByteRange range) {
+            this.channel = channel;
+            this.end = range.end;
+            this.windowStart = range.start;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (window == null || !window.hasRemaining()) {
+                if (window != null) {
+                    windowStart += window.capacity();
+                }
+                if (windowStart >= end) {
+                    return -1;
+                }
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, end - windowStart));
+            }
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            return n;
+        }
+    }
+
+    /**
+     * Split the bytes of a source into lines and pass each line to the visitor. Bytes are read into a block, all
+     * complete lines of the block are visited, and the incomplete last line is moved to the front of the block before
+     * more bytes are read.
+     * @param source The source of bytes.
+     * @param startPosition The file position of the first byte of the source.
+     * @param visitor The visitor that does something with each line.
+     */
+    private static void parse(ByteSource source, long startPosition, LineVisitor visitor) throws IOException {
+        M4Line line = new M4Line();
+        byte[] block = new byte[BLOCK_SIZE];
+        int filled = 0;
+        long blockPosition = startPosition; // File position of block[0].
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            if (filled == block.length) {
+                block = Arrays.copyOf(block, block.length * 2); // A single line longer than the block.
+            }
+            int n = source.read(block, filled, block.length - filled);
+            if (n < 0) {
+                endOfInput = true;
+            } else {
+                filled += n;
+            }
+            int lineStart = 0;
+            for (int i = 0; i < filled; i++) {
+                if (block[i] == NEWLINE) {
+                    if (i > lineStart) {
+                        line.set(block, lineStart, i, blockPosition + lineStart);
+                        visitor.visit(line);
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            if (endOfInput && lineStart < filled) { // Last line of the input without a trailing newline.
+                line.set(block, lineStart, filled, blockPosition + lineStart);
+                visitor.visit(line);
+                lineStart = filled;
+            }
+            System.arraycopy(block, lineStart, block, 0, filled - lineStart);
+            filled -= lineStart;
+            blockPosition += lineStart;
+        }
+    }
+
+    /**
+     * Visit the lines of a block of bytes that holds complete lines (the last line may lack its newline).
+     * @param block The bytes.
+     * @param length The number of bytes of the block to parse.
+     * @param visitor The visitor that does something with each line.
+     */
+    public static void parseBlock(byte[] block, int length, LineVisitor visitor) {
+        M4Line line = new M4Line();
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (block[i] == NEWLINE) {
+                if (i > lineStart) {
+                    line.set(block, lineStart, i, lineStart);
+                    visitor.visit(line);
+                }
+                lineStart = i + 1;
+            }
+        }
+        if (lineStart < length) {
+            line.set(block, lineStart, length, lineStart);
+            visitor.visit(line);
+        }
+    }
+
+    /**
+     * Read a file in parallel. The file is split into byte ranges, and each range is read by a thread from a pool
+     * with its own visitor. Since a visitor is only used by one thread, visitors can accumulate results without any
+     * synchronization; the caller merges the results of the returned visitors afterwards. Compressed files cannot be
+     * split into ranges, so they are read by a single visitor.
+     * @param filename The name or location of the file.
+     * @param numThreads The number of threads to use.
+     * @param visitorFactory Creates a new visitor for each byte range.
+     * @param <V> The type of the visitors.
+     * @return The visitors, one per byte range, in file order.
+     * @throws IOException If reading any of the ranges fails.
+     */
+    public static <V extends LineVisitor> List<V> readParallel(String filename, int numThreads,
+                                                               Supplier<V> visitorFactory) throws IOException {
+        if (CompressedInput.isCompressed(filename)) {
+            // A compressed stream cannot be split, so it is parsed by one visitor (but decompressed in parallel).
+            V visitor = visitorFactory.get();
+            try (InputStream in = CompressedInput.openStream(filename, numThreads)) {
+                read(in, visitor);
+            }
+            return new ArrayList<>(List.of(visitor));
+        }
+        // Use a few more ranges than threads, so that threads finishing early can pick up more work.
+        List<ByteRange> ranges = splitRanges(filename, numThreads * 4);
+        List<V> visitors = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (ByteRange range : ranges) {
+                V visitor = visitorFactory.get();
+                visitors.add(visitor);
+                futures.add(threadPool.submit(() -> {
+                    read(filename, range, visitor);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + filename, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to read " + filename, e.getCause());
+        } finally {
+            threadPool.shutdownNow();
+        }
+        return visitors;
+    }
+}
@@ -1,8 +1,13 @@
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 public class Main {
 
     public static final String FILEPATH = "res/Spruce_fingerprint_2017-03-10_16.48.olp.m4";
+    public static final String SNAPSHOT_PATH = "res/graph.snapshot";
+    public static final String ADJACENCY_PATH = "res/graph.adjacency";
+    public static final String FILTER_RULES_PATH = "res/splits/chunkF.rules";
 
     public static void main(String[] args) {
 
@@ -11,50 +16,99 @@ public class Main {
          * with the FilteredCopyTask in LineParserParallel.
          */
 
-        // Index all unique string identifiers to integers.
-        System.out.println("Indexing identifiers...");
-        long start = System.nanoTime();
-        Map<String, Integer> indices = LineParser.indexAllIdentifiers();
-        long end = System.nanoTime();
-        System.out.println();
-        CustomWriter.testDuration(start, end);
-        System.out.println("Unique identifiers found: "+ indices.size());
-        System.out.println("--------------------");
+        // Optional repeat hub pruning: --max-degree N prunes edges touching vertices of degree above N, and
+        // --degree-percentile P prunes edges touching vertices above the P:th percentile of the degree distribution.
+        // --deduplicate removes self-loops and edges that are listed more than once.
+        // --memory-budget MB builds the graph out of core on disk, using at most MB megabytes for edges.
+        // --compressed analyses a gap and varint compressed copy of the graph (see CompressedGraph).
+        // --no-checkpoints indexes and reads every chunk again, instead of reusing the chunks that were completed
+        // before and have not changed since (see RunManifest).
+        Integer maxDegree = null;
+        Double percentile = null;
+        boolean deduplicate = false;
+        Long memoryBudget = null;
+        boolean compressed = false;
+        boolean checkpoints = true;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--max-degree") && i + 1 < args.length) {
+                maxDegree = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--degree-percentile") && i + 1 < args.length) {
+                percentile = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--deduplicate")) {
+                deduplicate = true;
+            } else if (args[i].equals("--memory-budget") && i + 1 < args.length) {
+                memoryBudget = Long.parseLong(args[++i]) * 1024 * 1024;
+            } else if (args[i].equals("--compressed")) {
+                compressed = true;
+            } else if (args[i].equals("--no-checkpoints")) {
+                checkpoints = false;
+            }
+        }
+        String filterSettings;
+        try {
+            filterSettings = describeFilter(loadChunkFilter());
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (deduplicate) {
+            filterSettings += ", duplicate edges removed";
+        }
+        String resultSuffix = "";
+        if (maxDegree != null) {
+            filterSettings += ", hub pruning above degree " + maxDegree;
+            resultSuffix = "Pruned";
+        } else if (percentile != null) {
+            filterSettings += ", hub pruning above degree percentile " + percentile;
+            resultSuffix = "Pruned";
+        }
 
-        // Generate a graph from the integer indices.
-        System.out.println("Generating graph from indices...");
-        start = System.nanoTime();
-        Graph graph = LineParser.generateFullGraph(indices);
-        end = System.nanoTime();
-        System.out.println();
-        System.out.println("Graph generated.");
-        CustomWriter.testDuration(start, end);
-        System.out.println("Vertices: " + graph.numberOfVertices());
-        System.out.println("Edges: " + graph.numberOfEdges());
-        System.out.println("--------------------");
+        RunManifest manifest = checkpoints ? RunManifest.load(RunManifest.DEFAULT_PATH) : null;
 
-        // The following block computes and writes the degree frequencies to a text file.
-        System.out.println("Finding degree distribution...");
-        start = System.nanoTime();
-        Map<Integer, Integer> degFreqs = graph.getDegreeDistribution();
-        end = System.nanoTime();
-        CustomWriter.testDuration(start, end);
-        System.out.println("Found " + degFreqs.size() + " different degree values of graph.");
-        CustomWriter.writeMapToFile(degFreqs, "degreeFrequencies",
-                "Degree frequencies -- (degree):(vertex count) -- " + degFreqs.size() + " entries.");
-        System.out.println("--------------------");
+        if (memoryBudget != null) {
+            try {
+                DiskGraph diskGraph = generateDiskGraph(maxDegree, percentile, deduplicate, memoryBudget, manifest);
+                // With compression, only the compressed graph is loaded into memory, the adjacency file is streamed
+                // twice.
+                analyseGraph(compressed ? compressGraph(diskGraph) : diskGraph, resultSuffix);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            RunReport.write(RunReport.DEFAULT_PATH);
+            System.out.println("Program finished.");
+            return;
+        }
 
-        // The following block computes writes the components and their sizes to a text file.
-        System.out.println("Finding connected components...");
-        start = System.nanoTime();
-        List<Integer> components = graph.findConnectedComponents();
-        end = System.nanoTime();
-        CustomWriter.testDuration(start, end);
-        System.out.println("Found " + components.size() + " connected components.");
-        CustomWriter.writeListToFile(components, "components",
-                "Connected components -- (component number):(number of vertices) -- " + components.size() +
-                        " components.");
-        System.out.println("--------------------");
+        // Load the graph from a snapshot if one exists for the current input files, otherwise parse the input files
+        // and write a snapshot for the next run.
+        List<File> sources = new ArrayList<>();
+        for (int i = 0; i < 641; i++) {
+            sources.add(new File("res/splits/chunkF" + String.format("%04d", i)));
+        }
+        String sourceDescription = GraphSnapshot.describeSources(sources);
+        CompactGraph graph = loadSnapshot(sourceDescription, filterSettings);
+        if (graph == null) {
+            try {
+                graph = generateGraph(sourceDescription, filterSettings, maxDegree, percentile, deduplicate, manifest);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        AnalysableGraph analysed = graph;
+        if (compressed) {
+            analysed = compressGraph(graph);
+            graph = null; // Let the uncompressed graph be garbage collected.
+        }
+        try {
+            analyseGraph(analysed, resultSuffix);
+        } catch (IOException e) {
+            e.printStackTrace(); // Only possible for graphs stored on disk.
+            return;
+        }
+        RunReport.write(RunReport.DEFAULT_PATH);
         System.out.println("Program finished. Garbage collection might take a few seconds.");
 
         // Counting the lines (data points) of the whole file.
@@ -84,4 +138,264 @@ public class Main {
 //        System.out.println("Total true overlaps in data set: " + totalCount);
     }
 
+    /**
+     * The identifier index of the filtered chunks, and the pruner for the graph built from them.
+     */
+    static final class IndexedChunks {
+        final FrozenDictionary dictionary;
+        final DegreePruner pruner; // Null if no edges are pruned.
+
+        IndexedChunks(FrozenDictionary dictionary, DegreePruner pruner) {
+            this.dictionary = dictionary;
+            this.pruner = pruner;
+        }
+    }
+
+    /**
+     * Index the identifiers of the filtered chunks and, if hub pruning is asked for, count the degrees and create the
+     * pruner. This is the part of the graph build shared by the in memory and the out of core graphs.
+     * @param maxDegree If not null, prune edges touching vertices of a higher degree than this.
+     * @param percentile If not null (and maxDegree is null), prune edges touching vertices above this percentile.
+     * @param manifest If not null, the indexing of chunks completed by an earlier run is reused (see RunManifest).
+     * @return The frozen index and the pruner.
+     * @throws IOException If the filtered chunks could not be read.
+     */
+    static IndexedChunks indexChunks(Integer maxDegree, Double percentile, RunManifest manifest) throws IOException {
+        // Index all unique string identifiers to integers, using several threads. The deterministic mode gives the
+        // same indices as the sequential LineParser.indexAllIdentifiers.
+        System.out.println("Indexing identifiers...");
+        RunReport.beginStage("index");
+        LineParserParallel lpp = new LineParserParallel("res/splits/", "chunkF", 641,
+                Runtime.getRuntime().availableProcessors());
+        lpp.setManifest(manifest);
+        lpp.indexAllIdentifiers(true);
+        // The index is complete, so it is frozen into a compact dictionary and the interner is dropped.
+        FrozenDictionary dictionary = FrozenDictionary.freeze(lpp.interner.asMap());
+        lpp = null;
+        RunReport.endStage();
+        System.out.println("Unique identifiers found: "+ dictionary.size());
+        System.out.println("Frozen dictionary: " + dictionary.sizeInBytes() / 1024 + " kB.");
+        System.out.println("--------------------");
+
+        // Count the degrees in a first pass, so that edges touching repeat hubs can be left out of the graph.
+        DegreePruner pruner = null;
+        if (maxDegree != null || percentile != null) {
+            System.out.println("Counting degrees for hub pruning...");
+            RunReport.beginStage("degree count");
+            int[] degrees = LineParser.countDegrees(dictionary.asMap());
+            pruner = maxDegree != null ? new DegreePruner(degrees, maxDegree)
+                    : DegreePruner.fromPercentile(degrees, percentile);
+            RunReport.endStage();
+            System.out.println("--------------------");
+        }
+        return new IndexedChunks(dictionary, pruner);
+    }
+
+    /**
+     * Index the identifiers of the filtered chunks, generate the graph and store both in a snapshot.
+     * @param sourceDescription A description of the input files, stored in the snapshot.
+     * @param filterSettings A description of the filter and pruning settings, stored in the snapshot.
+     * @param maxDegree If not null, prune edges touching vertices of a higher degree than this.
+     * @param percentile If not null (and maxDegree is null), prune edges touching vertices above this percentile.
+     * @param deduplicate If true, self-loops and duplicate edges are removed.
+     * @param manifest If not null, the chunks completed by an earlier run are reused (see RunManifest).
+     * @return The generated graph.
+     * @throws IOException If the filtered chunks could not be read.
+     */
+    static CompactGraph generateGraph(String sourceDescription, String filterSettings, Integer maxDegree,
+                                      Double percentile, boolean deduplicate, RunManifest manifest)
+            throws IOException {
+        IndexedChunks chunks = indexChunks(maxDegree, percentile, manifest);
+        Map<String, Integer> indices = chunks.dictionary.asMap();
+        DegreePruner pruner = chunks.pruner;
+
+        // Generate a graph from the integer indices.
+        System.out.println("Generating graph from indices...");
+        RunReport.beginStage("graph build");
+        // Graph graph = LineParser.generateFullGraph(indices); // Adjacency list version, for comparison.
+        CompactGraph graph = LineParser.generateFullCompactGraph(indices, pruner, deduplicate,
+                LineParser.CHUNK_PREFIX, LineParser.NUM_CHUNKS, manifest);
+        RunReport.endStage();
+        System.out.println("Graph generated.");
+        CustomWriter.printHeapUsage();
+        if (pruner != null) {
+            pruner.printReport();
+        }
+        System.out.println("Vertices: " + graph.numberOfVertices());
+        System.out.println("Edges: " + graph.numberOfEdges());
+        System.out.println("--------------------");
+
+        System.out.println("Writing snapshot...");
+        RunReport.beginStage("snapshot write");
+        try {
+            GraphSnapshot.write(SNAPSHOT_PATH, graph, indices, sourceDescription, filterSettings);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        RunReport.endStage();
+        System.out.println("--------------------");
+        return graph;
+    }
+
+    /**
+     * Index the identifiers of the filtered chunks and build the graph out of core, in an adjacency file on disk. No
+     * snapshot is written, since the point is that the graph does not fit in memory.
+     * @param maxDegree If not null, prune edges touching vertices of a higher degree than this.
+     * @param percentile If not null (and maxDegree is null), prune edges touching vertices above this percentile.
+     * @param deduplicate If true, self-loops and duplicate edges are removed.
+     * @param memoryBudget The number of bytes the edge buffer may use.
+     * @param manifest If not null, the indexing of chunks completed by an earlier run is reused (see RunManifest).
+     * @return The generated graph.
+     * @throws IOException If the chunks cannot be read or the adjacency file cannot be written.
+     */
+    static DiskGraph generateDiskGraph(Integer maxDegree, Double percentile, boolean deduplicate,
+                                       long memoryBudget, RunManifest manifest) throws IOException {
+        IndexedChunks chunks = indexChunks(maxDegree, percentile, manifest);
+        Map<String, Integer> indices = chunks.dictionary.asMap();
+        DegreePruner pruner = chunks.pruner;
+
+        System.out.println("Generating graph out of core (" + memoryBudget / (1024 * 1024) + " MB budget)...");
+        RunReport.beginStage("graph build");
+        DiskGraph graph = LineParser.generateFullDiskGraph(indices, pruner, deduplicate, memoryBudget,
+                ADJACENCY_PATH, LineParser.CHUNK_PREFIX, LineParser.NUM_CHUNKS);
+        RunReport.endStage();
+        System.out.println("Graph generated.");
+        if (pruner != null) {
+            pruner.printReport();
+        }
+        System.out.println("Vertices: " + graph.numberOfVertices());
+        System.out.println("Edges: " + graph.numberOfEdges());
+        System.out.println("--------------------");
+        return graph;
+    }
+
+    /**
+     * Compress a graph with CompressedGraph and print how much memory the compressed graph uses.
+     * @param graph The graph to compress.
+     * @return The compressed graph.
+     */
+    static CompressedGraph compressGraph(CompactGraph graph) {
+        System.out.println("Compressing graph...");
+        RunReport.beginStage("compression");
+        CompressedGraph compressedGraph = CompressedGraph.fromCompactGraph(graph);
+        RunReport.endStage();
+        printCompression(compressedGraph);
+        return compressedGraph;
+    }
+
+    /**
+     * Compress a graph stored on disk. Only the compressed graph is loaded into memory.
+     * @param graph The graph to compress.
+     * @return The compressed graph.
+     * @throws IOException If the adjacency file cannot be read.
+     */
+    static CompressedGraph compressGraph(DiskGraph graph) throws IOException {
+        System.out.println("Compressing graph...");
+        RunReport.beginStage("compression");
+        CompressedGraph compressedGraph = CompressedGraph.fromDiskGraph(graph);
+        RunReport.endStage();
+        printCompression(compressedGraph);
+        return compressedGraph;
+    }
+
+    private static void printCompression(CompressedGraph compressedGraph) {
+        System.out.println(String.format("Compressed graph: %d MB, %.2f bytes per adjacency entry.",
+                compressedGraph.sizeInBytes() / (1024 * 1024),
+                compressedGraph.sizeInBytes() / Math.max(1.0, 2.0 * compressedGraph.numberOfEdges())));
+        System.out.println("--------------------");
+    }
+
+    /**
+     * Load the rules that the filtered chunks were made with, written by LineParserParallel.filterAndCopy.
+     * @return The filter, or null if the chunks were filtered before the rules were recorded.
+     * @throws IOException If the rules file exists but cannot be read.
+     * @throws IllegalArgumentException If a rule cannot be parsed.
+     */
+    static OverlapFilter loadChunkFilter() throws IOException {
+        if (!new File(FILTER_RULES_PATH).exists()) {
+            return null;
+        }
+        return OverlapFilter.load(FILTER_RULES_PATH);
+    }
+
+    /**
+     * Describe the filter of the filtered chunks for the filter settings of a snapshot, before any deduplication or
+     * pruning is added.
+     * @param filter The filter of 'loadChunkFilter', or null if it is not known.
+     * @return The description.
+     */
+    static String describeFilter(OverlapFilter filter) {
+        if (filter == null) {
+            return "unknown filter (no " + FILTER_RULES_PATH + ")";
+        }
+        return "filter rules: " + filter;
+    }
+
+    /**
+     * Load the graph from the snapshot, if there is one that was produced from the same input files and filter.
+     * @param sourceDescription A description of the current input files.
+     * @param filterSettings A description of the current filter and pruning settings.
+     * @return The graph, or null if there is no valid snapshot.
+     */
+    static CompactGraph loadSnapshot(String sourceDescription, String filterSettings) {
+        if (!new File(SNAPSHOT_PATH).exists()) {
+            return null;
+        }
+        System.out.println("Loading snapshot...");
+        RunReport.beginStage("snapshot load");
+        GraphSnapshot snapshot;
+        try {
+            snapshot = GraphSnapshot.load(SNAPSHOT_PATH, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            RunReport.endStage();
+            return null;
+        }
+        RunReport.endStage();
+        if (!snapshot.sourceDescription.equals(sourceDescription) || !snapshot.filterSettings.equals(filterSettings)) {
+            System.out.println("Snapshot is out of date, regenerating graph.");
+            return null;
+        }
+        System.out.println("Vertices: " + snapshot.graph.numberOfVertices());
+        System.out.println("Edges: " + snapshot.graph.numberOfEdges());
+        System.out.println("--------------------");
+        return snapshot.graph;
+    }
+
+    /**
+     * Compute the degree distribution and the connected components of a graph, and write both to text files in the
+     * results folder, with a suffix added to the file names (e.g. to keep results of a pruned graph apart).
+     * @param graph The graph to analyse, in any of the backends.
+     * @param resultSuffix A suffix for the result file names.
+     * @throws IOException If the graph is stored in a file that cannot be read.
+     */
+    static void analyseGraph(AnalysableGraph graph, String resultSuffix) throws IOException {
+        System.out.println("Finding degree distribution...");
+        RunReport.beginStage("degree distribution");
+        Map<Integer, Integer> degFreqs = graph.getDegreeDistribution();
+        RunReport.endStage();
+        System.out.println("Finding connected components...");
+        RunReport.beginStage("components");
+        List<Integer> components = graph.findConnectedComponents();
+        RunReport.endStage();
+        writeResults(degFreqs, components, resultSuffix);
+    }
+
+    /**
+     * Write the degree frequencies and the component sizes of a graph to text files in the results folder.
+     * @param degFreqs A map from degree to the number of vertices with that degree.
+     * @param components The sizes of the connected components.
+     * @param resultSuffix A suffix for the result file names.
+     */
+    static void writeResults(Map<Integer, Integer> degFreqs, List<Integer> components, String resultSuffix) {
+        System.out.println("Found " + degFreqs.size() + " different degree values of graph.");
+        CustomWriter.writeMapToFile(degFreqs, "degreeFrequencies" + resultSuffix,
+                "Degree frequencies -- (degree):(vertex count) -- " + degFreqs.size() + " entries.");
+        System.out.println("Found " + components.size() + " connected components.");
+        CustomWriter.writeListToFile(components, "components" + resultSuffix,
+                "Connected components -- (component number):(number of vertices) -- " + components.size() +
+                        " components.");
+        System.out.println("--------------------");
+    }
+
 }
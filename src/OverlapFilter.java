@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Configurable filter for the lines (overlaps) of the M4 data file. A filter is a list of rules, and a line is kept
+ * only if it passes every rule. The rules are evaluated in order directly on the bytes of an M4Reader.M4Line, with the
+ * numeric fields parsed in place, so a rejected line never becomes a String. The first rule that rejects a line is
+ * the one that is blamed for it, which gives a rejection count per rule.
+ *
+ * Rules are written one per line (or separated by ';'), and '#' starts a comment. A rule is either 'containment',
+ * which rejects lines where one contig is contained in the other (see LineParserParallel.isContainment), or a
+ * comparison 'column operator value' that a line must satisfy, e.g.:
+ * <pre>
+ *   containment
+ *   overlap >= 500
+ *   identity >= 85.0
+ *   score <= -1000
+ *   overhang <= 100
+ * </pre>
+ * The columns are the numeric fields of an M4 line (score, identity, qstart, qend, qlen, tstart, tend, tlen, mapq),
+ * 'overlap', the length of the overlap on the shorter side, and 'overhang', the parts of the two contigs next to the
+ * overlap that do not match (as in miniasm): min(qstart, tstart) + min(qlen - qend, tlen - tend). The operators are
+ * <, <=, >, >=, == and !=.
+ */
+public class OverlapFilter {
+
+    /**
+     * Returned by 'reject' for lines that pass every rule.
+     */
+    public static final int ACCEPTED = -1;
+
+    private static final String[] COLUMN_NAMES = {"score", "identity", "qstart", "qend", "qlen", "tstart", "tend",
+            "tlen", "mapq"};
+    private static final int[] COLUMN_FIELDS = {2, 3, 5, 6, 7, 9, 10, 11, 12};
+
+    /**
+     * A single rule of a filter.
+     */
+    private interface Rule {
+        /**
+         * @return True if the line passes the rule.
+         */
+        boolean test(M4Reader.M4Line line);
+    }
+
+    /**
+     * A numeric value computed from a line.
+     */
+    private interface Column {
+        double value(M4Reader.M4Line line);
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+
+    private OverlapFilter() {
+    }
+
+    /**
+     * @return The default filter, which only removes containments.
+     */
+    public static OverlapFilter containment() {
+        return parse("containment");
+    }
+
+    /**
+     * Create a filter from rules written as described in the class comment.
+     * @param rules The rules, separated by newlines or ';'.
+     * @return The filter.
+     * @throws IllegalArgumentException If a rule cannot be parsed.
+     */
+    public static OverlapFilter parse(String rules) {
+        OverlapFilter filter = new OverlapFilter();
+        for (String rule : rules.split("[;\n]")) {
+            int comment = rule.indexOf('#');
+            if (comment >= 0) {
+                rule = rule.substring(0, comment);
+            }
+            rule = rule.trim();
+            if (!rule.isEmpty()) {
+                filter.addRule(rule);
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Read the rules of a filter from a file.
+     * @param filename The name or location of the file.
+     * @return The filter.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If a rule cannot be parsed.
+     */
+    public static OverlapFilter load(String filename) throws IOException {
+        return parse(new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write the rules of the filter to a file, one per line, so that 'load' gives the same filter. The file is first
+     * written under a temporary name and then moved into place.
+     * @param filename The name or location of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(String filename) throws IOException {
+        Path target = Paths.get(filename);
+        Path temp = Paths.get(filename + ".tmp");
+        Files.write(temp, (rules() + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void addRule(String rule) {
+        if (rule.equals("containment")) {
+            rules.add(line -> !line.isContainment());
+            names.add(rule);
+            return;
+        }
+        String[] tokens = rule.split("\\s+");
+        if (tokens.length != 3) {
+            throw new IllegalArgumentException("Expected 'column operator value' but found '" + rule + "'.");
+        }
+        Column column = column(tokens[0]);
+        double value;
+        try {
+            value = Double.parseDouble(tokens[2]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number in rule '" + rule + "': " + tokens[2]);
+        }
+        switch (tokens[1]) {
+            case "<":
+                rules.add(line -> column.value(line) < value);
+                break;
+            case "<=":
+                rules.add(line -> column.value(line) <= value);
+                break;
+            case ">":
+                rules.add(line -> column.value(line) > value);
+                break;
+            case ">=":
+                rules.add(line -> column.value(line) >= value);
+                break;
+            case "==":
+                rules.add(line -> column.value(line) == value);
+                break;
+            case "!=":
+                rules.add(line -> column.value(line) != value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operator in rule '" + rule + "': " + tokens[1]);
+        }
+        names.add(tokens[0] + " " + tokens[1] + " " + tokens[2]);
+    }
+
+    private static Column column(String name) {
+        switch (name) {
+            case "identity":
+                return line -> line.decimalField(3); // The only column that is not an integer.
+            case "overlap":
+                return line -> Math.min(line.intField(6) - line.intField(5), line.intField(10) - line.intField(9));
+            case "overhang":
+                return line -> Math.min(line.intField(5), line.intField(9))
+                        + Math.min(line.intField(7) - line.intField(6), line.intField(11) - line.intField(10));
+            default:
+                for (int i = 0; i < COLUMN_NAMES.length; i++) {
+                    if (COLUMN_NAMES[i].equals(name)) {
+                        int field = COLUMN_FIELDS[i];
+                        return line -> line.intField(field);
+                    }
+                }
+                throw new IllegalArgumentException("Unknown column: " + name);
+        }
+    }
+
+    public int numberOfRules() {
+        return rules.size();
+    }
+
+    /**
+     * @return The rule with the given index, in the same form as it was parsed.
+     */
+    public String ruleName(int rule) {
+        return names.get(rule);
+    }
+
+    /**
+     * Evaluate the rules on a line.
+     * @param line A line of the data file.
+     * @return The index of the first rule that rejects the line, or ACCEPTED if the line passes every rule.
+     */
+    public int reject(M4Reader.M4Line line) {
+        for (int i = 0; i < rules.size(); i++) {
+            if (!rules.get(i).test(line)) {
+                return i;
+            }
+        }
+        return ACCEPTED;
+    }
+
+    /**
+     * @return True if the line passes every rule.
+     */
+    public boolean accept(M4Reader.M4Line line) {
+        return reject(line) == ACCEPTED;
+    }
+
+    /**
+     * Add the number of rejections of every rule to the current stage of the RunReport, and print them.
+     * @param rejections The number of lines rejected by every rule, indexed like the rules.
+     */
+    public void report(long[] rejections) {
+        for (int i = 0; i < rules.size(); i++) {
+            RunReport.recordCount("rejected by " + names.get(i), rejections[i]);
+            System.out.println("Rejected by '" + names.get(i) + "': " + rejections[i]);
+        }
+    }
+
+    /**
+     * @return The rules one per line, so that 'parse' gives the same filter.
+     */
+    public String rules() {
+        return String.join("\n", names);
+    }
+
+    /**
+     * @return The rules separated by ", ", e.g. to describe the filter settings of a snapshot.
+     */
+    @Override
+    public String toString() {
+        return String.join(", ", names);
+    }
+}
@@ -0,0 +1,473 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Staged alternative to the chunk loops of LineParser ('indexAllIdentifiers' and 'generateFullGraph'), where reading
+ * a chunk, parsing it and updating the map or graph are done one after the other on one thread, so the disk and the
+ * processors are never busy at the same time. Here the three steps run at the same time in separate stages:
+ *
+ * - A reader thread reads the chunks in order into large byte blocks, cut at the last newline of each block. A block
+ *   never spans two chunks.
+ * - Parser threads turn each block into a batch of primitive records: pairs of identifier ids or of vertex indices,
+ *   two per line.
+ * - The sink (the calling thread) applies the batches to the index or graph, in the order of the blocks, so the
+ *   result is exactly the same as that of the sequential LineParser methods.
+ *
+ * LineParser.generateFullCompactGraph, which builds the graph of Main, runs its chunks through this pipeline.
+ *
+ * The blocks come from a fixed ring of buffers. A buffer is only given back to the reader once the sink has applied
+ * the batch made from it, so a slow parser or sink makes the reader wait (backpressure) instead of filling the heap.
+ * Every stage measures how long it waits for the previous or next stage; the stage that waits least is the
+ * bottleneck. The waiting times are printed by 'printStalls' and added to the current RunReport stage.
+ */
+public class PipelinedParser {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 22; // 4 MB
+
+    private final String chunkPrefix;
+    private final int numChunks;
+    private final int numParsers;
+    private final int blockSize;
+    private final int numBuffers;
+
+    private final LongAdder readerWaitNanos = new LongAdder();
+    private final LongAdder parserWaitNanos = new LongAdder();
+    private final LongAdder sinkWaitNanos = new LongAdder();
+    private long wallNanos;
+
+    /**
+     * Parses a block of complete lines into a batch of records. Called from several parser threads at once.
+     * @param <B> The type of the batches.
+     */
+    public interface BlockParser<B> {
+        B parse(byte[] block, int length);
+    }
+
+    /**
+     * Applies batches to a result. Only called from the sink thread, in the order of the blocks.
+     * @param <B> The type of the batches.
+     */
+    public interface BatchSink<B> {
+        /**
+         * @param chunk The number of the chunk the batch was read from.
+         * @param batch The records of a block.
+         * @throws IOException If the result cannot be written, e.g. a checkpoint file.
+         */
+        void accept(int chunk, B batch) throws IOException;
+    }
+
+    /**
+     * A block of lines read from a chunk, numbered in the order it was read.
+     */
+    private static final class Block {
+        final long sequence;
+        final int chunk;
+        final byte[] buffer;
+        final int length;
+
+        Block(long sequence, int chunk, byte[] buffer, int length) {
+            this.sequence = sequence;
+            this.chunk = chunk;
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The records parsed from a block, together with the block's buffer so it can be recycled after the batch is
+     * applied.
+     */
+    private static final class Batch<B> {
+        final long sequence;
+        final int chunk;
+        final byte[] buffer;
+        final B records;
+
+        Batch(long sequence, int chunk, byte[] buffer, B records) {
+            this.sequence = sequence;
+            this.chunk = chunk;
+            this.buffer = buffer;
+            this.records = records;
+        }
+    }
+
+    private static final Block END_OF_BLOCKS = new Block(-1, -1, null, 0);
+
+    /**
+     * @param chunkPrefix The location of the chunks, up to the four digit chunk number, e.g. "res/splits/chunkF".
+     * @param numChunks The number of chunks.
+     * @param numParsers The number of parser threads.
+     */
+    public PipelinedParser(String chunkPrefix, int numChunks, int numParsers) {
+        this(chunkPrefix, numChunks, numParsers, DEFAULT_BLOCK_SIZE, 2 * numParsers + 2);
+    }
+
+    /**
+     * @param chunkPrefix The location of the chunks, up to the four digit chunk number, e.g. "res/splits/chunkF".
+     * @param numChunks The number of chunks.
+     * @param numParsers The number of parser threads.
+     * @param blockSize The size of each block in bytes. Lines longer than this get a larger buffer.
+     * @param numBuffers The number of blocks that can be in the pipeline at once. At least 2 are needed so that the
+     *                   reader can work while a block is parsed.
+     */
+    public PipelinedParser(String chunkPrefix, int numChunks, int numParsers, int blockSize, int numBuffers) {
+        if (numParsers < 1 || blockSize < 1 || numBuffers < 2) {
+            throw new IllegalArgumentException("Need at least one parser, a positive block size and two buffers.");
+        }
+        this.chunkPrefix = chunkPrefix;
+        this.numChunks = numChunks;
+        this.numParsers = numParsers;
+        this.blockSize = blockSize;
+        this.numBuffers = numBuffers;
+    }
+
+    /**
+     * Pipelined version of LineParser.indexAllIdentifiers. The parsers intern the two identifiers of every line
+     * straight from the block into a shared IdentifierInterner, and pass on the pair of ids, so no String is made
+     * for a line. The ids of the interner depend on the order the parsers get to the identifiers, so the sink gives
+     * each new id the next index, in the order the identifiers occur in the chunks.
+     * @return A map/dictionary between string identifiers and integers.
+     * @throws IOException If a chunk could not be read.
+     */
+    public Map<String, Integer> indexAllIdentifiers() throws IOException {
+        IdentifierInterner interner = new IdentifierInterner();
+        FirstOccurrences firstOccurrences = new FirstOccurrences();
+        run((block, length) -> {
+            EdgeList ids = new EdgeList();
+            M4Reader.parseBlock(block, length, line -> ids.add(intern(interner, line, 0), intern(interner, line, 1)));
+            return ids;
+        }, (chunk, ids) -> {
+            for (int i = 0; i < ids.size(); i++) {
+                firstOccurrences.add(ids.source(i));
+                firstOccurrences.add(ids.target(i));
+            }
+        });
+        String[] names = new String[firstOccurrences.size];
+        for (Map.Entry<String, Integer> entry : interner.asMap().entrySet()) {
+            names[firstOccurrences.indexOf(entry.getValue())] = entry.getKey();
+        }
+        return FrozenDictionary.freeze(names.length, index -> names[index]).asMap();
+    }
+
+    private static int intern(IdentifierInterner interner, M4Reader.M4Line line, int field) {
+        return interner.intern(line.buffer(), line.fieldStart(field), line.fieldLength(field), 0);
+    }
+
+    /**
+     * Numbers the ids of an IdentifierInterner in the order they are first added.
+     */
+    private static final class FirstOccurrences {
+        private int[] indices = new int[1 << 16]; // The index of every id plus one, or 0 for ids not added yet.
+        private int size = 0;
+
+        void add(int id) {
+            if (id >= indices.length) {
+                indices = Arrays.copyOf(indices, Math.max(2 * indices.length, id + 1));
+            }
+            if (indices[id] == 0) {
+                indices[id] = ++size;
+            }
+        }
+
+        int indexOf(int id) {
+            return indices[id] - 1;
+        }
+    }
+
+    /**
+     * Pipelined version of LineParser.generateFullGraph. The parsers look up the indices of the two contigs of
+     * every line (the index map is only read, so this is safe from several threads), and the sink adds the edges.
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers.
+     * @return A Graph object representation of the data set.
+     * @throws IOException If a chunk could not be read.
+     */
+    public Graph generateFullGraph(Map<String, Integer> indices) throws IOException {
+        Graph graph = new Graph(indices.size());
+        run(edgeParser(indices), (chunk, edges) -> {
+            for (int i = 0; i < edges.size(); i++) {
+                graph.addEdge(edges.source(i), edges.target(i));
+            }
+        });
+        return graph;
+    }
+
+    /**
+     * @param indices A string to integer index map representing the integer indexing of the contig identifiers. It
+     *                is read from several parser threads at once, so it must not be changed during the run.
+     * @return A parser that turns a block into the edges (as integer pairs) of its lines.
+     */
+    public static BlockParser<EdgeList> edgeParser(Map<String, Integer> indices) {
+        return (block, length) -> {
+            EdgeList edges = new EdgeList();
+            M4Reader.parseBlock(block, length, line ->
+                    edges.add(indices.get(line.field(0)), indices.get(line.field(1))));
+            return edges;
+        };
+    }
+
+    /**
+     * Run the pipeline over every chunk, see 'run(int[], BlockParser, BatchSink)'.
+     * @param parser Turns blocks into batches, on the parser threads.
+     * @param sink Applies the batches, on the calling thread.
+     * @param <B> The type of the batches.
+     * @throws IOException If a chunk could not be read, or the sink failed.
+     */
+    public <B> void run(BlockParser<B> parser, BatchSink<B> sink) throws IOException {
+        int[] chunks = new int[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            chunks[i] = i;
+        }
+        run(chunks, parser, sink);
+    }
+
+    /**
+     * Run the pipeline: read the chunks, parse every block with the parser, and apply every batch with the sink, in
+     * block order. Returns when all batches have been applied. An empty chunk gives no batches.
+     * @param chunks The numbers of the chunks to read, in the order to read them.
+     * @param parser Turns blocks into batches, on the parser threads.
+     * @param sink Applies the batches, on the calling thread.
+     * @param <B> The type of the batches.
+     * @throws IOException If a chunk could not be read, or the sink failed.
+     */
+    public <B> void run(int[] chunks, BlockParser<B> parser, BatchSink<B> sink) throws IOException {
+        BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(numBuffers);
+        BlockingQueue<Block> blocks = new ArrayBlockingQueue<>(numBuffers + numParsers);
+        BlockingQueue<Batch<B>> batches = new ArrayBlockingQueue<>(numBuffers + numParsers);
+        for (int i = 0; i < numBuffers; i++) {
+            freeBuffers.add(new byte[blockSize]);
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong numBlocks = new AtomicLong(-1); // Set by the reader when all chunks have been read.
+        StageMetrics stage = RunReport.current(); // Taken here, since the stage could end while threads finish.
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(() -> {
+            try {
+                numBlocks.set(readChunks(chunks, freeBuffers, blocks, stage));
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                for (int i = 0; i < numParsers; i++) {
+                    blocks.add(END_OF_BLOCKS); // Capacity is reserved for these, see the size of 'blocks'.
+                }
+            }
+        }, "pipeline-reader"));
+        for (int i = 0; i < numParsers; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    parseBlocks(parser, blocks, batches, stage);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }, "pipeline-parser-" + i));
+        }
+        readerWaitNanos.reset();
+        parserWaitNanos.reset();
+        sinkWaitNanos.reset();
+        long start = System.nanoTime();
+        try {
+            for (Thread thread : threads) {
+                thread.setDaemon(true);
+                thread.start();
+            }
+            applyBatches(sink, freeBuffers, batches, failure, numBlocks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while parsing " + chunkPrefix, e);
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt(); // Only needed if the sink failed, otherwise the threads are done already.
+            }
+            wallNanos = System.nanoTime() - start;
+            if (stage != null) {
+                stage.recordBusy(wallNanos - sinkWaitNanos.sum());
+                stage.recordStall("reader waiting for free buffers", readerWaitNanos.sum());
+                stage.recordStall("parsers waiting for blocks", parserWaitNanos.sum());
+                stage.recordStall("sink waiting for batches", sinkWaitNanos.sum());
+            }
+        }
+    }
+
+    /**
+     * Reader stage: read the chunks in order into free buffers, and queue each buffer as a block of complete lines.
+     * @return The number of blocks queued.
+     */
+    private long readChunks(int[] chunks, BlockingQueue<byte[]> freeBuffers, BlockingQueue<Block> blocks,
+                            StageMetrics stage) throws IOException, InterruptedException {
+        long sequence = 0;
+        byte[] carry = new byte[0]; // Start of a line that did not fit in the previous block.
+        int carryLength = 0;
+        for (int chunk : chunks) {
+            String chunkName = chunkPrefix + String.format("%04d", chunk);
+            long chunkStart = System.nanoTime();
+            long chunkBytes = 0;
+            long chunkWait = 0;
+            try (InputStream in = CompressedInput.openStream(chunkName)) {
+                boolean endOfChunk = false;
+                while (!endOfChunk) {
+                    long waitStart = System.nanoTime();
+                    byte[] buffer = freeBuffers.take();
+                    chunkWait += System.nanoTime() - waitStart;
+                    if (buffer.length <= carryLength) {
+                        buffer = new byte[carryLength * 2]; // A line longer than a block.
+                    }
+                    System.arraycopy(carry, 0, buffer, 0, carryLength);
+                    int filled = carryLength;
+                    carryLength = 0;
+                    while (filled < buffer.length) {
+                        int n = in.read(buffer, filled, buffer.length - filled);
+                        if (n < 0) {
+                            endOfChunk = true;
+                            break;
+                        }
+                        filled += n;
+                        chunkBytes += n;
+                    }
+                    int end = filled;
+                    if (!endOfChunk) {
+                        while (end > 0 && buffer[end - 1] != M4Reader.NEWLINE) {
+                            end--;
+                        }
+                        // If there is no newline in the whole block, all of it is carried over to the next one.
+                        carryLength = filled - end;
+                        if (carry.length < carryLength) {
+                            carry = new byte[Math.max(carryLength, carry.length * 2)];
+                        }
+                        System.arraycopy(buffer, end, carry, 0, carryLength);
+                    }
+                    if (end == 0) {
+                        freeBuffers.add(buffer);
+                    } else {
+                        blocks.put(new Block(sequence++, chunk, buffer, end));
+                    }
+                }
+            }
+            readerWaitNanos.add(chunkWait);
+            if (stage != null) { // The lines are counted by the parsers.
+                stage.recordChunk(chunkName, 0, chunkBytes, System.nanoTime() - chunkStart - chunkWait);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Parser stage: turn blocks into batches until the reader is done.
+     */
+    private <B> void parseBlocks(BlockParser<B> parser, BlockingQueue<Block> blocks, BlockingQueue<Batch<B>> batches,
+                                 StageMetrics stage) throws InterruptedException {
+        long busy = 0;
+        long lines = 0;
+        while (true) {
+            long waitStart = System.nanoTime();
+            Block block = blocks.take();
+            long parseStart = System.nanoTime();
+            parserWaitNanos.add(parseStart - waitStart);
+            if (block == END_OF_BLOCKS) {
+                break;
+            }
+            B records = parser.parse(block.buffer, block.length);
+            lines += countLines(block.buffer, block.length);
+            busy += System.nanoTime() - parseStart;
+            batches.put(new Batch<>(block.sequence, block.chunk, block.buffer, records)); // Never full, see 'run'.
+        }
+        if (stage != null) {
+            stage.recordBusy(busy);
+            stage.addLines(lines);
+        }
+    }
+
+    /**
+     * @return The number of lines in a block, counting a last line without a newline.
+     */
+    private static int countLines(byte[] block, int length) {
+        int lines = 0;
+        for (int i = 0; i < length; i++) {
+            if (block[i] == M4Reader.NEWLINE) {
+                lines++;
+            }
+        }
+        return length > 0 && block[length - 1] != M4Reader.NEWLINE ? lines + 1 : lines;
+    }
+
+    /**
+     * Sink stage: apply the batches in block order, recycling the buffer of each block once its batch is applied.
+     * Batches that arrive before their turn are kept until the batches before them have been applied; there can be
+     * at most 'numBuffers' of them.
+     */
+    private <B> void applyBatches(BatchSink<B> sink, BlockingQueue<byte[]> freeBuffers,
+                                  BlockingQueue<Batch<B>> batches, AtomicReference<Throwable> failure,
+                                  AtomicLong numBlocks) throws IOException, InterruptedException {
+        Map<Long, Batch<B>> waiting = new HashMap<>();
+        long next = 0;
+        while (true) {
+            if (failure.get() != null) {
+                Throwable t = failure.get();
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
+                throw new IOException("Failed to parse " + chunkPrefix, t);
+            }
+            if (next == numBlocks.get()) {
+                break;
+            }
+            Batch<B> batch = waiting.remove(next);
+            if (batch == null) {
+                long waitStart = System.nanoTime();
+                Batch<B> received = batches.poll(10, TimeUnit.MILLISECONDS);
+                sinkWaitNanos.add(System.nanoTime() - waitStart);
+                if (received != null) {
+                    waiting.put(received.sequence, received);
+                }
+                continue;
+            }
+            sink.accept(batch.chunk, batch.records);
+            next++;
+            if (batch.buffer.length == blockSize) {
+                freeBuffers.add(batch.buffer);
+            } else {
+                freeBuffers.add(new byte[blockSize]); // Replace a buffer that was enlarged for a long line.
+            }
+        }
+    }
+
+    /**
+     * @return The time each stage spent waiting in the last run, as a fraction of the time it could have worked.
+     */
+    public Map<String, Double> stallFractions() {
+        Map<String, Double> fractions = new LinkedHashMap<>();
+        double wall = Math.max(1, wallNanos);
+        fractions.put("reader", readerWaitNanos.sum() / wall);
+        fractions.put("parsers", parserWaitNanos.sum() / (wall * numParsers));
+        fractions.put("sink", sinkWaitNanos.sum() / wall);
+        return fractions;
+    }
+
+    /**
+     * Print how long each stage waited during the last run, and which stage held up the others (the one that waited
+     * the least).
+     */
+    public void printStalls() {
+        Map<String, Double> fractions = stallFractions();
+        String bottleneck = null;
+        StringBuilder sb = new StringBuilder("Waiting: ");
+        for (Map.Entry<String, Double> entry : fractions.entrySet()) {
+            sb.append(entry.getKey()).append(String.format(" %.0f%%, ", entry.getValue() * 100));
+            if (bottleneck == null || entry.getValue() < fractions.get(bottleneck)) {
+                bottleneck = entry.getKey();
+            }
+        }
+        sb.append("bottleneck: ").append(bottleneck).append(".");
+        System.out.println(sb);
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel least significant digit radix sort of non-negative longs, such as edges packed with EdgeList.pack. The
+ * keys are sorted 8 bits at a time. In each pass the array is divided into one block per thread; every thread counts
+ * the digits of its block, the counts are combined into a write position for each (digit, thread) pair, and every
+ * thread then moves its keys to their positions in a second array. Passes where all keys have the same digit are
+ * skipped, so small vertex numbers only cost as many passes as they have significant bytes.
+ */
+public class RadixSort {
+
+    private static final int BITS = 8;
+    private static final int RADIX = 1 << BITS;
+    private static final int MASK = RADIX - 1;
+
+    /**
+     * Sort the first 'length' elements of an array in ascending order.
+     * @param keys The array to sort. All keys must be non-negative.
+     * @param length The number of elements to sort.
+     * @param numThreads The number of threads to use.
+     */
+    public static void sort(long[] keys, int length, int numThreads) {
+        if (length < 2) {
+            return;
+        }
+        int threads = Math.max(1, Math.min(numThreads, length / 4096 + 1)); // Small arrays are not worth splitting.
+        int blockSize = (length + threads - 1) / threads;
+        long[] src = keys;
+        long[] dst = new long[length];
+        ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int shift = 0; shift < 64; shift += BITS) {
+                final int s = shift;
+                final long[] from = src;
+                final long[] to = dst;
+
+                // Count the digits of each block.
+                int[][] counts = new int[threads][];
+                List<Callable<int[]>> countTasks = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    int start = t * blockSize;
+                    int end = Math.min(length, start + blockSize);
+                    countTasks.add(() -> {
+                        int[] count = new int[RADIX];
+                        for (int i = start; i < end; i++) {
+                            count[(int) (from[i] >>> s) & MASK]++;
+                        }
+                        return count;
+                    });
+                }
+                List<Future<int[]>> countResults = threadPool.invokeAll(countTasks);
+                for (int t = 0; t < threads; t++) {
+                    counts[t] = countResults.get(t).get();
+                }
+
+                // If every key has the same digit, this pass would not change anything.
+                boolean trivial = false;
+                for (int digit = 0; digit < RADIX; digit++) {
+                    int total = 0;
+                    for (int t = 0; t < threads; t++) {
+                        total += counts[t][digit];
+                    }
+                    if (total == length) {
+                        trivial = true;
+                    }
+                }
+                if (trivial) {
+                    continue;
+                }
+
+                // Turn the counts into write positions: digit by digit, and within a digit block by block, so that
+                // the sort is stable.
+                int position = 0;
+                for (int digit = 0; digit < RADIX; digit++) {
+                    for (int t = 0; t < threads; t++) {
+                        int count = counts[t][digit];
+                        counts[t][digit] = position;
+                        position += count;
+                    }
+                }
+
+                // Move the keys to their new positions.
+                List<Callable<Void>> moveTasks = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    int start = t * blockSize;
+                    int end = Math.min(length, start + blockSize);
+                    int[] positions = counts[t];
+                    moveTasks.add(() -> {
+                        for (int i = start; i < end; i++) {
+                            long key = from[i];
+                            to[positions[(int) (key >>> s) & MASK]++] = key;
+                        }
+                        return null;
+                    });
+                }
+                for (Future<Void> result : threadPool.invokeAll(moveTasks)) {
+                    result.get();
+                }
+                src = to;
+                dst = from;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while sorting", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sorting failed", e.getCause());
+        } finally {
+            threadPool.shutdown();
+        }
+        if (src != keys) {
+            System.arraycopy(src, 0, keys, 0, length);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Record of which chunks every stage of a run has completed, so that a run that was stopped part way, or a rerun after
+ * some of the chunks have changed, only processes the chunks that are missing or changed and reuses the output of the
+ * others. For every stage and chunk the manifest holds the content hash (SHA-256) of the chunk, a hash of the settings
+ * of the stage (e.g. the filter rules), the file the stage wrote for the chunk together with its content hash, and a
+ * short result of the stage for the chunk (e.g. the number of lines copied), so totals can be reported without
+ * reading the chunk again. A chunk is complete if all of these still match, which means that a chunk that was changed,
+ * an output that was removed or changed, and a stage run with other settings are all processed again.
+ *
+ * Hashing a file means reading it, so the hash of every file is kept together with its length and modification time,
+ * and is only computed again if either of them changes (as 'git status' does).
+ *
+ * The manifest is a text file with one line per file and per completed chunk, and a CRC32C checksum of all lines as
+ * its last line:
+ * <pre>
+ *   F  path  length  modification time (ns)  hash
+ *   C  stage  chunk  source hash  settings hash  output path  output hash  result
+ *   #  checksum (hex)
+ * </pre>
+ * Like the snapshots, it is written under a temporary name and then moved into place, so a crash leaves either the old
+ * or the new manifest behind, never a half written one. A damaged manifest is ignored, so every chunk is processed.
+ */
+public class RunManifest {
+
+    public static final String DEFAULT_PATH = "res/run.manifest";
+    public static final String CHECKPOINT_DIR = "res/checkpoints/"; // Outputs of stages without files of their own.
+    private static final long SAVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The length, modification time and hash of a file, the last time it was hashed.
+     */
+    private static final class FileState {
+        final long length;
+        final long modified;
+        final String hash;
+
+        FileState(long length, long modified, String hash) {
+            this.length = length;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A chunk completed by a stage.
+     */
+    private static final class Entry {
+        final String sourceHash;
+        final String settingsHash;
+        final String output;
+        final String outputHash;
+        final String result;
+
+        Entry(String sourceHash, String settingsHash, String output, String outputHash, String result) {
+            this.sourceHash = sourceHash;
+            this.settingsHash = settingsHash;
+            this.output = output;
+            this.outputHash = outputHash;
+            this.result = result;
+        }
+    }
+
+    private final String filename;
+    private final Map<String, FileState> files = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>(); // Keyed by stage and chunk, separated by a tab.
+    private long lastSave = System.nanoTime();
+
+    private RunManifest(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Load a manifest. If the file does not exist or is damaged, an empty manifest is returned, which is written to
+     * the same file once chunks are completed.
+     * @param filename The name or location of the manifest file.
+     * @return The manifest.
+     */
+    public static RunManifest load(String filename) {
+        RunManifest manifest = new RunManifest(filename);
+        if (!new File(filename).exists()) {
+            return manifest;
+        }
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
+            CRC32C crc = new CRC32C();
+            String line;
+            boolean verified = false;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    verified = line.substring(1).trim().equals(Long.toHexString(crc.getValue()));
+                    break;
+                }
+                byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+                crc.update(bytes, 0, bytes.length);
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals("F") && fields.length == 5) {
+                    manifest.files.put(fields[1], new FileState(Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                            fields[4]));
+                } else if (fields[0].equals("C") && fields.length == 8) {
+                    manifest.entries.put(fields[1] + "\t" + fields[2],
+                            new Entry(fields[3], fields[4], fields[5], fields[6], fields[7]));
+                }
+            }
+            if (!verified) {
+                throw new IOException("Checksum mismatch in " + filename + ".");
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Run manifest " + filename + " is damaged, processing every chunk. "
+                    + e.getMessage());
+            return new RunManifest(filename);
+        }
+        return manifest;
+    }
+
+    /**
+     * Look up a chunk that a stage completed before, and check that the chunk, the settings and the output are still
+     * the same as when it was completed.
+     * @param stage The name of the stage, e.g. "filter".
+     * @param chunk The name of the chunk.
+     * @param source The chunk file.
+     * @param settings The settings of the stage.
+     * @param output The file the stage wrote for the chunk.
+     * @return The result stored by 'complete', or null if the chunk has to be processed (again).
+     * @throws IOException If the chunk or the output cannot be read.
+     */
+    public String find(String stage, String chunk, File source, String settings, File output) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(stage + "\t" + chunk);
+        }
+        if (entry == null || !entry.settingsHash.equals(hash(settings)) || !entry.output.equals(output.getPath())
+                || !output.exists() || !entry.sourceHash.equals(hash(source))
+                || !entry.outputHash.equals(hash(output))) {
+            return null;
+        }
+        RunReport.recordCount("chunks reused", 1);
+        return entry.result;
+    }
+
+    /**
+     * Record that a stage has completed a chunk. The output has to be complete, i.e. moved into place, before this is
+     * called. The manifest is saved at most once every second, so 'save' has to be called when the stage is done.
+     * @param stage The name of the stage.
+     * @param chunk The name of the chunk.
+     * @param source The chunk file.
+     * @param settings The settings of the stage.
+     * @param output The file the stage wrote for the chunk.
+     * @param result A short result of the stage for the chunk, without tabs or newlines, returned by 'find'.
+     * @throws IOException If the chunk or the output cannot be read, or the manifest cannot be written.
+     */
+    public void complete(String stage, String chunk, File source, String settings, File output, String result)
+            throws IOException {
+        Entry entry = new Entry(hash(source), hash(settings), output.getPath(), hash(output), result);
+        RunReport.recordCount("chunks processed", 1);
+        synchronized (this) {
+            entries.put(stage + "\t" + chunk, entry);
+            if (System.nanoTime() - lastSave > SAVE_INTERVAL_NANOS) {
+                save();
+            }
+        }
+    }
+
+    /**
+     * Write the manifest to its file, under a temporary name that is then moved into place.
+     * @throws IOException If the manifest cannot be written.
+     */
+    public synchronized void save() throws IOException {
+        Path target = Paths.get(filename);
+        Path temp = Paths.get(filename + ".tmp");
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, FileState> file : files.entrySet()) {
+            FileState state = file.getValue();
+            lines.add("F\t" + file.getKey() + "\t" + state.length + "\t" + state.modified + "\t" + state.hash);
+        }
+        for (Map.Entry<String, Entry> chunk : entries.entrySet()) {
+            Entry entry = chunk.getValue();
+            lines.add("C\t" + chunk.getKey() + "\t" + entry.sourceHash + "\t" + entry.settingsHash + "\t"
+                    + entry.output + "\t" + entry.outputHash + "\t" + entry.result);
+        }
+        lines.sort(null); // Keeps the file the same from run to run, so it can be compared.
+        CRC32C crc = new CRC32C();
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8))) {
+            for (String line : lines) {
+                byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+                crc.update(bytes, 0, bytes.length);
+                out.write(line + "\n");
+            }
+            out.write("# " + Long.toHexString(crc.getValue()) + "\n");
+            out.flush();
+            file.getFD().sync(); // On disk before the move, as in GraphSnapshot.write.
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastSave = System.nanoTime();
+    }
+
+    /**
+     * @return The SHA-256 hash of a file, in hex. The hash is only computed if the length or modification time of
+     * the file changed since it was last hashed.
+     * @throws IOException If the file cannot be read.
+     */
+    public String hash(File file) throws IOException {
+        // Compressed chunks may be stored with a ".gz" suffix that is not part of the chunk name.
+        Path path = CompressedInput.resolve(file.getPath()).toPath();
+        String key = path.toString();
+        long length = Files.size(path);
+        long modified = Files.getLastModifiedTime(path).to(TimeUnit.NANOSECONDS);
+        synchronized (this) {
+            FileState state = files.get(key);
+            if (state != null && state.length == length && state.modified == modified) {
+                return state.hash;
+            }
+        }
+        // Hash outside of the lock, so several threads can hash their own chunks at the same time.
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        String hash = toHex(digest.digest());
+        synchronized (this) {
+            files.put(key, new FileState(length, modified, hash));
+        }
+        return hash;
+    }
+
+    /**
+     * @return The SHA-256 hash of a string, in hex.
+     */
+    public static String hash(String text) {
+        return toHex(sha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Compute a fingerprint of an identifier index, which changes if any identifier gets another index. Used as the
+     * settings of stages whose output holds indices. Every identifier is hashed from its bytes with a 64 bit hash
+     * (see DatasetProfiler.hash64), the hash is mixed with the index in two different ways, and each of the two
+     * results is summed over all entries, giving a 128 bit fingerprint. The sums do not depend on the order the map
+     * iterates the entries in.
+     * @param indices A string to integer index map.
+     * @return The fingerprint, in hex.
+     */
+    public static String fingerprint(Map<String, Integer> indices) {
+        long sum1 = 0;
+        long sum2 = 0;
+        for (Map.Entry<String, Integer> entry : indices.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.ISO_8859_1);
+            long hash = DatasetProfiler.hash64(name, 0, name.length);
+            long index = entry.getValue();
+            sum1 += mix(hash + index * 0x9E3779B97F4A7C15L);
+            sum2 += mix(hash ^ mix(index + 0xD6E8FEB86659FD93L));
+        }
+        return indices.size() + "-" + Long.toHexString(sum1) + "-" + Long.toHexString(sum2);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads every bit of the input over all bits of the output.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e); // Every JVM has to support SHA-256.
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects the StageMetrics of every stage of a run, and writes them to a machine readable JSON report at the end of
+ * the run, so that runs can be compared with each other and the slowest stage can be found. There is one report per
+ * JVM; stages are started with 'beginStage' and ended with 'endStage', and code that processes data (such as the
+ * LineParser methods) reports its progress to the current stage with 'recordChunk'.
+ */
+public class RunReport {
+
+    public static final String DEFAULT_PATH = "res/results/runReport.json";
+
+    private static final List<StageMetrics> stages = new CopyOnWriteArrayList<>();
+    private static final Instant runStart = Instant.now();
+    private static volatile StageMetrics current;
+
+    /**
+     * Start a new stage, ending the current one if there is one.
+     * @param name The name of the stage, e.g. "index".
+     * @return The metrics of the new stage.
+     */
+    public static synchronized StageMetrics beginStage(String name) {
+        if (current != null) {
+            endStage();
+        }
+        current = new StageMetrics(name);
+        stages.add(current);
+        return current;
+    }
+
+    /**
+     * End the current stage and print a summary of it.
+     */
+    public static synchronized void endStage() {
+        if (current != null) {
+            current.end();
+            current.print();
+            current = null;
+        }
+    }
+
+    /**
+     * @return The metrics of the current stage, or null if no stage has been started.
+     */
+    public static StageMetrics current() {
+        return current;
+    }
+
+    /**
+     * Record a processed chunk in the current stage (see StageMetrics.recordChunk). Does nothing if no stage has been
+     * started, so the parsing code can be used without a report.
+     */
+    public static void recordChunk(String chunk, long lines, long bytes, long nanos) {
+        StageMetrics stage = current;
+        if (stage != null) {
+            stage.recordChunk(chunk, lines, bytes, nanos);
+        }
+    }
+
+    /**
+     * Add to a named count of the current stage (see StageMetrics.recordCount). Does nothing if no stage has been
+     * started.
+     */
+    public static void recordCount(String what, long count) {
+        StageMetrics stage = current;
+        if (stage != null) {
+            stage.recordCount(what, count);
+        }
+    }
+
+    public static List<StageMetrics> getStages() {
+        return stages;
+    }
+
+    /**
+     * Write all stages to a JSON file.
+     * @param filename The name or location of the file to create or overwrite.
+     */
+    public static void write(String filename) {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(filename))) {
+            out.write(toJson());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The report as a JSON document.
+     */
+    public static String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"start\": ").append(quote(runStart.toString())).append(",\n");
+        sb.append("  \"end\": ").append(quote(Instant.now().toString())).append(",\n");
+        sb.append("  \"jvm\": ").append(quote(System.getProperty("java.vm.name") + " "
+                + System.getProperty("java.version"))).append(",\n");
+        sb.append("  \"processors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"maxHeapBytes\": ").append(Runtime.getRuntime().maxMemory()).append(",\n");
+        sb.append("  \"jvmArguments\": [");
+        List<String> arguments = ManagementFactory.getRuntimeMXBean().getInputArguments();
+        for (int i = 0; i < arguments.size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append(quote(arguments.get(i)));
+        }
+        sb.append("],\n");
+        sb.append("  \"stages\": [");
+        for (int i = 0; i < stages.size(); i++) {
+            StageMetrics stage = stages.get(i);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\n");
+            sb.append("      \"name\": ").append(quote(stage.getName())).append(",\n");
+            sb.append("      \"wallMillis\": ").append(stage.getWallNanos() / 1_000_000).append(",\n");
+            sb.append("      \"lines\": ").append(stage.getLines()).append(",\n");
+            sb.append("      \"bytes\": ").append(stage.getBytes()).append(",\n");
+            sb.append("      \"linesPerSecond\": ").append(number(stage.linesPerSecond())).append(",\n");
+            sb.append("      \"bytesPerSecond\": ").append(number(stage.bytesPerSecond())).append(",\n");
+            sb.append("      \"heapPeakBytes\": ").append(stage.getHeapPeak()).append(",\n");
+            sb.append("      \"gcCount\": ").append(stage.getGcCount()).append(",\n");
+            sb.append("      \"gcMillis\": ").append(stage.getGcTime()).append(",\n");
+            sb.append("      \"threadBusyMillis\": {");
+            int j = 0;
+            for (Map.Entry<String, Long> entry : stage.getBusyNanos().entrySet()) {
+                sb.append(j++ == 0 ? "" : ", ").append(quote(entry.getKey())).append(": ")
+                        .append(entry.getValue() / 1_000_000);
+            }
+            sb.append("},\n");
+            sb.append("      \"stallMillis\": {");
+            j = 0;
+            for (Map.Entry<String, Long> entry : stage.getStallNanos().entrySet()) {
+                sb.append(j++ == 0 ? "" : ", ").append(quote(entry.getKey())).append(": ")
+                        .append(entry.getValue() / 1_000_000);
+            }
+            sb.append("},\n");
+            sb.append("      \"counts\": {");
+            j = 0;
+            for (Map.Entry<String, Long> entry : stage.getCounts().entrySet()) {
+                sb.append(j++ == 0 ? "" : ", ").append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            }
+            sb.append("}\n");
+            sb.append("    }");
+        }
+        sb.append(stages.isEmpty() ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? String.format(Locale.ROOT, "%.1f", value) : "0";
+    }
+
+    /**
+     * @return The string as a JSON string literal, in quotes and with special characters escaped.
+     */
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
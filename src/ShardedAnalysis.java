@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the analysis of Main (degree distribution and connected components) in several processes, so that it is not
+ * limited by the heap and cores of a single JVM. The input is divided into shards of consecutive chunks (or, with
+ * '--file', consecutive byte ranges of one large file). Every shard is processed by a worker process, which builds the
+ * identifier index, the degrees and the union-find structure of its shard in an IncrementalGraph and saves it as a
+ * partial state file. The coordinator then merges the partial states in shard order (see IncrementalGraph.merge).
+ * Since the shards are consecutive parts of the data and are merged in order, the results are the same as those of
+ * Main without pruning or deduplication.
+ *
+ * A worker only holds the vertices of its shard, and the coordinator only the vertices of the whole graph; no process
+ * ever holds all of the edges. The partial states are exchanged through files, so the workers can run on other
+ * machines if the work directory is shared, with '--worker' on each machine and '--merge' on the coordinator.
+ *
+ * Usage:
+ * <pre>
+ *   java ShardedAnalysis --workers N [--file FILE] [--work-dir DIR] [--worker-heap SIZE]   start N local workers
+ *                                                                                         and merge their results
+ *   java ShardedAnalysis --worker SHARD N [--file FILE] [--work-dir DIR]                   run a single worker
+ *   java ShardedAnalysis --merge N [--work-dir DIR]                                        merge existing results
+ * </pre>
+ */
+public class ShardedAnalysis {
+
+    public static final String DEFAULT_WORK_DIR = "res/shards/";
+
+    private final int numShards;
+    private final String workDir;
+    private final String file; // Null to read the chunks of LineParser.CHUNK_PREFIX.
+
+    /**
+     * @param numShards The number of shards.
+     * @param workDir The directory for the partial state files.
+     * @param file A single data file to split into byte ranges, or null to divide the filtered chunks.
+     */
+    public ShardedAnalysis(int numShards, String workDir, String file) {
+        this.numShards = numShards;
+        this.workDir = workDir.endsWith(File.separator) ? workDir : workDir + File.separator;
+        this.file = file;
+    }
+
+    /**
+     * @return The name of the partial state file of a shard.
+     */
+    public String partialState(int shard) {
+        return workDir + String.format("shard%04d.state", shard);
+    }
+
+    /**
+     * Process a single shard and save its state. Shard s gets the chunks from s * NUM_CHUNKS / numShards up to
+     * (s + 1) * NUM_CHUNKS / numShards, or byte range s of the data file.
+     * @param shard The number of the shard, from 0 to numShards - 1.
+     * @return The state of the shard.
+     * @throws IOException If the input cannot be read or the state cannot be written.
+     */
+    public IncrementalGraph runWorker(int shard) throws IOException {
+        IncrementalGraph graph = new IncrementalGraph();
+        if (file == null) {
+            int first = (int) ((long) shard * LineParser.NUM_CHUNKS / numShards);
+            int last = (int) ((long) (shard + 1) * LineParser.NUM_CHUNKS / numShards);
+            for (int i = first; i < last; i++) {
+                graph.addFile(LineParser.CHUNK_PREFIX + String.format("%04d", i));
+            }
+        } else {
+            // The ranges only depend on the file and the number of shards, so every worker computes the same ones.
+            // Small files may give fewer ranges than shards, and the remaining shards are empty.
+            List<M4Reader.ByteRange> ranges = M4Reader.splitRanges(file, numShards);
+            if (shard < ranges.size()) {
+                graph.addRange(file, ranges.get(shard));
+            }
+        }
+        Files.createDirectories(Paths.get(workDir));
+        graph.save(partialState(shard));
+        return graph;
+    }
+
+    /**
+     * Start a worker process for every shard on this machine, with the same Java installation and class path as this
+     * process, and wait for all of them to finish.
+     * @param workerHeap The maximum heap of every worker, e.g. "4g", or null for the default.
+     * @throws IOException If a worker cannot be started or fails.
+     */
+    public void runLocalWorkers(String workerHeap) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> workers = new ArrayList<>();
+        try {
+            for (int shard = 0; shard < numShards; shard++) {
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                if (workerHeap != null) {
+                    command.add("-Xmx" + workerHeap);
+                }
+                command.addAll(List.of("-cp", System.getProperty("java.class.path"), ShardedAnalysis.class.getName(),
+                        "--worker", String.valueOf(shard), String.valueOf(numShards), "--work-dir", workDir));
+                if (file != null) {
+                    command.addAll(List.of("--file", file));
+                }
+                workers.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            for (int shard = 0; shard < numShards; shard++) {
+                int exitCode = workers.get(shard).waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("Worker for shard " + shard + " failed with exit code " + exitCode + ".");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for workers.", e);
+        } finally {
+            for (Process worker : workers) {
+                worker.destroy(); // Only has an effect if we are giving up on a worker that is still running.
+            }
+        }
+    }
+
+    /**
+     * Merge the partial states of all shards, in shard order.
+     * @return The state of the whole data set.
+     * @throws IOException If a partial state is missing or cannot be read.
+     */
+    public IncrementalGraph merge() throws IOException {
+        IncrementalGraph graph = new IncrementalGraph();
+        for (int shard = 0; shard < numShards; shard++) {
+            long start = System.nanoTime();
+            IncrementalGraph partial = IncrementalGraph.load(partialState(shard));
+            graph.merge(partial);
+            RunReport.recordChunk(new File(partialState(shard)).getName(), 0, new File(partialState(shard)).length(),
+                    System.nanoTime() - start);
+        }
+        return graph;
+    }
+
+    public static void main(String[] args) {
+        Integer workers = null;
+        Integer workerShard = null;
+        Integer mergeShards = null;
+        int numShards = 0;
+        String file = null;
+        String workDir = DEFAULT_WORK_DIR;
+        String workerHeap = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--workers") && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+                numShards = workers;
+            } else if (args[i].equals("--worker") && i + 2 < args.length) {
+                workerShard = Integer.parseInt(args[++i]);
+                numShards = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--merge") && i + 1 < args.length) {
+                mergeShards = Integer.parseInt(args[++i]);
+                numShards = mergeShards;
+            } else if (args[i].equals("--file") && i + 1 < args.length) {
+                file = args[++i];
+            } else if (args[i].equals("--work-dir") && i + 1 < args.length) {
+                workDir = args[++i];
+            } else if (args[i].equals("--worker-heap") && i + 1 < args.length) {
+                workerHeap = args[++i];
+            }
+        }
+        if (numShards <= 0) {
+            System.out.println("Usage: ShardedAnalysis --workers N | --worker SHARD N | --merge N "
+                    + "[--file FILE] [--work-dir DIR] [--worker-heap SIZE]");
+            System.exit(2);
+        }
+        ShardedAnalysis analysis = new ShardedAnalysis(numShards, workDir, file);
+
+        try {
+            if (workerShard != null) {
+                RunReport.beginStage("shard " + workerShard);
+                IncrementalGraph graph = analysis.runWorker(workerShard);
+                RunReport.endStage();
+                System.out.println("Shard " + workerShard + ": " + graph.linesAdded + " lines, "
+                        + graph.numberOfVertices() + " vertices, " + graph.numberOfEdges() + " edges.");
+                RunReport.write(analysis.workDir + String.format("shard%04d.json", workerShard));
+                return;
+            }
+            if (workers != null) {
+                System.out.println("Starting " + workers + " workers...");
+                RunReport.beginStage("shard workers");
+                analysis.runLocalWorkers(workerHeap);
+                RunReport.endStage();
+                System.out.println("--------------------");
+            }
+            System.out.println("Merging " + numShards + " shards...");
+            RunReport.beginStage("shard merge");
+            IncrementalGraph graph = analysis.merge();
+            RunReport.endStage();
+            System.out.println("Vertices: " + graph.numberOfVertices() + ", edges: " + graph.numberOfEdges());
+            System.out.println("--------------------");
+
+            Map<Integer, Integer> degFreqs = graph.getDegreeDistribution();
+            System.out.println("Found " + degFreqs.size() + " different degree values of graph.");
+            CustomWriter.writeMapToFile(degFreqs, "degreeFrequencies",
+                    "Degree frequencies -- (degree):(vertex count) -- " + degFreqs.size() + " entries.");
+            List<Integer> components = graph.componentSizes();
+            System.out.println("Found " + components.size() + " connected components.");
+            CustomWriter.writeListToFile(components, "components",
+                    "Connected components -- (component number):(number of vertices) -- " + components.size() +
+                            " components.");
+            RunReport.write(RunReport.DEFAULT_PATH);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Measurements of a single stage of a run (e.g. filtering, indexing, graph generation): wall clock time, lines and
+ * bytes processed, time each thread spent busy with the stage, the heap high-water mark, and garbage collections
+ * during the stage. Counters can be updated from several threads at once. Stages are started and collected by
+ * RunReport, which writes all of them to a JSON file at the end of the run.
+ *
+ * Each stage is also recorded as a JFR event (and each chunk of a stage as a smaller event), so a run started with
+ * -XX:StartFlightRecording shows the stages on the same timeline as the JVM's own events.
+ */
+public class StageMetrics {
+
+    @Name("genomeassembly.Stage")
+    @Label("Pipeline Stage")
+    @Category("Genome Assembly")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+        @Label("Lines")
+        long lines;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Heap High-Water Mark")
+        @DataAmount
+        long heapPeak;
+        @Label("GC Count")
+        long gcCount;
+        @Label("GC Time")
+        @Timespan(Timespan.MILLISECONDS)
+        long gcTime;
+    }
+
+    @Name("genomeassembly.Chunk")
+    @Label("Chunk Processed")
+    @Category("Genome Assembly")
+    @Description("One file or byte range processed by a stage.")
+    static class ChunkEvent extends Event {
+        @Label("Stage")
+        String stage;
+        @Label("Chunk")
+        String chunk;
+        @Label("Lines")
+        long lines;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+    }
+
+    private final String name;
+    private final long startNanos;
+    private long endNanos = -1;
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Map<String, LongAdder> busyNanos = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> stallNanos = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+    private final long gcCountAtStart;
+    private final long gcTimeAtStart;
+    private long gcCount;
+    private long gcTime;
+    private long heapPeak;
+    private final StageEvent event = new StageEvent();
+
+    /**
+     * Start measuring a stage. Use RunReport.beginStage rather than calling this directly.
+     * @param name The name of the stage.
+     */
+    StageMetrics(String name) {
+        this.name = name;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        gcCountAtStart = totalGcCount();
+        gcTimeAtStart = totalGcTime();
+        event.stage = name;
+        event.begin();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Stop measuring the stage. If no thread reported any busy time, the thread ending the stage is assumed to have
+     * been busy for the whole stage (which is the case for the single threaded stages).
+     */
+    void end() {
+        endNanos = System.nanoTime();
+        gcCount = totalGcCount() - gcCountAtStart;
+        gcTime = totalGcTime() - gcTimeAtStart;
+        heapPeak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                heapPeak += pool.getPeakUsage().getUsed(); // Sum of the peaks of each pool, so an upper bound.
+            }
+        }
+        if (busyNanos.isEmpty()) {
+            recordBusy(endNanos - startNanos);
+        }
+        event.lines = getLines();
+        event.bytes = getBytes();
+        event.heapPeak = heapPeak;
+        event.gcCount = gcCount;
+        event.gcTime = gcTime;
+        event.commit();
+    }
+
+    public void addLines(long count) {
+        lines.add(count);
+    }
+
+    public void addBytes(long count) {
+        bytes.add(count);
+    }
+
+    /**
+     * Add time that the current thread spent working on the stage.
+     * @param nanos The busy time in nanoseconds.
+     */
+    public void recordBusy(long nanos) {
+        busyNanos.computeIfAbsent(Thread.currentThread().getName(), k -> new LongAdder()).add(nanos);
+    }
+
+    /**
+     * Add time that part of the stage spent waiting for another part, e.g. a pipeline stage waiting for input.
+     * @param what What was waiting, e.g. "parsers waiting for blocks".
+     * @param nanos The waiting time in nanoseconds.
+     */
+    public void recordStall(String what, long nanos) {
+        stallNanos.computeIfAbsent(what, k -> new LongAdder()).add(nanos);
+    }
+
+    /**
+     * Add to a named count of the stage, e.g. the number of lines rejected by a filter rule.
+     * @param what What was counted.
+     * @param count The number to add.
+     */
+    public void recordCount(String what, long count) {
+        counts.computeIfAbsent(what, k -> new LongAdder()).add(count);
+    }
+
+    /**
+     * Record that a chunk (a file or byte range) has been processed by the current thread: adds its lines, bytes and
+     * busy time to the stage, and emits a JFR chunk event.
+     * @param chunk A name for the chunk, e.g. the file name.
+     * @param lineCount The number of lines in the chunk.
+     * @param byteCount The number of bytes in the chunk.
+     * @param nanos The time it took to process the chunk.
+     */
+    public void recordChunk(String chunk, long lineCount, long byteCount, long nanos) {
+        addLines(lineCount);
+        addBytes(byteCount);
+        recordBusy(nanos);
+        ChunkEvent chunkEvent = new ChunkEvent();
+        if (chunkEvent.isEnabled()) {
+            chunkEvent.stage = name;
+            chunkEvent.chunk = chunk;
+            chunkEvent.lines = lineCount;
+            chunkEvent.bytes = byteCount;
+            chunkEvent.nanos = nanos;
+            chunkEvent.commit();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLines() {
+        return lines.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return The wall clock duration of the stage in nanoseconds (up to now, if the stage has not ended).
+     */
+    public long getWallNanos() {
+        return (endNanos < 0 ? System.nanoTime() : endNanos) - startNanos;
+    }
+
+    public long getHeapPeak() {
+        return heapPeak;
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    public long getGcTime() {
+        return gcTime;
+    }
+
+    /**
+     * @return The busy time of each thread that worked on the stage in nanoseconds, sorted by thread name.
+     */
+    public Map<String, Long> getBusyNanos() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : busyNanos.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * @return The waiting times recorded with 'recordStall' in nanoseconds, sorted by name.
+     */
+    public Map<String, Long> getStallNanos() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : stallNanos.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * @return The counts recorded with 'recordCount', sorted by name.
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    public double linesPerSecond() {
+        return getLines() / (getWallNanos() / 1e9);
+    }
+
+    public double bytesPerSecond() {
+        return getBytes() / (getWallNanos() / 1e9);
+    }
+
+    /**
+     * Print a one line summary of the stage to the standard output stream.
+     */
+    public void print() {
+        System.out.println(String.format("[%s] %d ms, %d lines (%.0f lines/s), %.1f MB/s, heap peak %d MB, "
+                        + "%d GCs (%d ms)", name, getWallNanos() / 1_000_000, getLines(), linesPerSecond(),
+                bytesPerSecond() / (1024 * 1024), heapPeak / (1024 * 1024), gcCount, gcTime));
+    }
+
+    private static long totalGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long totalGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+}
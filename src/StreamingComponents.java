@@ -0,0 +1,39 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Alternative to Main for when only the connected components are needed. Instead of generating the full graph and
+ * searching it, the edges of the filtered chunks are merged into a concurrent union-find structure by several threads
+ * as they are parsed. Peak memory is then proportional to the number of vertices rather than the number of edges, so
+ * this works on machines that cannot hold the graph. The output file is the same as the one written by Main.
+ */
+public class StreamingComponents {
+
+    public static void main(String[] args) throws IOException {
+        int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        // Index all unique string identifiers to integers.
+        System.out.println("Indexing identifiers...");
+        RunReport.beginStage("index");
+        Map<String, Integer> indices = LineParser.indexAllIdentifiers();
+        RunReport.endStage();
+        System.out.println("Unique identifiers found: " + indices.size());
+        System.out.println("--------------------");
+
+        // Merge every edge into the union-find structure using several threads.
+        System.out.println("Finding connected components with " + numThreads + " threads...");
+        RunReport.beginStage("components");
+        LineParserParallel lpp = new LineParserParallel("res/splits/", "chunkF", 641, numThreads);
+        lpp.findComponents(indices);
+        List<Integer> components = lpp.components.componentSizes();
+        RunReport.endStage();
+        CustomWriter.printHeapUsage();
+        System.out.println("Found " + components.size() + " connected components.");
+        CustomWriter.writeListToFile(components, "components",
+                "Connected components -- (component number):(number of vertices) -- " + components.size() +
+                        " components.");
+        System.out.println("--------------------");
+        RunReport.write("res/results/streamingReport.json");
+    }
+}
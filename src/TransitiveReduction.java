@@ -0,0 +1,524 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Turns the overlaps of the M4 data into a string graph by removing transitive overlaps (Myers 2005, as in miniasm).
+ * If contig A overlaps B, B overlaps C and A also overlaps C, the overlap A-C tells nothing that the path A-B-C does
+ * not, and most of the edges of the spruce data are of this kind.
+ *
+ * Every contig v has two nodes, 2v for the contig as it is and 2v + 1 for its reverse complement. An overlap line
+ * aligns part of the query (on strand qStrand) with part of the target (on strand tStrand), and its coordinates tell
+ * which of the two comes first. A line where one contig continues the other (a dovetail overlap) gives an arc from the
+ * node that comes first to the node that follows it, whose length is how far the second one starts after the first,
+ * and the complementary arc between the reverse complements. Lines where the alignment stops more than 'maxHang'
+ * bases before the end of both contigs on either side (internal matches) give no arcs. A contig that is contained in
+ * another one (up to 'maxHang' bases) is left out of the string graph, with all its arcs, since the contig that
+ * contains it covers the same sequence; this is why the unfiltered chunks are read by default, since the filtered
+ * ones have no containment lines left.
+ *
+ * The arcs are stored in compressed sparse row format with the arcs of every node sorted by target node. The arc
+ * v -> x is transitive if there is an arc v -> w -> x of about the same total length (up to 'fuzz' bases longer than
+ * the longest arc of v). Every node only decides about its own arcs, reading the arcs of its neighbours, and looks up
+ * x in its own sorted list with a binary search, so the nodes are reduced in parallel without any locking. An
+ * overlap is removed if either of its two arcs is transitive, so the result is the same for both strands.
+ *
+ * Usage: java TransitiveReduction [--file FILE] [--max-hang N] [--fuzz N] [--threads N]
+ */
+public class TransitiveReduction {
+
+    public static final String CHUNK_PREFIX = "res/splits/chunk"; // The unfiltered chunks, chunk0000 to chunk0640.
+    public static final String SNAPSHOT_PATH = "res/graph.reduced.snapshot";
+    public static final String GFA_PATH = "res/stringGraph.gfa";
+    public static final int DEFAULT_MAX_HANG = 1000;
+    public static final int DEFAULT_FUZZ = 1000;
+
+    private final int maxHang;
+    private final Map<String, Integer> indices = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int[] contigLengths = new int[1024];
+    private boolean[] contained = new boolean[1024];
+
+    // Arcs collected while reading, as (source node << 32 | target node) and length.
+    private long[] arcNodes = new long[1024];
+    private int[] arcLengths = new int[1024];
+    private int numArcs;
+
+    // The arcs of node v are targets[offsets[v]] to targets[offsets[v + 1] - 1], sorted by target, after 'build'.
+    private int[] offsets;
+    private int[] targets;
+    private int[] lengths;
+    private boolean[] removed;
+
+    public long linesRead;
+    public long internalMatches;
+    public long containments;
+    public int containedContigs;
+
+    /**
+     * @param maxHang The largest number of bases an alignment may stop before the end of a contig and still be taken
+     *                as reaching it.
+     */
+    public TransitiveReduction(int maxHang) {
+        this.maxHang = maxHang;
+    }
+
+    /**
+     * Add the overlap lines of a file.
+     * @param filename The name or location of the file (plain or compressed).
+     * @throws IOException If the file cannot be read.
+     */
+    public void addFile(String filename) throws IOException {
+        long start = System.nanoTime();
+        long before = linesRead;
+        M4Reader.read(filename, this::addLine);
+        RunReport.recordChunk(filename, linesRead - before, CompressedInput.resolve(filename).length(),
+                System.nanoTime() - start);
+    }
+
+    /**
+     * Add the arcs of an overlap line. Every contig of the line gets a vertex in the order they are found, whether
+     * the line is a dovetail overlap or not.
+     * @param line A line of the M4 data.
+     */
+    public void addLine(M4Reader.M4Line line) {
+        if (offsets != null) {
+            throw new IllegalStateException("Lines cannot be added after 'build'.");
+        }
+        linesRead++;
+        int q = index(line.field(0), line.intField(7));
+        int t = index(line.field(1), line.intField(11));
+        int qStart = line.intField(5);
+        int qEnd = line.intField(6);
+        int qLength = line.intField(7);
+        int tStart = line.intField(9);
+        int tEnd = line.intField(10);
+        int tLength = line.intField(11);
+        if (q == t) {
+            return;
+        }
+        if (Math.min(qStart, tStart) > maxHang || Math.min(qLength - qEnd, tLength - tEnd) > maxHang) {
+            internalMatches++;
+            return;
+        }
+        boolean qContained = qStart <= tStart && qLength - qEnd <= tLength - tEnd;
+        boolean tContained = qStart >= tStart && qLength - qEnd >= tLength - tEnd;
+        if (qContained || tContained) {
+            // Of two contigs that contain each other (the same sequence), the one found last is left out.
+            markContained(qContained && tContained ? Math.max(q, t) : qContained ? q : t);
+            containments++;
+            return;
+        }
+        int qNode = 2 * q + line.intField(4);
+        int tNode = 2 * t + line.intField(8);
+        // The lengths are differences of the hangs rather than of the contig lengths, since the two aligned parts
+        // need not have the same length (indels), and a dovetail overlap always has a longer hang on each side.
+        if (qStart > tStart) {
+            // The query comes first, and the target starts qStart - tStart bases after it. On the reverse strand the
+            // target comes first, and the query starts as far after it as the target reaches past the query.
+            addArc(qNode, tNode, qStart - tStart);
+            addArc(tNode ^ 1, qNode ^ 1, (tLength - tEnd) - (qLength - qEnd));
+        } else {
+            addArc(tNode, qNode, tStart - qStart);
+            addArc(qNode ^ 1, tNode ^ 1, (qLength - qEnd) - (tLength - tEnd));
+        }
+    }
+
+    private int index(String name, int length) {
+        Integer index = indices.get(name);
+        if (index == null) {
+            index = names.size();
+            indices.put(name, index);
+            names.add(name);
+            if (index == contigLengths.length) {
+                contigLengths = Arrays.copyOf(contigLengths, contigLengths.length * 2);
+                contained = Arrays.copyOf(contained, contigLengths.length);
+            }
+            contigLengths[index] = length;
+        }
+        return index;
+    }
+
+    private void markContained(int v) {
+        if (!contained[v]) {
+            contained[v] = true;
+            containedContigs++;
+        }
+    }
+
+    private void addArc(int from, int to, int length) {
+        if (numArcs == arcNodes.length) {
+            arcNodes = Arrays.copyOf(arcNodes, arcNodes.length + (arcNodes.length >> 1) + 1);
+            arcLengths = Arrays.copyOf(arcLengths, arcNodes.length);
+        }
+        arcNodes[numArcs] = EdgeList.pack(from, to);
+        arcLengths[numArcs++] = length;
+    }
+
+    public int numberOfVertices() {
+        return names.size();
+    }
+
+    /**
+     * @return The index map of the contig identifiers, in the same form as LineParser.indexAllIdentifiers.
+     */
+    public Map<String, Integer> indices() {
+        return indices;
+    }
+
+    /**
+     * Sort the collected arcs into compressed sparse row format, with the arcs of every node sorted by target. An arc
+     * that is given by more than one line (e.g. A-B and B-A) is kept once, with its shortest length, and the arcs of
+     * contained contigs are left out.
+     * @param numThreads The number of threads sorting the arcs of the nodes.
+     * @throws IOException If a thread fails.
+     */
+    public void build(int numThreads) throws IOException {
+        int numNodes = 2 * numberOfVertices();
+        offsets = new int[numNodes + 1];
+        int kept = 0;
+        for (int i = 0; i < numArcs; i++) {
+            int from = (int) (arcNodes[i] >>> 32);
+            int to = (int) arcNodes[i];
+            if (!contained[from >> 1] && !contained[to >> 1]) {
+                arcNodes[kept] = arcNodes[i];
+                arcLengths[kept++] = arcLengths[i];
+                offsets[from + 1]++;
+            }
+        }
+        numArcs = kept;
+        for (int v = 0; v < numNodes; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        // Every arc becomes (target << 32 | length) at its position, so sorting the arcs of a node sorts them by
+        // target and puts the shortest of several arcs to the same target first.
+        long[] sorted = new long[numArcs];
+        int[] position = Arrays.copyOf(offsets, numNodes);
+        for (int i = 0; i < numArcs; i++) {
+            sorted[position[(int) (arcNodes[i] >>> 32)]++] = ((long) (int) arcNodes[i] << 32) | arcLengths[i];
+        }
+        arcNodes = null;
+        arcLengths = null;
+        forEachNode(numThreads, v -> Arrays.sort(sorted, offsets[v], offsets[v + 1]));
+
+        int[] newOffsets = new int[numNodes + 1];
+        targets = new int[numArcs];
+        lengths = new int[numArcs];
+        int n = 0;
+        for (int v = 0; v < numNodes; v++) {
+            for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                int target = (int) (sorted[i] >>> 32);
+                if (n == newOffsets[v] || targets[n - 1] != target) {
+                    targets[n] = target;
+                    lengths[n++] = (int) sorted[i];
+                }
+            }
+            newOffsets[v + 1] = n;
+        }
+        offsets = newOffsets;
+        targets = Arrays.copyOf(targets, n);
+        lengths = Arrays.copyOf(lengths, n);
+        removed = new boolean[n];
+        numArcs = n;
+    }
+
+    /**
+     * Remove the transitive arcs, in parallel over the nodes. The first pass marks every arc v -> x where some arc
+     * v -> w, taken in order of length and not itself marked, is followed by an arc w -> x and the path is at most
+     * 'fuzz' bases longer than the longest arc of v. The second pass also marks v -> x if w -> x is shorter than 'fuzz'
+     * or the shortest arc of w, which catches transitive arcs that the length bound misses because of alignment
+     * errors at the ends of the contigs. An overlap is then removed if either of its two arcs is marked.
+     * @param fuzz The number of bases that the lengths of a path may differ from the length of an arc.
+     * @param numThreads The number of threads.
+     * @return The number of overlaps removed.
+     * @throws IOException If a thread fails.
+     */
+    public long reduce(int fuzz, int numThreads) throws IOException {
+        if (offsets == null) {
+            build(numThreads);
+        }
+        boolean[] marked = new boolean[numArcs];
+        ThreadLocal<long[]> buffers = ThreadLocal.withInitial(() -> new long[16]);
+        forEachNode(numThreads, v -> markTransitiveArcs(v, fuzz, marked, buffers));
+        // The complement of v -> w is (w ^ 1) -> (v ^ 1), so both arcs of an overlap are removed together.
+        forEachNode(numThreads, v -> {
+            for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                int complement = findArc(targets[i] ^ 1, v ^ 1);
+                removed[i] = marked[i] || (complement >= 0 && marked[complement]);
+            }
+        });
+        long removedArcs = 0;
+        for (boolean arcRemoved : removed) {
+            if (arcRemoved) {
+                removedArcs++;
+            }
+        }
+        return removedArcs / 2;
+    }
+
+    private void markTransitiveArcs(int v, int fuzz, boolean[] marked, ThreadLocal<long[]> buffers) {
+        int start = offsets[v];
+        int end = offsets[v + 1];
+        if (end - start < 2) {
+            return;
+        }
+        // Order the arcs of v by length, as (length << 32 | position).
+        long[] order = buffers.get();
+        if (order.length < end - start) {
+            order = new long[Math.max(end - start, 2 * order.length)];
+            buffers.set(order);
+        }
+        long longest = 0;
+        for (int i = start; i < end; i++) {
+            order[i - start] = ((long) lengths[i] << 32) | i;
+            longest = Math.max(longest, lengths[i]);
+        }
+        Arrays.sort(order, 0, end - start);
+        longest += fuzz;
+
+        for (int k = 0; k < end - start; k++) {
+            int i = (int) order[k];
+            if (marked[i]) {
+                continue;
+            }
+            int w = targets[i];
+            for (int j = offsets[w]; j < offsets[w + 1]; j++) {
+                if ((long) lengths[i] + lengths[j] <= longest) {
+                    mark(v, targets[j], marked);
+                }
+            }
+        }
+        for (int k = 0; k < end - start; k++) {
+            int w = targets[(int) order[k]];
+            int shortest = -1;
+            for (int j = offsets[w]; j < offsets[w + 1]; j++) {
+                if (shortest < 0 || lengths[j] < lengths[shortest]) {
+                    shortest = j;
+                }
+            }
+            for (int j = offsets[w]; j < offsets[w + 1]; j++) {
+                if (lengths[j] < fuzz || j == shortest) {
+                    mark(v, targets[j], marked);
+                }
+            }
+        }
+    }
+
+    private void mark(int v, int x, boolean[] marked) {
+        int arc = findArc(v, x);
+        if (arc >= 0) {
+            marked[arc] = true;
+        }
+    }
+
+    /**
+     * @return The position of the arc from node v to node x, or -1 if there is no such arc.
+     */
+    private int findArc(int v, int x) {
+        int arc = Arrays.binarySearch(targets, offsets[v], offsets[v + 1], x);
+        return arc >= 0 ? arc : -1;
+    }
+
+    /**
+     * @return The number of overlaps (pairs of complementary arcs) after 'build', minus those removed by 'reduce'.
+     */
+    public long numberOfOverlaps() {
+        long arcs = 0;
+        for (boolean arcRemoved : removed) {
+            if (!arcRemoved) {
+                arcs++;
+            }
+        }
+        return arcs / 2;
+    }
+
+    /**
+     * Build an undirected graph of the contigs, with an edge between two contigs that have an overlap. Contigs with
+     * several overlaps (e.g. on different strands) get a single edge, so the adjacency lists are sorted and without
+     * duplicates, as in a graph made with deduplication.
+     * @param reducedOnly If true, only the overlaps left by 'reduce' are included; otherwise all dovetail overlaps.
+     * @param numThreads The number of threads to sort the edges with.
+     * @return The graph.
+     */
+    public CompactGraph toCompactGraph(boolean reducedOnly, int numThreads) {
+        EdgeList edges = new EdgeList();
+        for (int v = 0; v < offsets.length - 1; v++) {
+            for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                // Of the two arcs of an overlap, only add the one whose source is smaller than the source of the other.
+                if ((!reducedOnly || !removed[i]) && v < (targets[i] ^ 1)) {
+                    edges.add(v >> 1, targets[i] >> 1);
+                }
+            }
+        }
+        edges.deduplicate(numThreads);
+        return new CompactGraph(numberOfVertices(), edges);
+    }
+
+    /**
+     * Write the overlaps left by 'reduce' as a string graph in GFA 1 format: a segment line with the length of every
+     * contig, and a link line with the orientations and the overlap length of every overlap. The file is written under
+     * a temporary name and then moved into place.
+     * @param filename The name or location of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeGfa(String filename) throws IOException {
+        Path target = Paths.get(filename);
+        Path temp = Paths.get(filename + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.ISO_8859_1)) {
+            out.write("H\tVN:Z:1.0\n");
+            for (int v = 0; v < numberOfVertices(); v++) {
+                out.write("S\t" + names.get(v) + "\t*\tLN:i:" + contigLengths[v] + "\n");
+            }
+            for (int v = 0; v < offsets.length - 1; v++) {
+                for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+                    int w = targets[i];
+                    if (!removed[i] && v < (w ^ 1)) {
+                        int overlap = contigLengths[v >> 1] - lengths[i];
+                        out.write("L\t" + names.get(v >> 1) + "\t" + ((v & 1) == 0 ? '+' : '-') + "\t"
+                                + names.get(w >> 1) + "\t" + ((w & 1) == 0 ? '+' : '-') + "\t" + overlap + "M\n");
+                    }
+                }
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Something done for a single node.
+     */
+    private interface NodeTask {
+        void run(int v);
+    }
+
+    /**
+     * Run a task for every node, on a thread pool with the nodes split into blocks.
+     */
+    private void forEachNode(int numThreads, NodeTask task) throws IOException {
+        int numNodes = offsets.length - 1;
+        int numBlocks = Math.max(1, Math.min(numNodes, numThreads * 16));
+        List<Future<Void>> futures = new ArrayList<>();
+        ExecutorService threadPool = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int b = 0; b < numBlocks; b++) {
+                int first = (int) ((long) b * numNodes / numBlocks);
+                int last = (int) ((long) (b + 1) * numNodes / numBlocks);
+                futures.add(threadPool.submit((Callable<Void>) () -> {
+                    for (int v = first; v < last; v++) {
+                        task.run(v);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during transitive reduction.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Transitive reduction failed.", e.getCause());
+        } finally {
+            threadPool.shutdownNow();
+        }
+    }
+
+    private static void printGraph(String what, CompactGraph graph, String resultSuffix) {
+        Map<Integer, Integer> degFreqs = graph.getDegreeDistribution();
+        System.out.println(what + ": " + graph.numberOfVertices() + " vertices, " + graph.numberOfEdges()
+                + " edges, " + degFreqs.size() + " different degree values.");
+        CustomWriter.writeMapToFile(degFreqs, "degreeFrequencies" + resultSuffix,
+                "Degree frequencies -- (degree):(vertex count) -- " + degFreqs.size() + " entries.");
+    }
+
+    public static void main(String[] args) {
+        // Reduce the overlaps of the unfiltered chunks, or of a single file with '--file FILE'.
+        String file = null;
+        int maxHang = DEFAULT_MAX_HANG;
+        int fuzz = DEFAULT_FUZZ;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals("--file")) {
+                file = args[++i];
+            } else if (args[i].equals("--max-hang")) {
+                maxHang = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--fuzz")) {
+                fuzz = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threads")) {
+                numThreads = Integer.parseInt(args[++i]);
+            }
+        }
+        List<File> sources = new ArrayList<>();
+        if (file != null) {
+            sources.add(new File(file));
+        } else {
+            for (int i = 0; i < LineParser.NUM_CHUNKS; i++) {
+                sources.add(new File(CHUNK_PREFIX + String.format("%04d", i)));
+            }
+        }
+        TransitiveReduction reduction = new TransitiveReduction(maxHang);
+
+        try {
+            System.out.println("Reading overlaps...");
+            RunReport.beginStage("overlap read");
+            for (File source : sources) {
+                reduction.addFile(source.getPath());
+            }
+            RunReport.recordCount("internal matches", reduction.internalMatches);
+            RunReport.recordCount("containments", reduction.containments);
+            RunReport.recordCount("contained contigs", reduction.containedContigs);
+            RunReport.endStage();
+            System.out.println("Lines: " + reduction.linesRead + ", internal matches: " + reduction.internalMatches
+                    + ", containments: " + reduction.containments + ", contained contigs: "
+                    + reduction.containedContigs);
+
+            RunReport.beginStage("arc sort");
+            reduction.build(numThreads);
+            long dovetails = reduction.numberOfOverlaps();
+            CompactGraph overlapGraph = reduction.toCompactGraph(false, numThreads);
+            RunReport.recordCount("dovetail overlaps", dovetails);
+            RunReport.recordCount("overlap graph edges", overlapGraph.numberOfEdges());
+            RunReport.endStage();
+            printGraph("Overlap graph", overlapGraph, "Overlaps");
+            overlapGraph = null;
+            System.out.println("--------------------");
+
+            System.out.println("Removing transitive overlaps...");
+            RunReport.beginStage("transitive reduction");
+            long removedOverlaps = reduction.reduce(fuzz, numThreads);
+            CompactGraph reduced = reduction.toCompactGraph(true, numThreads);
+            RunReport.recordCount("transitive overlaps", removedOverlaps);
+            RunReport.recordCount("reduced graph edges", reduced.numberOfEdges());
+            RunReport.endStage();
+            System.out.println(String.format("Removed %d of %d dovetail overlaps (%.1f%%).", removedOverlaps,
+                    dovetails, 100.0 * removedOverlaps / Math.max(1, dovetails)));
+            printGraph("Reduced graph", reduced, "Reduced");
+            System.out.println("--------------------");
+
+            System.out.println("Writing string graph...");
+            RunReport.beginStage("string graph write");
+            reduction.writeGfa(GFA_PATH);
+            GraphSnapshot.write(SNAPSHOT_PATH, reduced, reduction.indices(), GraphSnapshot.describeSources(sources),
+                    "transitive reduction (max hang " + maxHang + ", fuzz " + fuzz + ")");
+            RunReport.endStage();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        RunReport.write("res/results/reductionReport.json");
+    }
+}